@@ -0,0 +1,233 @@
+package se.lth.cs.palcom.palcomstarter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Optional resident supervisor of PalComStarter. When PalComStarter runs under a supervisor, updating PalComStarter
+ * does not need stage two and three: PalComStarter writes the start command of the new version to the supervisor's
+ * state file and exits with {@link #EXIT_HANDOVER}. The supervisor then starts the new version on trial. The new
+ * version commits the handover once it has checked that it can reach the update server. If it exits or does not
+ * commit within the trial time, it is stopped and the previous version is started again, and told that the update
+ * was rolled back. Monitored devices keep running during the handover, and are adopted by the new PalComStarter.
+ * <p>
+ * The supervisor also restarts PalComStarter if it crashes. It stops when PalComStarter exits normally.
+ * It does not use PalCom, so it stays small and does not need to be updated itself. To use it, let the startup
+ * script start it with the state file and the usual PalComStarter command, for example:
+ * <pre>
+ * java -cp PalComStarter-1.0.0.jar se.lth.cs.palcom.palcomstarter.Supervisor supervisor.properties java -jar PalComStarter-1.0.0.jar -x ID -f PATH
+ * </pre>
+ * The command of the running version is kept in the state file, so the startup script does not change on updates.
+ * @author splushii
+ *
+ */
+public class Supervisor {
+	/** System property telling PalComStarter where the state file of its supervisor is */
+	public static final String STATE_PROPERTY = "se.lth.cs.palcom.palcomstarter.supervisor.state";
+	/** Exit code of a PalComStarter that hands over to a new version */
+	public static final int EXIT_HANDOVER = 75;
+
+	public static final String KEY_STATE = "state";
+	public static final String KEY_COMMAND = "command";
+	public static final String KEY_NEW_COMMAND = "newCommand";
+	public static final String KEY_NEW_VERSION = "newVersion";
+	/** Nothing is going on */
+	public static final String STATE_RUNNING = "running";
+	/** PalComStarter has asked for a handover to the new command */
+	public static final String STATE_HANDOVER = "handover";
+	/** The new version is running, and has not committed yet */
+	public static final String STATE_TRIAL = "trial";
+	/** The new version has committed. Set by the new version. */
+	public static final String STATE_COMMITTED = "committed";
+	/** The new version failed, and the previous version was started again */
+	public static final String STATE_ROLLED_BACK = "rolledBack";
+
+	private static final long TRIAL_MILLIS = 2*60*1000;
+	private static final long POLL_MILLIS = 200;
+	private static final long STOP_GRACE_PERIOD_MILLIS = 5000;
+	private static final long MIN_RESTART_DELAY_MILLIS = 1000;
+	private static final long MAX_RESTART_DELAY_MILLIS = 60*1000;
+	// A PalComStarter that has run this long is not crash looping
+	private static final long STABLE_RUN_MILLIS = 5*60*1000;
+
+	private final File stateFile;
+	private volatile Process current;
+
+	private Supervisor(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: Supervisor <state file> <PalComStarter command>");
+			System.exit(1);
+		}
+		final Supervisor supervisor = new Supervisor(new File(args[0]).getAbsoluteFile());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				supervisor.stopCurrent();
+			}
+		});
+		String initialCommand = String.join(" ", Arrays.asList(args).subList(1, args.length));
+		try {
+			supervisor.supervise(initialCommand);
+		} catch (IOException e) {
+			Logger.log("Supervisor could not use its state file " + args[0] + ": " + e.getMessage(), Logger.CMP_DEVICE, Logger.LEVEL_ERROR);
+			System.exit(1);
+		}
+	}
+
+	private void supervise(String initialCommand) throws IOException {
+		Properties state = loadState(stateFile);
+		String command = state.getProperty(KEY_COMMAND, initialCommand);
+		String s = state.getProperty(KEY_STATE, STATE_RUNNING);
+		if (s.equals(STATE_HANDOVER) || s.equals(STATE_TRIAL)) {
+			// We were stopped in the middle of a handover, so it was never committed
+			Logger.log("Supervisor found an unfinished handover. Rolling back.", Logger.CMP_DEVICE, Logger.LEVEL_WARNING);
+			state.setProperty(KEY_STATE, STATE_ROLLED_BACK);
+		}
+		state.setProperty(KEY_COMMAND, command);
+		saveState(stateFile, state);
+		long restartDelay = MIN_RESTART_DELAY_MILLIS;
+		Process p = null;
+		while (true) {
+			if (p == null)
+				p = start(command);
+			long startMillis = System.currentTimeMillis();
+			int exitCode = waitFor(p);
+			p = null;
+			state = loadState(stateFile);
+			if (exitCode == EXIT_HANDOVER && STATE_HANDOVER.equals(state.getProperty(KEY_STATE))) {
+				String newCommand = state.getProperty(KEY_NEW_COMMAND);
+				Logger.log("Supervisor handing over to PalComStarter " + state.getProperty(KEY_NEW_VERSION) + ".", Logger.CMP_DEVICE, Logger.LEVEL_INFO);
+				state.setProperty(KEY_STATE, STATE_TRIAL);
+				saveState(stateFile, state);
+				Process trial = start(newCommand);
+				if (awaitCommit(trial)) {
+					Logger.log("Supervisor: the new PalComStarter has committed the handover.", Logger.CMP_DEVICE, Logger.LEVEL_INFO);
+					command = newCommand;
+					state = loadState(stateFile);
+					state.setProperty(KEY_COMMAND, command);
+					state.setProperty(KEY_STATE, STATE_RUNNING);
+					state.remove(KEY_NEW_COMMAND);
+					state.remove(KEY_NEW_VERSION);
+					saveState(stateFile, state);
+					p = trial;
+				} else {
+					Logger.log("Supervisor: the new PalComStarter did not commit the handover. Rolling back.", Logger.CMP_DEVICE, Logger.LEVEL_WARNING);
+					stopCurrent();
+					state.setProperty(KEY_STATE, STATE_ROLLED_BACK);
+					saveState(stateFile, state);
+				}
+				continue;
+			}
+			if (exitCode == 0) {
+				Logger.log("PalComStarter stopped. Supervisor exiting.", Logger.CMP_DEVICE, Logger.LEVEL_INFO);
+				return;
+			}
+			if (System.currentTimeMillis() - startMillis > STABLE_RUN_MILLIS)
+				restartDelay = MIN_RESTART_DELAY_MILLIS;
+			Logger.log("PalComStarter exited with code " + exitCode + ". Supervisor restarts it in " + restartDelay + "ms.", Logger.CMP_DEVICE, Logger.LEVEL_WARNING);
+			sleep(restartDelay);
+			restartDelay = Math.min(restartDelay * 2, MAX_RESTART_DELAY_MILLIS);
+		}
+	}
+
+	private Process start(String command) throws IOException {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(command.split(" ")));
+		// Right after "java", so that it is a JVM option
+		arguments.add(1, "-D" + STATE_PROPERTY + "=" + stateFile.getPath());
+		ProcessBuilder pb = new ProcessBuilder(arguments);
+		pb.inheritIO();
+		current = pb.start();
+		return current;
+	}
+
+	/**
+	 * @return true if the process committed the handover within the trial time
+	 */
+	private boolean awaitCommit(Process trial) throws IOException {
+		long stopMillis = System.currentTimeMillis() + TRIAL_MILLIS;
+		while (System.currentTimeMillis() < stopMillis) {
+			if (STATE_COMMITTED.equals(loadState(stateFile).getProperty(KEY_STATE)))
+				return true;
+			if (!trial.isAlive())
+				return false;
+			sleep(POLL_MILLIS);
+		}
+		return false;
+	}
+
+	private int waitFor(Process p) {
+		while (true) {
+			try {
+				return p.waitFor();
+			} catch (InterruptedException e) {/* wait again */}
+		}
+	}
+
+	private void stopCurrent() {
+		Process p = current;
+		if (p == null || !p.isAlive())
+			return;
+		p.destroy();
+		try {
+			if (!p.waitFor(STOP_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) {
+				p.destroyForcibly();
+				p.waitFor();
+			}
+		} catch (InterruptedException e) {
+			p.destroyForcibly();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {/* do nothing */}
+	}
+
+	/**
+	 * @return the state, or an empty state if the file does not exist yet
+	 */
+	public static Properties loadState(File stateFile) throws IOException {
+		Properties state = new Properties();
+		if (stateFile.exists()) {
+			InputStream in = new FileInputStream(stateFile);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Replaces the state file in one move, so that nobody reads a half written state.
+	 */
+	public static void saveState(File stateFile, Properties state) throws IOException {
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			state.store(out, "PalComStarter supervisor state");
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,487 @@
+package se.lth.cs.palcom.updatedistributionservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import se.lth.cs.palcom.communication.connection.Writable;
+import se.lth.cs.palcom.device.DeviceProperties;
+import se.lth.cs.palcom.logging.Logger;
+import se.lth.cs.palcom.updaterservice.UpdaterService;
+
+/**
+ * Rolls out an update to the connected clients (PalComStarters) a few at a time, instead of announcing it to
+ * all of them at once. The update is first announced to a canary, and then to growing waves. After each wave the
+ * engine waits for the bake time, and then goes on with the next wave if the clients' reports allow it. The clients
+ * report how their update ended with the benchmark end command. If more than maxFailurePercent of the reported
+ * successes and failures are failures, the rollout halts, and no more clients are told about the update. A halted
+ * rollout can be resumed by command. A wave is not followed by the next one until at least minReports clients
+ * have reported a success or a failure, so that a canary that never reports, or that skips the update, does not
+ * let the update through. Clients that skipped the update are replaced by clients of the next wave. Reports that
+ * are still missing reportTimeoutMillis after the wave was announced count as failures.
+ * <p>
+ * A client may defer swapping to the update for up to its maxUpdateDeferMillis before it reports, so the report
+ * timeout is never shorter than clientMaxDeferMillis, the longest deferral of the clients, plus an hour for the
+ * swap itself. By default that is the clients' default deferral.
+ * <p>
+ * Clients that have not been reached by the rollout yet, or that are never reached because it halted, are told
+ * about the version before the update when they ask for the latest version. Clients that connect during a rollout
+ * join one of its later waves. A connection becomes a client when a PalComStarter first sends a request on it. A halted rollout that is superseded by a new one keeps holding back its versions
+ * from the clients it did not reach, for the device types that the new rollout does not update, until it is resumed.
+ * <p>
+ * The rollout is configured in rollout.properties in the service root:
+ * <pre>
+ * rollout@canarySize=1
+ * rollout@waveSizes=10%,25%,100%
+ * rollout@bakeTimeMillis=600000
+ * rollout@maxFailurePercent=20
+ * rollout@minReports=1
+ * rollout@clientMaxDeferMillis=86400000
+ * rollout@reportTimeoutMillis=90000000
+ * </pre>
+ * Wave sizes are numbers of clients, or percentages of all clients of the rollout. The last size is used for the
+ * waves after the listed ones. Only one rollout runs at a time. A new update supersedes a running rollout.
+ * @author splushii
+ *
+ */
+class RolloutEngine {
+	/**
+	 * Tells clients about updates, see {@link UpdateDistributionService#announceTo(Writable, String[], String[])}.
+	 */
+	interface Announcer {
+		void announceTo(Writable client, String[] deviceTypes, String[] versions);
+	}
+
+	/**
+	 * A version of a halted rollout that is held back from the clients that the rollout did not reach.
+	 */
+	private static class Hold {
+		final String version;
+		final String previousVersion;
+		final Set<Writable> announced;
+
+		Hold(String version, String previousVersion, Set<Writable> announced) {
+			this.version = version;
+			this.previousVersion = previousVersion;
+			this.announced = announced;
+		}
+	}
+
+	enum State {
+		/** Announcing to waves of clients and baking */
+		RUNNING,
+		/** Stopped because of failures or by command, waiting to be resumed */
+		HALTED,
+		/** All clients have been told about the update */
+		DONE,
+	}
+
+	static final String NAMESPACE_ROLLOUT = "rollout";
+	static final String KEY_CANARY_SIZE = "canarySize";
+	static final String KEY_WAVE_SIZES = "waveSizes";
+	static final String KEY_BAKE_TIME_MILLIS = "bakeTimeMillis";
+	static final String KEY_MAX_FAILURE_PERCENT = "maxFailurePercent";
+	static final String KEY_MIN_REPORTS = "minReports";
+	static final String KEY_REPORT_TIMEOUT_MILLIS = "reportTimeoutMillis";
+	static final String KEY_CLIENT_MAX_DEFER_MILLIS = "clientMaxDeferMillis";
+	private static final String DEFAULT_CANARY_SIZE = "1";
+	private static final String DEFAULT_WAVE_SIZES = "10%,25%,100%";
+	private static final long DEFAULT_BAKE_TIME_MILLIS = 10*60*1000;
+	private static final long DEFAULT_MAX_FAILURE_PERCENT = 20;
+	private static final long DEFAULT_MIN_REPORTS = 1;
+	private static final long DEFAULT_CLIENT_MAX_DEFER_MILLIS = UpdaterService.DEFAULT_MAX_UPDATE_DEFER_MILLIS;
+	// Time for a client to swap and report after it stops deferring
+	private static final long REPORT_MARGIN_MILLIS = 60*60*1000;
+
+	private final Announcer announcer;
+	private final DeviceProperties properties;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Rollout bake timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	// Connected clients, in the order they identified themselves
+	private final LinkedHashSet<Writable> clients = new LinkedHashSet<Writable>();
+
+	// The current or last rollout
+	private State state = State.DONE;
+	private String[] deviceTypes;
+	private String[] versions;
+	private final HashMap<String, String> newVersionByType = new HashMap<String, String>();
+	private final HashMap<String, String> previousVersionByType = new HashMap<String, String>();
+	private final LinkedHashSet<Writable> pending = new LinkedHashSet<Writable>();
+	private final Set<Writable> announced = new LinkedHashSet<Writable>();
+	// Outcome per reporter and device types, so that a client that reports again is not counted twice
+	private final HashMap<String, String> outcomes = new HashMap<String, String>();
+	private int wave;
+	private long waveMillis;
+	// Reports that did not come within the report timeout, counted as failures
+	private int missingReports;
+	private long bakeEndMillis;
+	private ScheduledFuture<?> bake;
+	// Versions of superseded halted rollouts, per device type
+	private final HashMap<String, Hold> holds = new HashMap<String, Hold>();
+
+	// Settings, read when a rollout starts
+	private List<String> waveSizes;
+	private long bakeTimeMillis;
+	private long maxFailurePercent;
+	private long minReports;
+	private long reportTimeoutMillis;
+
+	/**
+	 * @param properties where the rollout settings are, or null to use the defaults
+	 */
+	RolloutEngine(Announcer announcer, DeviceProperties properties) {
+		this.announcer = announcer;
+		this.properties = properties;
+	}
+
+	synchronized void addClient(Writable client) {
+		clients.add(client);
+		if (state != State.DONE && !announced.contains(client))
+			pending.add(client);
+	}
+
+	synchronized void removeClient(Writable client) {
+		clients.remove(client);
+		pending.remove(client);
+		for (Hold hold: holds.values()) {
+			hold.announced.remove(client);
+		}
+	}
+
+	/**
+	 * Starts rolling out the device types to the versions to all connected clients.
+	 * @param previousVersions the latest version of each device type before these, told to the clients the rollout
+	 * has not reached. Null if there is none.
+	 */
+	synchronized void start(String[] deviceTypes, String[] versions, String[] previousVersions) {
+		if (state != State.DONE)
+			Logger.log("Rollout of " + describe() + " is superseded.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		if (state == State.HALTED)
+			holdHaltedVersions();
+		cancelBake();
+		readSettings();
+		this.deviceTypes = deviceTypes.clone();
+		this.versions = versions.clone();
+		newVersionByType.clear();
+		previousVersionByType.clear();
+		for (int i = 0; i < deviceTypes.length; i++) {
+			newVersionByType.put(deviceTypes[i], versions[i]);
+			// The new version replaces a held back one. Clients that never got the held back version are to
+			// stay on the version before it until the new one reaches them.
+			Hold hold = holds.remove(deviceTypes[i]);
+			previousVersionByType.put(deviceTypes[i], hold != null ? hold.previousVersion : previousVersions[i]);
+		}
+		pending.clear();
+		pending.addAll(clients);
+		announced.clear();
+		outcomes.clear();
+		missingReports = 0;
+		wave = 0;
+		state = State.RUNNING;
+		Logger.log("Starting rollout of " + describe() + " to " + pending.size() + " clients.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		announceNextWave();
+	}
+
+	private void holdHaltedVersions() {
+		for (String deviceType: deviceTypes) {
+			holds.put(deviceType, new Hold(newVersionByType.get(deviceType), previousVersionByType.get(deviceType), new LinkedHashSet<Writable>(announced)));
+		}
+		Logger.log("Holding back " + describe() + " from the clients the halted rollout did not reach, until it is resumed.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+	}
+
+	private void readSettings() {
+		waveSizes = new ArrayList<String>();
+		waveSizes.add(getProperty(KEY_CANARY_SIZE, DEFAULT_CANARY_SIZE).trim());
+		for (String size: getProperty(KEY_WAVE_SIZES, DEFAULT_WAVE_SIZES).split(",")) {
+			if (!size.trim().isEmpty())
+				waveSizes.add(size.trim());
+		}
+		bakeTimeMillis = getLongProperty(KEY_BAKE_TIME_MILLIS, DEFAULT_BAKE_TIME_MILLIS);
+		maxFailurePercent = getLongProperty(KEY_MAX_FAILURE_PERCENT, DEFAULT_MAX_FAILURE_PERCENT);
+		minReports = getLongProperty(KEY_MIN_REPORTS, DEFAULT_MIN_REPORTS);
+		long minReportTimeoutMillis = getLongProperty(KEY_CLIENT_MAX_DEFER_MILLIS, DEFAULT_CLIENT_MAX_DEFER_MILLIS) + REPORT_MARGIN_MILLIS;
+		reportTimeoutMillis = getLongProperty(KEY_REPORT_TIMEOUT_MILLIS, minReportTimeoutMillis);
+		if (reportTimeoutMillis < minReportTimeoutMillis) {
+			Logger.log("Rollout report timeout " + reportTimeoutMillis/1000 + "s is shorter than the clients may defer an update. Using "
+					+ minReportTimeoutMillis/1000 + "s, so that deferred clients are not counted as failures.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			reportTimeoutMillis = minReportTimeoutMillis;
+		}
+	}
+
+	private void announceNextWave() {
+		String name = wave == 0 ? "canary" : "wave " + wave;
+		int n = announce(waveSize(wave));
+		Logger.log("Rollout of " + describe() + ": announced to " + n + " clients (" + name + "), "
+				+ pending.size() + " left. Baking for " + bakeTimeMillis/1000 + "s.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		wave++;
+		waveMillis = System.currentTimeMillis();
+		scheduleBake();
+	}
+
+	/**
+	 * Tells the next pending clients about the update.
+	 * @return how many were told
+	 */
+	private int announce(int size) {
+		Iterator<Writable> it = pending.iterator();
+		int n = 0;
+		while (n < size && it.hasNext()) {
+			Writable client = it.next();
+			it.remove();
+			announced.add(client);
+			announcer.announceTo(client, deviceTypes, versions);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return how many clients the wave is announced to. The canary is wave 0.
+	 */
+	private int waveSize(int wave) {
+		String size = waveSizes.get(Math.min(wave, waveSizes.size() - 1));
+		try {
+			if (size.endsWith("%")) {
+				int total = announced.size() + pending.size();
+				double percent = Double.parseDouble(size.substring(0, size.length() - 1).trim());
+				return Math.max(1, (int) Math.ceil(total * percent / 100));
+			}
+			return Math.max(1, Integer.parseInt(size));
+		} catch (NumberFormatException e) {
+			Logger.log("Invalid rollout wave size: " + size + ". Using 1.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return 1;
+		}
+	}
+
+	private void scheduleBake() {
+		bakeEndMillis = System.currentTimeMillis() + bakeTimeMillis;
+		bake = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				endOfBake();
+			}
+		}, bakeTimeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelBake() {
+		if (bake != null) {
+			bake.cancel(false);
+			bake = null;
+		}
+	}
+
+	private synchronized void endOfBake() {
+		bake = null;
+		if (state != State.RUNNING)
+			return;
+		if (isFailing()) {
+			halt("too many failures");
+			return;
+		}
+		int reports = count(UpdaterService.UPDATE_OUTCOME_SUCCESS) + count(UpdaterService.UPDATE_OUTCOME_FAILURE);
+		// Clients that skipped the update will never report a success or a failure
+		int canReport = announced.size() - count(UpdaterService.UPDATE_OUTCOME_SKIPPED);
+		int neededReports = (int) Math.min(minReports, canReport + pending.size());
+		if (reports + missingReports < neededReports) {
+			if (canReport < neededReports) {
+				// Tell more clients in place of those that skipped, so that the next wave waits for real outcomes
+				int n = announce(neededReports - canReport);
+				Logger.log("Rollout of " + describe() + ": announced to " + n + " more clients in place of clients that skipped the update. "
+						+ pending.size() + " left. Baking again.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				waveMillis = System.currentTimeMillis();
+				scheduleBake();
+				return;
+			}
+			if (System.currentTimeMillis() - waveMillis < reportTimeoutMillis) {
+				Logger.log("Rollout of " + describe() + ": waiting for clients to report. Baking again.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				scheduleBake();
+				return;
+			}
+			missingReports = neededReports - reports;
+			Logger.log("Rollout of " + describe() + ": " + missingReports + " report(s) did not come within "
+					+ reportTimeoutMillis/1000 + "s. Counting them as failures.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			if (isFailing()) {
+				halt("clients did not report");
+				return;
+			}
+		}
+		if (pending.isEmpty()) {
+			state = State.DONE;
+			Logger.log("Rollout of " + describe() + " is done. " + summary(), Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			return;
+		}
+		announceNextWave();
+	}
+
+	/**
+	 * Counts the report of a client, and halts the rollout if the failure rate has become too high.
+	 * @return false if the report does not belong to the current rollout
+	 */
+	synchronized boolean report(String reporter, String[] reportedTypes, String[] reportedVersions, String outcome) {
+		if (deviceTypes == null)
+			return false;
+		boolean belongs = false;
+		for (int i = 0; i < reportedTypes.length && i < reportedVersions.length; i++) {
+			if (reportedVersions[i].equals(newVersionByType.get(reportedTypes[i])))
+				belongs = true;
+		}
+		if (!belongs)
+			return false;
+		String key = reporter + " " + String.join(",", reportedTypes);
+		// A late success or failure takes the place of a missing one
+		if (isGating(outcome) && !isGating(outcomes.get(key)) && missingReports > 0)
+			missingReports--;
+		outcomes.put(key, outcome);
+		Logger.log("Rollout of " + describe() + ": " + reporter + " reported " + outcome + ". " + summary(), Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		if (state == State.RUNNING && isFailing())
+			halt("too many failures");
+		return true;
+	}
+
+	private boolean isFailing() {
+		int failures = count(UpdaterService.UPDATE_OUTCOME_FAILURE) + missingReports;
+		int reports = failures + count(UpdaterService.UPDATE_OUTCOME_SUCCESS);
+		return reports >= minReports && reports > 0 && failures * 100 > maxFailurePercent * reports;
+	}
+
+	/**
+	 * @return true if the outcome counts toward minReports and the failure rate
+	 */
+	private static boolean isGating(String outcome) {
+		return UpdaterService.UPDATE_OUTCOME_SUCCESS.equals(outcome) || UpdaterService.UPDATE_OUTCOME_FAILURE.equals(outcome);
+	}
+
+	private int count(String outcome) {
+		int n = 0;
+		for (String o: outcomes.values()) {
+			if (o.equals(outcome))
+				n++;
+		}
+		return n;
+	}
+
+	private void halt(String reason) {
+		cancelBake();
+		state = State.HALTED;
+		Logger.log("Rollout of " + describe() + " halted: " + reason + ". " + summary() + " " + pending.size()
+				+ " clients were not told about the update.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+	}
+
+	/**
+	 * Halts the running rollout.
+	 * @return false if there was none
+	 */
+	synchronized boolean halt() {
+		if (state != State.RUNNING)
+			return false;
+		halt("by command");
+		return true;
+	}
+
+	/**
+	 * Goes on with a halted rollout, with the next wave. The failures so far are forgiven. Versions held back
+	 * by superseded halted rollouts are released.
+	 * @return false if there was no halted rollout and nothing held back
+	 */
+	synchronized boolean resume() {
+		boolean released = !holds.isEmpty();
+		if (released) {
+			Logger.log("Releasing held back versions of " + holds.keySet() + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			holds.clear();
+		}
+		if (state != State.HALTED)
+			return released;
+		outcomes.clear();
+		missingReports = 0;
+		state = State.RUNNING;
+		Logger.log("Resuming rollout of " + describe() + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		if (pending.isEmpty()) {
+			state = State.DONE;
+			return true;
+		}
+		announceNextWave();
+		return true;
+	}
+
+	/**
+	 * @return the version of the device type that the client is to be told is the latest. That is the
+	 * latest version, unless a rollout of the device type has not reached the client. Then it is the version
+	 * before the rollout, or null if there is none. The same goes for versions held back by halted rollouts.
+	 */
+	synchronized String getVersionFor(Writable client, String deviceType, String latestVersion) {
+		Hold hold = holds.get(deviceType);
+		if (hold != null && hold.version.equals(latestVersion) && !hold.announced.contains(client))
+			return hold.previousVersion;
+		if (state == State.DONE || !newVersionByType.containsKey(deviceType) || announced.contains(client))
+			return latestVersion;
+		// Told about in one of the next waves
+		if (state == State.RUNNING)
+			pending.add(client);
+		return previousVersionByType.get(deviceType);
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	synchronized String getStatus() {
+		if (deviceTypes == null)
+			return "No rollout has been started.";
+		String status = "Rollout of " + describe() + ": " + state + ", " + announced.size() + " clients announced to, "
+				+ pending.size() + " left. " + summary();
+		if (state == State.RUNNING && bake != null)
+			status += " Next wave in " + Math.max(0, bakeEndMillis - System.currentTimeMillis())/1000 + "s.";
+		for (Map.Entry<String, Hold> hold: holds.entrySet()) {
+			status += " Holding back " + hold.getKey() + " " + hold.getValue().version + ".";
+		}
+		return status;
+	}
+
+	private String summary() {
+		return count(UpdaterService.UPDATE_OUTCOME_SUCCESS) + " succeeded, " + count(UpdaterService.UPDATE_OUTCOME_FAILURE)
+				+ " failed, " + count(UpdaterService.UPDATE_OUTCOME_SKIPPED) + " skipped, " + missingReports + " did not report.";
+	}
+
+	private String describe() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; deviceTypes != null && i < deviceTypes.length; i++) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(deviceTypes[i] + " " + versions[i]);
+		}
+		return sb.toString();
+	}
+
+	// Not private, so that tests can give their own settings
+	String getProperty(String key, String defaultValue) {
+		String value = properties == null ? null : properties.getProperty(NAMESPACE_ROLLOUT, key);
+		return value == null ? defaultValue : value;
+	}
+
+	private long getLongProperty(String key, long defaultValue) {
+		String value = getProperty(key, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			Logger.log("Invalid number in rollout.properties: " + NAMESPACE_ROLLOUT + "@" + key + "=" + value + ". Using " + defaultValue + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return defaultValue;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package se.lth.cs.palcom.updatedistributionservice;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -8,9 +9,11 @@ import ist.palcom.resource.descriptor.Command;
 import ist.palcom.resource.descriptor.DeviceID;
 import ist.palcom.resource.descriptor.PRDService;
 import ist.palcom.resource.descriptor.ServiceID;
+import se.lth.cs.palcom.communication.connection.Connection;
 import se.lth.cs.palcom.communication.connection.Readable;
 import se.lth.cs.palcom.communication.connection.Writable;
 import se.lth.cs.palcom.device.AbstractDevice;
+import se.lth.cs.palcom.device.DeviceProperties;
 import se.lth.cs.palcom.logging.Logger;
 import se.lth.cs.palcom.service.AbstractSimpleService;
 import se.lth.cs.palcom.service.ServiceTools;
@@ -20,6 +23,7 @@ import se.lth.cs.palcom.updaterservice.UpdaterService;
 
 /** 
  * Keeps track of updates and distributes them to devices running {@link UpdaterService} in monitoring mode (PalComStarters)
+ * Updates are announced to the clients a wave at a time by the {@link RolloutEngine}.
  * @author Christian Hernvall
  */
 public class UpdateDistributionService extends AbstractSimpleService {
@@ -39,6 +43,9 @@ public class UpdateDistributionService extends AbstractSimpleService {
 	private static final String COMMAND_IN_REMOVE_SINGLE_UPDATE = "remove single update";
 	private static final String COMMAND_IN_REMOVE_ALL_OLD_UPDATES = "remove all old updates";
 	private static final String COMMAND_IN_REMOVE_ALL_UPDATES = "remove all updates";
+	private static final String COMMAND_IN_ROLLOUT_STATUS = "rollout status";
+	private static final String COMMAND_IN_HALT_ROLLOUT = "halt rollout";
+	private static final String COMMAND_IN_RESUME_ROLLOUT = "resume rollout";
 	
 	private static final String COMMAND_OUT_UPDATE_DEVICE_TYPES = se.lth.cs.palcom.updaterservice.UpdaterService.COMMAND_IN_UPDATE_DEVICE_TYPES;
 	private static final String COMMAND_OUT_UPDATE_DATA = se.lth.cs.palcom.updaterservice.UpdaterService.COMMAND_IN_UPDATE_DATA;
@@ -52,11 +59,14 @@ public class UpdateDistributionService extends AbstractSimpleService {
 	private static final String PARAM_DEVICE_TYPE = se.lth.cs.palcom.updaterservice.UpdaterService.PARAM_DEVICE_TYPE;
 	private static final String PARAM_VERSION_ENTRY_UNKNOWN = se.lth.cs.palcom.updaterservice.UpdaterService.PARAM_NO_ENTRY;
 	private static final String PARAM_STATUS = "status";
+	private static final String PARAM_REPORTER = se.lth.cs.palcom.updaterservice.UpdaterService.PARAM_REPORTER;
+	private static final String PARAM_UPDATE_OUTCOME = se.lth.cs.palcom.updaterservice.UpdaterService.PARAM_UPDATE_OUTCOME;
 	
 	private long benchmark;
 	private HashMap<String, String> implementationSuffix;
 	
 	private UpdateStore updateStore;
+	private RolloutEngine rolloutEngine;
 	
 	public UpdateDistributionService(AbstractDevice container) {
 		this(container, ServiceTools.getNextInstance(SERVICE_VERSION));
@@ -81,6 +91,18 @@ public class UpdateDistributionService extends AbstractSimpleService {
 			stop();
 			return;
 		}	
+		DeviceProperties rolloutProperties = null;
+		try {
+			rolloutProperties = new DeviceProperties(new DeviceID("rollout"), getServiceRoot(), null, "Rollout properties. Generated " + new Date());
+		} catch (IOException e) {
+			Logger.log("Could not access rollout properties. Using the default rollout settings.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		}
+		rolloutEngine = new RolloutEngine(new RolloutEngine.Announcer() {
+			@Override
+			public void announceTo(Writable client, String[] deviceTypes, String[] versions) {
+				UpdateDistributionService.this.announceTo(client, deviceTypes, versions);
+			}
+		}, rolloutProperties);
 		
 		CommandServiceProtocol sp = getProtocolHandler();
 		
@@ -117,6 +139,15 @@ public class UpdateDistributionService extends AbstractSimpleService {
 		Command removeAllUpdatesCmd = new Command(COMMAND_IN_REMOVE_ALL_UPDATES, "Remove all updates.", Command.DIRECTION_IN);
 		sp.addCommand(removeAllUpdatesCmd);
 		
+		Command rolloutStatusCmd = new Command(COMMAND_IN_ROLLOUT_STATUS, "Reply with the progress of the current rollout.", Command.DIRECTION_IN);
+		sp.addCommand(rolloutStatusCmd);
+		
+		Command haltRolloutCmd = new Command(COMMAND_IN_HALT_ROLLOUT, "Stop announcing the current update to more clients.", Command.DIRECTION_IN);
+		sp.addCommand(haltRolloutCmd);
+		
+		Command resumeRolloutCmd = new Command(COMMAND_IN_RESUME_ROLLOUT, "Go on with a halted rollout, forgiving its failures so far.", Command.DIRECTION_IN);
+		sp.addCommand(resumeRolloutCmd);
+		
 		Command updateContentRequestCmd = new Command(COMMAND_IN_UPDATE_CONTENT_REQUEST, "Update content request.", Command.DIRECTION_IN);
 		updateContentRequestCmd.addParam(PARAM_DEVICE_TYPE, "text/plain");
 		updateContentRequestCmd.addParam(PARAM_VERSION, "text/plain");
@@ -148,7 +179,11 @@ public class UpdateDistributionService extends AbstractSimpleService {
 		sp.addCommand(confirmReqCmd);
 		
 		
-		Command benchmarkEndCmd = new Command(COMMAND_IN_BENCHMARK_END, "benchmark end", Command.DIRECTION_IN);
+		Command benchmarkEndCmd = new Command(COMMAND_IN_BENCHMARK_END, "Report from a client of how an update ended.", Command.DIRECTION_IN);
+		benchmarkEndCmd.addParam(PARAM_REPORTER, "text/plain");
+		benchmarkEndCmd.addParam(PARAM_DEVICE_TYPE, "text/plain");
+		benchmarkEndCmd.addParam(PARAM_VERSION, "text/plain");
+		benchmarkEndCmd.addParam(PARAM_UPDATE_OUTCOME, "text/plain");
 		sp.addCommand(benchmarkEndCmd);
 	}
 
@@ -156,6 +191,8 @@ public class UpdateDistributionService extends AbstractSimpleService {
 	protected void invoked(Readable connection, Command command) {
 		if (connection instanceof Writable) {
 			Writable conn = (Writable) connection;
+			if (isClientCommand(command.getID()))
+				rolloutEngine.addClient(conn);
 			if(command.getID().equals(COMMAND_IN_BROADCAST_UPDATE_SINGLE_DEVICE_TYPE)) {
 				benchmark = System.currentTimeMillis();
 				Logger.log("Benchmarking time to update. Current time: " + benchmark, Logger.CMP_SERVICE, Logger.LEVEL_BULK);
@@ -189,6 +226,7 @@ public class UpdateDistributionService extends AbstractSimpleService {
 			} else if (command.getID().equals(COMMAND_IN_BENCHMARK_END)) {
 				Logger.log("Got benchmark end command. Current time: " + System.currentTimeMillis(), Logger.CMP_SERVICE, Logger.LEVEL_BULK);
 				Logger.log("Difference between start and now: " + (System.currentTimeMillis() - benchmark), Logger.CMP_SERVICE, Logger.LEVEL_BULK);
+				receiveUpdateReport(command);
 			} else if (command.getID().equals(COMMAND_IN_ADD_UPDATE)) {
 				String implementation = "java"; //TODO hard coded implementation
 				String deviceType = UpdaterService.toUTF8String(command.findParam(PARAM_DEVICE_TYPE).getData());
@@ -236,10 +274,46 @@ public class UpdateDistributionService extends AbstractSimpleService {
 				updateStore.deleteAllOldUpdates();
 			} else if (command.getID().equals(COMMAND_IN_REMOVE_ALL_UPDATES)) {
 				updateStore.deleteAllUpdates();
+			} else if (command.getID().equals(COMMAND_IN_ROLLOUT_STATUS)) {
+				Command reply = getProtocolHandler().findCommand(COMMAND_OUT_STATUS);
+				reply.findParam(PARAM_STATUS).setData(rolloutEngine.getStatus().getBytes());
+				sendTo(conn, reply);
+			} else if (command.getID().equals(COMMAND_IN_HALT_ROLLOUT)) {
+				if (!rolloutEngine.halt())
+					Logger.log("No rollout is running.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			} else if (command.getID().equals(COMMAND_IN_RESUME_ROLLOUT)) {
+				if (!rolloutEngine.resume())
+					Logger.log("No rollout is halted.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 			}
 		}
 	}
 	
+	private void receiveUpdateReport(Command command) {
+		// Clients from before update reports only send the benchmark end
+		if (command.findParam(PARAM_UPDATE_OUTCOME) == null || command.findParam(PARAM_UPDATE_OUTCOME).getData() == null)
+			return;
+		String reporter = UpdaterService.toUTF8String(command.findParam(PARAM_REPORTER).getData());
+		String[] deviceTypes = UpdaterService.toUTF8String(command.findParam(PARAM_DEVICE_TYPE).getData()).split(PARAM_VALUE_SEPARATOR);
+		String[] versions = UpdaterService.toUTF8String(command.findParam(PARAM_VERSION).getData()).split(PARAM_VALUE_SEPARATOR);
+		String outcome = UpdaterService.toUTF8String(command.findParam(PARAM_UPDATE_OUTCOME).getData());
+		if (!rolloutEngine.report(reporter, deviceTypes, versions, outcome))
+			Logger.log("Update report from " + reporter + " (" + outcome + ") does not belong to the current rollout.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+	}
+
+	/**
+	 * @return true if the command is one that only PalComStarters send, so that the connection it came on is
+	 * a client of the rollouts. Other connections, like those of tools that add updates, are not announced to.
+	 */
+	private boolean isClientCommand(String commandID) {
+		return commandID.equals(COMMAND_IN_CHECK_LATEST_VERSION) || commandID.equals(COMMAND_IN_CHECK_UPDATE_SERVER)
+				|| commandID.equals(COMMAND_IN_UPDATE_CONTENT_REQUEST) || commandID.equals(COMMAND_IN_BENCHMARK_END);
+	}
+
+	@Override
+	protected void connectionClosed(Connection conn) {
+		rolloutEngine.removeClient(conn);
+	}
+	
 	private boolean saveExecutable(String implementation, String deviceType, String version, byte[] content) {
 		return updateStore.saveUpdate(implementation, deviceType, version, implementationSuffix.get(implementation), content);
 	}
@@ -250,10 +324,12 @@ public class UpdateDistributionService extends AbstractSimpleService {
 		for (String deviceType: splitDeviceTypes) {
 			UpdateEntry updateEntry = updateStore.getLatestUpdate("java", deviceType);
 			String latestVersion = null;
-			if (updateEntry == null) {
+			if (updateEntry != null) {
+				// The latest version may still be rolling out to other clients
+				latestVersion = rolloutEngine.getVersionFor(conn, deviceType, updateEntry.version);
+			}
+			if (latestVersion == null) {
 				latestVersion = PARAM_VERSION_ENTRY_UNKNOWN;
-			} else {
-				latestVersion = updateEntry.version;
 			}
 			
 			if (versions != null) {
@@ -264,10 +340,7 @@ public class UpdateDistributionService extends AbstractSimpleService {
 			versions += latestVersion;
 		}
 		if (versions != null) {
-			Command reply = getProtocolHandler().findCommand(COMMAND_OUT_UPDATE_DEVICE_TYPES);
-			reply.findParam(PARAM_DEVICE_TYPE).setData(deviceTypes.getBytes());
-			reply.findParam(PARAM_VERSION).setData(versions.getBytes());
-			sendTo(conn, reply);
+			sendUpdateDeviceTypes(conn, deviceTypes, versions);
 		}
 	}
 
@@ -313,23 +386,26 @@ public class UpdateDistributionService extends AbstractSimpleService {
 			Logger.log("No updates to announce. Use \"" + COMMAND_IN_ADD_UPDATE + "\" command to add an update.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 			return;
 		}
-		Command cmd = getProtocolHandler().findCommand(COMMAND_OUT_UPDATE_DEVICE_TYPES);
-		String concDeviceTypes = null;
-		String concVersions = null;
+		String[] previousVersions = new String[deviceTypes.length];
 		for (int i = 0; i < deviceTypes.length; ++i) {
-			if (concVersions != null) {
-				concDeviceTypes += PARAM_VALUE_SEPARATOR;
-				concVersions += PARAM_VALUE_SEPARATOR;
-			} else {
-				concDeviceTypes = "";
-				concVersions = "";
-			}
-			concDeviceTypes += deviceTypes[i];
-			concVersions += versions[i];
+			UpdateEntry previous = updateStore.getLatestUpdateBefore(implementationTypes[i], deviceTypes[i], versions[i]);
+			previousVersions[i] = previous == null ? null : previous.version;
 		}
-		cmd.findParam(PARAM_DEVICE_TYPE).setData(concDeviceTypes.getBytes());
-		cmd.findParam(PARAM_VERSION).setData(concVersions.getBytes());
-		sendToAll(cmd);
+		rolloutEngine.start(deviceTypes, versions, previousVersions);
+	}
+
+	/**
+	 * Tells a client about an update. Called by the {@link RolloutEngine} when the wave of the client is due.
+	 */
+	void announceTo(Writable conn, String[] deviceTypes, String[] versions) {
+		sendUpdateDeviceTypes(conn, String.join(PARAM_VALUE_SEPARATOR, deviceTypes), String.join(PARAM_VALUE_SEPARATOR, versions));
+	}
+
+	private synchronized void sendUpdateDeviceTypes(Writable conn, String deviceTypes, String versions) {
+		Command cmd = getProtocolHandler().findCommand(COMMAND_OUT_UPDATE_DEVICE_TYPES);
+		cmd.findParam(PARAM_DEVICE_TYPE).setData(deviceTypes.getBytes());
+		cmd.findParam(PARAM_VERSION).setData(versions.getBytes());
+		sendTo(conn, cmd);
 	}
 
 	public void start() {
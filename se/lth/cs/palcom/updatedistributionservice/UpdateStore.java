@@ -183,6 +183,20 @@ class UpdateStore {
 		return latestDeviceTypeMap.get(deviceType);
 	}
 	
+	/**
+	 * @return the latest update of the device type that is older than the version, or null if there is none
+	 */
+	UpdateEntry getLatestUpdateBefore(String implementation, String deviceType, String version) {
+		if (!updateMap.containsKey(implementation) || !updateMap.get(implementation).containsKey(deviceType))
+			return null;
+		UpdateEntry latest = null;
+		for (UpdateEntry updateEntry: updateMap.get(implementation).get(deviceType).values()) {
+			if (UpdateEntry.compareVersion(updateEntry.version, version) < 0 && (latest == null || updateEntry.isVersionGreaterThan(latest)))
+				latest = updateEntry;
+		}
+		return latest;
+	}
+	
 	UpdateEntry getUpdate(String implementation, String deviceType, String version) {
 		// Slow but concise
 		if (updateMap.containsKey(implementation)) {
@@ -0,0 +1,154 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Generates and uses dynamic AppCDS archives for device jars, so that class loading and verification
+ * does not have to be redone from scratch every time a device (or PalComStarter) is started.
+ * The archive is generated by a training run in the background once a new jar has been downloaded, and is
+ * stored next to the jar. Updates do not wait for it: devices started before it is done start without it.
+ * The training run is the main method of this class, so the jar must contain the UpdaterService package
+ * (all devices running an UpdaterService do).
+ * @author splushii
+ *
+ */
+class AppCdsArchive {
+	private static final String ARCHIVE_SUFFIX = ".jsa";
+	private static final String JAR_SUFFIX = ".jar";
+	private static final String CLASS_SUFFIX = ".class";
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final int MAX_SECONDS_TRAINING_RUN = 120;
+	// One training run at a time, so that they do not compete with the devices for the processors
+	private static final ExecutorService trainer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "AppCDS training");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	static String getArchivePath(String pathToJar) {
+		if (pathToJar.endsWith(JAR_SUFFIX)) {
+			return pathToJar.substring(0, pathToJar.length() - JAR_SUFFIX.length()) + ARCHIVE_SUFFIX;
+		}
+		return pathToJar + ARCHIVE_SUFFIX;
+	}
+
+	static boolean hasArchive(String pathToJar) {
+		return new File(getArchivePath(pathToJar)).isFile();
+	}
+
+	/**
+	 * @param pathToJar
+	 * @return JVM options that make the JVM use the jar's archive, or an empty list if there is none
+	 */
+	static List<String> getLaunchArguments(String pathToJar) {
+		List<String> arguments = new ArrayList<String>();
+		if (hasArchive(pathToJar)) {
+			arguments.add("-XX:SharedArchiveFile=" + getArchivePath(pathToJar));
+			// Start anyway if the archive turns out to be unusable
+			arguments.add("-Xshare:auto");
+		}
+		return arguments;
+	}
+
+	/**
+	 * Generates the archive of the jar without waiting for it to be done.
+	 * @param us
+	 * @param pathToJar
+	 */
+	static void generateInBackground(final UpdaterService us, final String pathToJar) {
+		// An archive of an earlier jar with the same path does not match the new jar
+		new File(getArchivePath(pathToJar)).delete();
+		trainer.execute(new Runnable() {
+			@Override
+			public void run() {
+				generate(us, pathToJar);
+			}
+		});
+	}
+
+	/**
+	 * Performs a training run that loads all classes of the jar and dumps them into an archive at exit.
+	 * The archive is dumped to a temporary file first, so that devices never start with half an archive.
+	 * @param us
+	 * @param pathToJar
+	 * @return true if an archive was generated
+	 */
+	private static boolean generate(UpdaterService us, String pathToJar) {
+		File archive = new File(getArchivePath(pathToJar));
+		if (archive.exists()) {
+			archive.delete();
+		}
+		File partialArchive = new File(archive.getPath() + PARTIAL_SUFFIX);
+		partialArchive.delete();
+		String[] arguments = {"java", "-XX:ArchiveClassesAtExit=" + partialArchive.getPath(), "-cp", pathToJar, AppCdsArchive.class.getName(), pathToJar};
+		us.log("Generating AppCDS archive for " + pathToJar, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		long startTimeMillis = System.currentTimeMillis();
+		ProcessBuilder pb = new ProcessBuilder(arguments);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		try {
+			Process p = pb.start();
+			if (!p.waitFor(MAX_SECONDS_TRAINING_RUN, TimeUnit.SECONDS)) {
+				p.destroyForcibly();
+				us.log("AppCDS training run for " + pathToJar + " timed out.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				partialArchive.delete();
+				return false;
+			}
+			if (p.exitValue() != 0) {
+				us.log("AppCDS training run for " + pathToJar + " failed with exit value " + p.exitValue() + ". Devices will start without archive.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				partialArchive.delete();
+				return false;
+			}
+		} catch (IOException | InterruptedException e) {
+			us.log("Could not perform AppCDS training run for " + pathToJar + ": " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			partialArchive.delete();
+			return false;
+		}
+		if (!partialArchive.isFile()) {
+			us.log("AppCDS training run did not produce an archive. Is the JVM older than 13?", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		// The jar may have been pruned during the training run
+		if (!new File(pathToJar).isFile() || !partialArchive.renameTo(archive)) {
+			partialArchive.delete();
+			us.log("AppCDS archive for " + pathToJar + " could not be stored.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		us.log("AppCDS archive " + archive.getPath() + " generated in " + (System.currentTimeMillis() - startTimeMillis) + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		return true;
+	}
+
+	/**
+	 * Training run. Loads every class in the given jar without initializing it, and exits.
+	 */
+	public static void main(String[] args) throws IOException {
+		ClassLoader loader = AppCdsArchive.class.getClassLoader();
+		try (JarFile jar = new JarFile(args[0])) {
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (!name.endsWith(CLASS_SUFFIX) || name.endsWith("module-info.class"))
+					continue;
+				try {
+					Class.forName(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'), false, loader);
+				} catch (Throwable t) {/* Classes that can not be loaded are simply not archived */}
+			}
+		}
+		System.exit(0);
+	}
+}
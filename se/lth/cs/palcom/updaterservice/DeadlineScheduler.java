@@ -0,0 +1,185 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps at most one deadline per key, ordered in a binary min-heap. Scheduling, rescheduling and
+ * cancelling a key is a hash lookup plus O(log n) heap work, and {@link #awaitDue(List)} hands out
+ * exactly the keys whose deadlines have passed. Every key gets one entry the first time it is scheduled,
+ * and the entry is reused from then on, so a steady stream of rechecks does not allocate.
+ * @author splushii
+ *
+ * @param <K> the key type, for example {@link MonitoredDevice}
+ */
+class DeadlineScheduler<K> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static class Entry<K> {
+		final K key;
+		long deadlineNanos;
+		// Position in the heap, or -1 if not scheduled
+		int index = -1;
+		Entry(K key) {
+			this.key = key;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Map<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+	@SuppressWarnings("unchecked")
+	private Entry<K>[] heap = (Entry<K>[]) new Entry<?>[INITIAL_CAPACITY];
+	private int size = 0;
+	private boolean woken = false;
+
+	/**
+	 * Schedules the key to be due after the delay. If the key is already scheduled,
+	 * the earlier of the two deadlines is kept.
+	 * @return false if the key was already scheduled
+	 */
+	boolean schedule(K key, long delayMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		lock.lock();
+		try {
+			Entry<K> e = entries.get(key);
+			if (e == null) {
+				e = new Entry<K>(key);
+				entries.put(key, e);
+			}
+			boolean added = e.index < 0;
+			if (added) {
+				e.deadlineNanos = deadline;
+				if (size == heap.length) {
+					heap = Arrays.copyOf(heap, size * 2);
+				}
+				e.index = size;
+				heap[size++] = e;
+				siftUp(e.index);
+			} else if (deadline - e.deadlineNanos < 0) {
+				e.deadlineNanos = deadline;
+				siftUp(e.index);
+			} else {
+				return false;
+			}
+			if (heap[0] == e) {
+				changed.signalAll();
+			}
+			return added;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Unschedules the key, so that a later {@link #schedule(Object, long)} sets its deadline even if it is later.
+	 * @return false if the key was not scheduled
+	 */
+	boolean cancel(K key) {
+		lock.lock();
+		try {
+			Entry<K> e = entries.get(key);
+			if (e == null || e.index < 0)
+				return false;
+			removeAt(e.index);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until at least one key is due, or until {@link #wakeUp()} is called, and moves all
+	 * due keys to the list, earliest deadline first.
+	 * @param due the due keys are added here. May be left empty if woken up.
+	 */
+	void awaitDue(List<K> due) throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				while (size > 0 && heap[0].deadlineNanos - now <= 0) {
+					due.add(heap[0].key);
+					removeAt(0);
+				}
+				if (!due.isEmpty() || woken) {
+					woken = false;
+					return;
+				}
+				if (size == 0) {
+					changed.await();
+				} else {
+					changed.awaitNanos(heap[0].deadlineNanos - now);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the current or next call to {@link #awaitDue(List)} return, due keys or not.
+	 */
+	void wakeUp() {
+		lock.lock();
+		try {
+			woken = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The methods below must be called with lock held
+
+	private void removeAt(int i) {
+		Entry<K> removed = heap[i];
+		removed.index = -1;
+		Entry<K> last = heap[--size];
+		heap[size] = null;
+		if (i < size) {
+			heap[i] = last;
+			last.index = i;
+			siftDown(i);
+			siftUp(last.index);
+		}
+	}
+
+	private void siftUp(int i) {
+		Entry<K> e = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			Entry<K> p = heap[parent];
+			if (e.deadlineNanos - p.deadlineNanos >= 0)
+				break;
+			heap[i] = p;
+			p.index = i;
+			i = parent;
+		}
+		heap[i] = e;
+		e.index = i;
+	}
+
+	private void siftDown(int i) {
+		Entry<K> e = heap[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && heap[right].deadlineNanos - heap[child].deadlineNanos < 0)
+				child = right;
+			if (e.deadlineNanos - heap[child].deadlineNanos <= 0)
+				break;
+			heap[i] = heap[child];
+			heap[i].index = i;
+			i = child;
+		}
+		heap[i] = e;
+		e.index = i;
+	}
+}
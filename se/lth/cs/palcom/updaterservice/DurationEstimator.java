@@ -0,0 +1,142 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.HashMap;
+
+import se.lth.cs.palcom.device.DeviceProperties;
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Learns how long the steps of starting and updating devices take, per device type and version, and derives
+ * timeouts from that instead of using fixed constants. Like the retransmission timer of TCP, every observed
+ * duration updates an exponentially weighted moving average of the duration and of its deviation, and the
+ * timeout is the average plus four deviations. So a fast device gets a short timeout and fails fast, and a
+ * slow one gets as long as it usually needs plus a margin.
+ * <p>
+ * A version that has not been observed yet (typically a new version during an update) borrows the estimate of
+ * its device type. The estimates are saved in monitoring.properties, so they survive restarts and updates.
+ * @author splushii
+ *
+ */
+class DurationEstimator {
+	enum Kind {
+		/** From process start until the device is found by PalCom discovery */
+		DISCOVERY("discovery"),
+		/** From process start until the device has confirmed the first Update Protocol message */
+		HANDSHAKE("handshake"),
+		/** One Update Protocol message to a running device and its reply */
+		REPLY("reply"),
+		/** Asking a device to contact the update server, until it confirms that it could */
+		UPDATE_SERVER_CHECK("updateServerCheck"),
+		/** Requesting update data from the update server until it has arrived */
+		DOWNLOAD("download");
+
+		final String keyPrefix;
+		Kind(String keyPrefix) {
+			this.keyPrefix = keyPrefix;
+		}
+	}
+
+	private static final double GAIN = 0.125;
+	private static final double DEVIATION_GAIN = 0.25;
+	private static final int DEVIATIONS = 4;
+	private static final long MIN_TIMEOUT_MILLIS = 1000;
+	// A few slow outliers must not make a timeout unbounded
+	private static final int MAX_TIMES_DEFAULT = 10;
+
+	private static class Estimate {
+		double meanMillis;
+		double deviationMillis;
+		long samples;
+	}
+
+	private final UpdaterService us;
+	// May be null, then nothing is saved
+	private final DeviceProperties properties;
+	private final HashMap<String, Estimate> estimates = new HashMap<String, Estimate>();
+
+	DurationEstimator(UpdaterService us, DeviceProperties properties) {
+		this.us = us;
+		this.properties = properties;
+	}
+
+	/**
+	 * Records an observed duration, for the version and for its device type.
+	 * @param version may be null if not known
+	 */
+	synchronized void record(Kind kind, String deviceType, String version, long millis) {
+		if (millis < 0)
+			return;
+		update(key(kind, deviceType, null), millis);
+		if (version != null)
+			update(key(kind, deviceType, version), millis);
+	}
+
+	/**
+	 * @param version may be null if not known
+	 * @param defaultMillis used until there is something to learn from
+	 * @return how long to wait for the step before giving up
+	 */
+	synchronized long timeoutMillis(Kind kind, String deviceType, String version, long defaultMillis) {
+		Estimate e = null;
+		if (version != null)
+			e = get(key(kind, deviceType, version));
+		if (e == null)
+			e = get(key(kind, deviceType, null));
+		if (e == null)
+			return defaultMillis;
+		long timeout = (long) Math.ceil(e.meanMillis + DEVIATIONS * e.deviationMillis);
+		return Math.min(Math.max(timeout, MIN_TIMEOUT_MILLIS), defaultMillis * MAX_TIMES_DEFAULT);
+	}
+
+	/**
+	 * Same as {@link #timeoutMillis(Kind, String, String, long)}, rounded up to whole seconds for the
+	 * waits of the Update Protocol.
+	 */
+	int timeoutSeconds(Kind kind, String deviceType, String version, int defaultSeconds) {
+		return (int) ((timeoutMillis(kind, deviceType, version, defaultSeconds*1000L) + 999) / 1000);
+	}
+
+	private void update(String key, long millis) {
+		Estimate e = get(key);
+		if (e == null) {
+			e = new Estimate();
+			e.meanMillis = millis;
+			e.deviationMillis = millis / 2.0;
+			estimates.put(key, e);
+		} else {
+			e.deviationMillis += DEVIATION_GAIN * (Math.abs(millis - e.meanMillis) - e.deviationMillis);
+			e.meanMillis += GAIN * (millis - e.meanMillis);
+		}
+		e.samples++;
+		if (properties != null)
+			properties.setProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_LEARNED_DURATIONS, key,
+					Math.round(e.meanMillis) + "," + Math.round(e.deviationMillis) + "," + e.samples);
+	}
+
+	private Estimate get(String key) {
+		Estimate e = estimates.get(key);
+		if (e != null || properties == null)
+			return e;
+		String value = properties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_LEARNED_DURATIONS, key);
+		if (value == null)
+			return null;
+		String[] parts = value.split(",");
+		try {
+			e = new Estimate();
+			e.meanMillis = Long.parseLong(parts[0].trim());
+			e.deviationMillis = Long.parseLong(parts[1].trim());
+			e.samples = Long.parseLong(parts[2].trim());
+		} catch (RuntimeException ex) {
+			us.log("Invalid learned duration: " + UpdaterService.NAMESPACE_UPDATERSERVICE_LEARNED_DURATIONS + "@" + key + "=" + value + ". Ignoring it.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return null;
+		}
+		estimates.put(key, e);
+		return e;
+	}
+
+	private static String key(Kind kind, String deviceType, String version) {
+		if (version == null)
+			return kind.keyPrefix + "." + deviceType;
+		return kind.keyPrefix + "." + deviceType + "-" + version;
+	}
+}
@@ -0,0 +1,108 @@
+package se.lth.cs.palcom.updaterservice;
+
+/**
+ * Keeps short discovery glitches from restarting healthy devices, like route flap damping in BGP.
+ * A device that discovery says is gone, but whose process has not exited, is only restarted once it
+ * has been unreachable for the confirmation time. Every time discovery loses the device its penalty
+ * grows, and the penalty halves every half-life. A device whose penalty has gone over the suppress
+ * threshold is flapping, and is not restarted for being unreachable until the penalty has decayed
+ * below the reuse threshold. The penalty is capped, so that no device is suppressed for longer than
+ * the max suppress time.
+ * <p>
+ * Only unreachability is damped. A process that exits, or stops sending heartbeats, is restarted as before.
+ * There is one FlapDamper per monitored device. It is used from several threads.
+ * @author splushii
+ *
+ */
+class FlapDamper {
+	/**
+	 * Settings shared by all devices, from monitoring.properties.
+	 */
+	static class Settings {
+		long penaltyPerFlap = 1000;
+		long halfLifeMillis = 60*1000;
+		long suppressThreshold = 3000;
+		long reuseThreshold = 750;
+		long maxSuppressMillis = 5*60*1000;
+		long confirmMillis = 5000;
+	}
+
+	private final Settings settings;
+	private double penalty = 0;
+	private long penaltyMillis = 0;
+	private boolean suppressing = false;
+	// When the device was found unreachable, or -1 if it is reachable
+	private long unreachableSinceMillis = -1;
+	private int flaps = 0;
+	private int suppressedRestarts = 0;
+
+	FlapDamper(Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Records that discovery has lost the device.
+	 */
+	synchronized void recordUnreachable(long now) {
+		decay(now);
+		flaps++;
+		double maxPenalty = settings.reuseThreshold * Math.pow(2, (double) settings.maxSuppressMillis / settings.halfLifeMillis);
+		penalty = Math.min(penalty + settings.penaltyPerFlap, maxPenalty);
+		if (penalty >= settings.suppressThreshold)
+			suppressing = true;
+		if (unreachableSinceMillis < 0)
+			unreachableSinceMillis = now;
+	}
+
+	/**
+	 * Records that the device is reachable. If it was unreachable, a restart was avoided.
+	 */
+	synchronized void recordReachable() {
+		if (unreachableSinceMillis >= 0) {
+			suppressedRestarts++;
+			unreachableSinceMillis = -1;
+		}
+	}
+
+	/**
+	 * Records that the device has been restarted, so that it is not counted as a restart avoided.
+	 */
+	synchronized void recordRestarted() {
+		unreachableSinceMillis = -1;
+	}
+
+	/**
+	 * @return 0 if the device has been unreachable long enough to be restarted, otherwise how long until it has
+	 */
+	synchronized long millisUntilConfirmed(long now) {
+		if (unreachableSinceMillis < 0)
+			unreachableSinceMillis = now;
+		long wait = unreachableSinceMillis + settings.confirmMillis - now;
+		decay(now);
+		if (suppressing) {
+			if (penalty > settings.reuseThreshold) {
+				long untilReuse = (long) Math.ceil(settings.halfLifeMillis * Math.log(penalty / settings.reuseThreshold) / Math.log(2));
+				wait = Math.max(wait, untilReuse);
+			} else {
+				suppressing = false;
+			}
+		}
+		return Math.max(0, wait);
+	}
+
+	synchronized boolean isSuppressing() {
+		return suppressing;
+	}
+
+	private void decay(long now) {
+		if (penalty > 0 && now > penaltyMillis)
+			penalty *= Math.pow(0.5, (double) (now - penaltyMillis) / settings.halfLifeMillis);
+		penaltyMillis = now;
+	}
+
+	@Override
+	public synchronized String toString() {
+		decay(System.currentTimeMillis());
+		return "flaps=" + flaps + " penalty=" + Math.round(penalty) + (suppressing ? " (suppressed)" : "") + " restartsAvoided=" + suppressedRestarts;
+	}
+}
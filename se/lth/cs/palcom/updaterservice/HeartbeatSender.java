@@ -0,0 +1,142 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs on monitored devices once they have passed the startup check, and tells PalComStarter several times
+ * a second that the device is alive, without going through PalCom discovery. Every heartbeat carries a few
+ * health fields: heap use, how late the heartbeat itself was (which shows GC pauses and CPU starvation), the
+ * number of deadlocked threads, and the last dispatch probe that the device has handled. A device hosted
+ * in-process shares the JVM with PalComStarter and other devices, so only deadlocks among its own threads are counted.
+ * <p>
+ * The heartbeats come from a thread of their own, so they go on even if the threads that do the work of the
+ * device are stuck. That is what the probes are for: PalComStarter sends them as PalCom commands, so they are
+ * handled by the thread that dispatches commands to the device, and a probe that is not answered in time shows
+ * a device that is alive but hung, even without a deadlock.
+ * <p>
+ * The fields are sent as "name=value" pairs separated by commas. Unknown fields are ignored by the receiver.
+ * @author splushii
+ *
+ */
+class HeartbeatSender {
+	static final long HEARTBEAT_INTERVAL_MILLIS = 250;
+	static final String FIELD_HEAP_USED = "heapUsed";
+	static final String FIELD_HEAP_MAX = "heapMax";
+	static final String FIELD_LAG_MILLIS = "lagMillis";
+	static final String FIELD_DEADLOCKED_THREADS = "deadlocked";
+	static final String FIELD_PROBE = "probe";
+	// Looking for deadlocks walks all threads, so do it about once a second
+	private static final int BEATS_PER_DEADLOCK_CHECK = 4;
+
+	private final SocketSender socketSender;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	// The threads of the device if it is hosted in-process, or null if it has the JVM to itself
+	private final ThreadGroup deviceThreads;
+	private ScheduledExecutorService timer;
+	private long nextBeatMillis;
+	private int beats = 0;
+	private int deadlockedThreads = 0;
+	// The last probe handled by the dispatch thread of the device
+	private volatile long probeID = 0;
+
+	/**
+	 * Must be created by a thread of the device.
+	 */
+	HeartbeatSender(SocketSender socketSender) {
+		this.socketSender = socketSender;
+		deviceThreads = InProcessDeviceHost.getDeviceThreadGroup();
+	}
+
+	synchronized void start() {
+		if (timer != null)
+			return;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		nextBeatMillis = System.currentTimeMillis();
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				beat();
+			}
+		}, 0, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Called by the thread that dispatches PalCom commands to the device, when it handles a probe.
+	 */
+	void probeHandled(long id) {
+		probeID = id;
+	}
+
+	private void beat() {
+		long now = System.currentTimeMillis();
+		long lag = Math.max(0, now - nextBeatMillis);
+		nextBeatMillis = now - lag + HEARTBEAT_INTERVAL_MILLIS;
+		if (beats++ % BEATS_PER_DEADLOCK_CHECK == 0) {
+			deadlockedThreads = countDeadlockedThreads();
+		}
+		Runtime rt = Runtime.getRuntime();
+		socketSender.sendHeartbeat(FIELD_HEAP_USED + "=" + (rt.totalMemory() - rt.freeMemory())
+				+ "," + FIELD_HEAP_MAX + "=" + rt.maxMemory()
+				+ "," + FIELD_LAG_MILLIS + "=" + lag
+				+ "," + FIELD_DEADLOCKED_THREADS + "=" + deadlockedThreads
+				+ "," + FIELD_PROBE + "=" + probeID);
+	}
+
+	private int countDeadlockedThreads() {
+		long[] deadlocked = threads.findDeadlockedThreads();
+		if (deadlocked == null)
+			return 0;
+		if (deviceThreads == null)
+			return deadlocked.length;
+		Thread[] own = new Thread[deviceThreads.activeCount() + 1];
+		int nbrOfThreads = deviceThreads.enumerate(own, true);
+		Set<Long> ownIDs = new HashSet<Long>();
+		for (int i = 0; i < nbrOfThreads; i++) {
+			ownIDs.add(own[i].getId());
+		}
+		int count = 0;
+		for (long id: deadlocked) {
+			if (ownIDs.contains(id))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the value of the field in the health fields of a heartbeat, or defaultValue if it is not there
+	 */
+	static long getField(String health, String field, long defaultValue) {
+		for (String pair: health.split(",")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0 && pair.substring(0, eq).equals(field)) {
+				try {
+					return Long.parseLong(pair.substring(eq + 1).trim());
+				} catch (NumberFormatException e) {
+					return defaultValue;
+				}
+			}
+		}
+		return defaultValue;
+	}
+}
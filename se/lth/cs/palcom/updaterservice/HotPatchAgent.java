@@ -0,0 +1,50 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Java agent that gives a monitored device access to {@link Instrumentation}, which is needed to
+ * redefine classes when a PATCH update is hot patched. A device jar enables it by declaring this
+ * class as Premain-Class (PalComStarter then adds -javaagent when starting the device) or as
+ * Launcher-Agent-Class, together with "Can-Redefine-Classes: true".
+ * @author splushii
+ *
+ */
+public class HotPatchAgent {
+	private static final String PREMAIN_CLASS = "Premain-Class";
+	private static final String CAN_REDEFINE_CLASSES = "Can-Redefine-Classes";
+	private static volatile Instrumentation instrumentation;
+
+	public static void premain(String args, Instrumentation inst) {
+		instrumentation = inst;
+	}
+
+	public static void agentmain(String args, Instrumentation inst) {
+		instrumentation = inst;
+	}
+
+	static Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * @param pathToJar
+	 * @return true if the jar declares this class as its premain agent and allows class redefinition
+	 */
+	static boolean isAgentJar(String pathToJar) {
+		try (JarFile jar = new JarFile(pathToJar)) {
+			Manifest manifest = jar.getManifest();
+			if (manifest == null)
+				return false;
+			Attributes attributes = manifest.getMainAttributes();
+			return HotPatchAgent.class.getName().equals(attributes.getValue(PREMAIN_CLASS))
+					&& "true".equalsIgnoreCase(attributes.getValue(CAN_REDEFINE_CLASSES));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
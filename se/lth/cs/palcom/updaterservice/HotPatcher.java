@@ -0,0 +1,166 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Runs on a monitored device and applies a PATCH update to the running JVM. Classes that differ between
+ * the running jar and the new jar are redefined through {@link HotPatchAgent}. Changed classes that are
+ * not loaded yet are handed out by a transformer when they are loaded. If the patch adds or removes
+ * classes, or if the JVM refuses the redefinition (for example because fields or methods were added),
+ * nothing is changed and PalComStarter falls back to a normal restart.
+ * @author splushii
+ *
+ */
+class HotPatcher {
+	private static final String CLASS_SUFFIX = ".class";
+	private static String currentJarPath;
+	private static final Map<String, byte[]> pendingClasses = new ConcurrentHashMap<String, byte[]>();
+	private static boolean transformerInstalled = false;
+	private UpdaterService us;
+
+	HotPatcher(UpdaterService us) {
+		this.us = us;
+	}
+
+	boolean apply(String pathToNewJar) {
+		// Patches may arrive from several threads, but the JVM must be patched one jar at a time
+		synchronized (HotPatcher.class) {
+			return applyPatch(pathToNewJar);
+		}
+	}
+
+	private boolean applyPatch(String pathToNewJar) {
+		Instrumentation inst = HotPatchAgent.getInstrumentation();
+		if (inst == null || !inst.isRedefineClassesSupported()) {
+			us.log("Hot patching is not possible: the device was not started with " + HotPatchAgent.class.getSimpleName() + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		String pathToCurrentJar = getCurrentJarPath();
+		if (pathToCurrentJar == null) {
+			us.log("Hot patching is not possible: could not find the running jar.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		Map<String, byte[]> currentClasses;
+		Map<String, byte[]> newClasses;
+		try {
+			currentClasses = readClasses(pathToCurrentJar);
+			newClasses = readClasses(pathToNewJar);
+		} catch (IOException e) {
+			us.log("Hot patching is not possible: could not read jars (" + e.getMessage() + ").", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		if (!currentClasses.keySet().equals(newClasses.keySet())) {
+			us.log("Hot patching is not possible: the patch adds or removes classes.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			return false;
+		}
+		Map<String, byte[]> changedClasses = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> entry: newClasses.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), currentClasses.get(entry.getKey()))) {
+				changedClasses.put(entry.getKey(), entry.getValue());
+			}
+		}
+		// Redefine the changed classes that are already loaded from our jar. The rest are patched when loaded.
+		ClassLoader loader = HotPatcher.class.getClassLoader();
+		List<ClassDefinition> definitions = new LinkedList<ClassDefinition>();
+		Map<String, byte[]> notLoaded = new HashMap<String, byte[]>(changedClasses);
+		for (Class<?> c: inst.getInitiatedClasses(loader)) {
+			byte[] bytes = notLoaded.remove(c.getName());
+			if (bytes != null && c.getClassLoader() == loader) {
+				definitions.add(new ClassDefinition(c, bytes));
+			}
+		}
+		try {
+			inst.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+		} catch (ClassNotFoundException | UnmodifiableClassException | UnsupportedOperationException | LinkageError e) {
+			us.log("Hot patching failed, no classes were redefined: " + e, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		pendingClasses.putAll(notLoaded);
+		if (!pendingClasses.isEmpty() && !transformerInstalled) {
+			inst.addTransformer(new PendingClassTransformer());
+			transformerInstalled = true;
+		}
+		currentJarPath = pathToNewJar;
+		us.log("Hot patched " + definitions.size() + " loaded class(es). " + notLoaded.size() + " changed class(es) will be patched when loaded.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		return true;
+	}
+
+	private static String getCurrentJarPath() {
+		if (currentJarPath == null) {
+			// The code source may be missing, or a location that is not a file, like a jar nested in another jar
+			try {
+				ProtectionDomain pd = HotPatcher.class.getProtectionDomain();
+				currentJarPath = Paths.get(pd.getCodeSource().getLocation().toURI()).toString();
+			} catch (URISyntaxException | NullPointerException | FileSystemNotFoundException | IllegalArgumentException | SecurityException e) {
+				return null;
+			}
+		}
+		return currentJarPath;
+	}
+
+	/**
+	 * @param pathToJar
+	 * @return the class files in the jar, mapped from binary class name to content
+	 * @throws IOException
+	 */
+	static Map<String, byte[]> readClasses(String pathToJar) throws IOException {
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		try (JarFile jar = new JarFile(pathToJar)) {
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || !name.endsWith(CLASS_SUFFIX))
+					continue;
+				String className = name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.');
+				classes.put(className, readFully(jar.getInputStream(entry)));
+			}
+		}
+		return classes;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class PendingClassTransformer implements ClassFileTransformer {
+		@Override
+		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			if (classBeingRedefined != null || className == null || loader != HotPatcher.class.getClassLoader())
+				return null;
+			return pendingClasses.remove(className.replace('/', '.'));
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Hosts a monitored device inside the PalComStarter JVM instead of in a JVM of its own. The device jar
+ * is loaded by its own class loader (with the platform class loader as parent, so that the device gets
+ * its own copy of the PalCom classes) and its main method is run in a dedicated thread group. All threads
+ * started by the device end up in that group, which is what we use to stop the device again.
+ * @author splushii
+ *
+ */
+class InProcessDeviceHost {
+	/** Prefix of the thread group name. Used by {@link UpdaterService} to see if it is hosted in-process. */
+	static final String THREAD_GROUP_PREFIX = "palcom-in-process-";
+	/** Set by the Eclipse jar-in-jar loader. Such jars register a global URL handler and cannot be hosted in-process. */
+	private static final String JAR_IN_JAR_MAIN_CLASS = "Rsrc-Main-Class";
+	private static final long DEFAULT_STOP_GRACE_MILLIS = 2000;
+	private UpdaterService us;
+	private String pathToJar;
+	private String[] arguments;
+	private URLClassLoader loader;
+	private ThreadGroup threadGroup;
+	private Thread mainThread;
+
+	InProcessDeviceHost(UpdaterService us, String pathToJar, String[] arguments) {
+		this.us = us;
+		this.pathToJar = pathToJar;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * @param pathToJar
+	 * @return true if the jar has a main class that can be started by this host
+	 */
+	static boolean canHost(String pathToJar) {
+		return getMainClassName(pathToJar) != null;
+	}
+
+	private static String getMainClassName(String pathToJar) {
+		try (JarFile jar = new JarFile(pathToJar)) {
+			Manifest manifest = jar.getManifest();
+			if (manifest == null)
+				return null;
+			Attributes attributes = manifest.getMainAttributes();
+			if (attributes.getValue(JAR_IN_JAR_MAIN_CLASS) != null)
+				return null;
+			return attributes.getValue(Attributes.Name.MAIN_CLASS);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	synchronized boolean start(String name) {
+		if (isAlive()) {
+			us.log("In-process device " + name + " is already running.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		String mainClassName = getMainClassName(pathToJar);
+		if (mainClassName == null) {
+			us.log("Could not find a usable Main-Class in " + pathToJar + ". Cannot host it in-process.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+		final Method main;
+		try {
+			URL jarURL = new File(pathToJar).toURI().toURL();
+			loader = new URLClassLoader(new URL[] {jarURL}, ClassLoader.getPlatformClassLoader());
+			Class<?> mainClass = Class.forName(mainClassName, false, loader);
+			main = mainClass.getMethod("main", String[].class);
+		} catch (IOException | ReflectiveOperationException e) {
+			us.log("Could not load " + mainClassName + " from " + pathToJar + ": " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			closeLoader();
+			return false;
+		}
+		threadGroup = new ThreadGroup(THREAD_GROUP_PREFIX + name);
+		mainThread = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					main.invoke(null, (Object) arguments);
+				} catch (ReflectiveOperationException e) {
+					us.log("In-process device " + name + " terminated with: " + e.getCause(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				}
+			}
+		}, THREAD_GROUP_PREFIX + name + "-main");
+		mainThread.setContextClassLoader(loader);
+		mainThread.start();
+		return true;
+	}
+
+	/**
+	 * Interrupts all threads of the device and waits for them to finish. Threads that do not finish
+	 * within the grace period are left behind, but the class loader is closed anyway.
+	 */
+	synchronized void stop() {
+		if (threadGroup == null)
+			return;
+		threadGroup.interrupt();
+		long stopTimeMillis = System.currentTimeMillis() + DEFAULT_STOP_GRACE_MILLIS;
+		Thread[] threads = new Thread[threadGroup.activeCount() + 1];
+		int nbrOfThreads = threadGroup.enumerate(threads, true);
+		for (int i = 0; i < nbrOfThreads; ++i) {
+			long timeLeft = stopTimeMillis - System.currentTimeMillis();
+			if (timeLeft <= 0)
+				break;
+			try {
+				threads[i].join(timeLeft);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		int leftBehind = threadGroup.activeCount();
+		if (leftBehind > 0) {
+			us.log(leftBehind + " thread(s) of " + threadGroup.getName() + " did not stop within " + DEFAULT_STOP_GRACE_MILLIS + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		}
+		closeLoader();
+		threadGroup = null;
+		mainThread = null;
+	}
+
+	synchronized boolean isAlive() {
+		return threadGroup != null && threadGroup.activeCount() > 0;
+	}
+
+	private void closeLoader() {
+		if (loader == null)
+			return;
+		try {
+			loader.close();
+		} catch (IOException e) {
+			us.log("Could not close class loader for " + pathToJar, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		}
+		loader = null;
+	}
+
+	/**
+	 * @return true if the calling thread belongs to a device hosted by an {@link InProcessDeviceHost}
+	 */
+	static boolean isHostedInProcess() {
+		return getDeviceThreadGroup() != null;
+	}
+
+	/**
+	 * @return the thread group of all threads of the device that the calling thread belongs to, or null if
+	 * the calling thread does not belong to a device hosted by an {@link InProcessDeviceHost}
+	 */
+	static ThreadGroup getDeviceThreadGroup() {
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		while (group != null) {
+			if (group.getName().startsWith(THREAD_GROUP_PREFIX))
+				return group;
+			group = group.getParent();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,175 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+/**
+ * Digest of the code in a jar, to tell whether a new version actually changes anything. A build that is only
+ * re-tagged or re-packaged has the same code as the version before it, and there is no need to restart the
+ * devices that run it.
+ * <p>
+ * The digest covers the uncompressed content of every entry, so compression and timestamps do not matter. Entries
+ * that do not affect how the code runs are left out: signature files, and the entries matching the comma separated
+ * patterns in general@ignorableJarEntries (default META-INF/maven/**). In the patterns, * matches within a
+ * directory and ** across directories. Of the manifest only the main attributes count, except those that just
+ * describe the build, listed in general@ignorableManifestAttributes.
+ * @author splushii
+ *
+ */
+class JarDigest {
+	private static final String ALGORITHM = "SHA-256";
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+	private static final String DEFAULT_IGNORABLE_ENTRIES = "META-INF/maven/**";
+	private static final String DEFAULT_IGNORABLE_MANIFEST_ATTRIBUTES = "Implementation-Version,Specification-Version,"
+			+ "Build-Time,Build-Jdk,Build-Jdk-Spec,Built-By,Created-By,Bnd-LastModified";
+	private static final Pattern SIGNATURE = Pattern.compile("META-INF/[^/]+\\.(SF|RSA|DSA|EC)");
+
+	private final List<Pattern> ignorableEntries = new ArrayList<Pattern>();
+	private final List<String> ignorableManifestAttributes = new ArrayList<String>();
+
+	JarDigest(UpdaterService us) {
+		for (String glob: split(us.getGeneralProperty(UpdaterService.KEY_IGNORABLE_JAR_ENTRIES, DEFAULT_IGNORABLE_ENTRIES))) {
+			ignorableEntries.add(toPattern(glob));
+		}
+		for (String attribute: split(us.getGeneralProperty(UpdaterService.KEY_IGNORABLE_MANIFEST_ATTRIBUTES, DEFAULT_IGNORABLE_MANIFEST_ATTRIBUTES))) {
+			ignorableManifestAttributes.add(attribute.toLowerCase());
+		}
+	}
+
+	/**
+	 * @return true if both jars exist and hold the same code
+	 */
+	boolean sameCode(String jarPath, String otherJarPath) {
+		if (jarPath == null || otherJarPath == null)
+			return false;
+		try {
+			return MessageDigest.isEqual(digest(jarPath), digest(otherJarPath));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the digest of the code in the jar
+	 */
+	byte[] digest(String jarPath) throws IOException {
+		MessageDigest total = newDigest();
+		MessageDigest entryDigest = newDigest();
+		try (JarFile jar = new JarFile(jarPath, false)) {
+			// Sorted by name, so that the order of the entries in the jar does not matter
+			TreeMap<String, byte[]> entries = new TreeMap<String, byte[]>();
+			Enumeration<JarEntry> e = jar.entries();
+			while (e.hasMoreElements()) {
+				JarEntry entry = e.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || name.equals(MANIFEST) || isIgnorable(name))
+					continue;
+				InputStream in = jar.getInputStream(entry);
+				try {
+					entries.put(name, digest(entryDigest, in));
+				} finally {
+					in.close();
+				}
+			}
+			Manifest manifest = jar.getManifest();
+			if (manifest != null)
+				entries.put(MANIFEST, digestMainAttributes(entryDigest, manifest));
+			for (Map.Entry<String, byte[]> entry: entries.entrySet()) {
+				total.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+				total.update((byte) 0);
+				total.update(entry.getValue());
+			}
+		}
+		return total.digest();
+	}
+
+	private boolean isIgnorable(String name) {
+		if (SIGNATURE.matcher(name).matches())
+			return true;
+		for (Pattern p: ignorableEntries) {
+			if (p.matcher(name).matches())
+				return true;
+		}
+		return false;
+	}
+
+	private byte[] digestMainAttributes(MessageDigest md, Manifest manifest) {
+		TreeMap<String, String> attributes = new TreeMap<String, String>();
+		for (Map.Entry<Object, Object> a: manifest.getMainAttributes().entrySet()) {
+			String name = ((Attributes.Name) a.getKey()).toString().toLowerCase();
+			if (!ignorableManifestAttributes.contains(name))
+				attributes.put(name, String.valueOf(a.getValue()));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> a: attributes.entrySet()) {
+			byte[] line = (a.getKey() + ": " + a.getValue() + "\n").getBytes(StandardCharsets.UTF_8);
+			bytes.write(line, 0, line.length);
+		}
+		return md.digest(bytes.toByteArray());
+	}
+
+	private static byte[] digest(MessageDigest md, InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			md.update(buffer, 0, n);
+		}
+		return md.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Turns a pattern like META-INF/maven/** or docs/*.txt into a regular expression.
+	 */
+	private static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+		while (i < glob.length()) {
+			if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i += 2;
+			} else if (glob.charAt(i) == '*') {
+				regex.append("[^/]*");
+				i++;
+			} else {
+				int next = glob.indexOf('*', i);
+				if (next < 0)
+					next = glob.length();
+				regex.append(Pattern.quote(glob.substring(i, next)));
+				i = next;
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private static List<String> split(String value) {
+		List<String> result = new ArrayList<String>();
+		for (String s: value.split(",")) {
+			if (!s.trim().isEmpty())
+				result.add(s.trim());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,111 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Measures the memory of PalComStarter and its monitored devices, and compares hosting devices in separate
+ * JVMs with hosting them in-process. Reads /proc, so it only gives numbers on Linux.
+ * <p>
+ * Memory is measured as proportional set size (PSS) where the kernel has it, so that pages shared between
+ * JVMs, like those of the JVM itself, are split between them instead of being counted once for every JVM.
+ * Otherwise the resident set size is used. A device in a separate JVM costs the memory of its process. A
+ * device hosted in-process costs what PalComStarter has grown by since before it started any device, shared
+ * evenly by the devices it hosts.
+ * @author splushii
+ *
+ */
+class MemoryBenchmark {
+	static final long UNKNOWN = -1;
+	private static final String SMAPS_ROLLUP_PSS = "Pss:";
+	private static final String STATUS_RSS = "VmRSS:";
+
+	// Memory of PalComStarter before it started any device
+	private static volatile long baselineKiloBytes = UNKNOWN;
+
+	/**
+	 * Remembers the memory of this process, to tell what hosting devices in-process adds. Called once,
+	 * before any monitored device is started.
+	 */
+	static void recordBaseline() {
+		baselineKiloBytes = readKiloBytes(ProcessHandle.current().pid());
+	}
+
+	/**
+	 * @param pid
+	 * @return proportional set size in kB, or resident set size if PSS is not known, or UNKNOWN if neither could be read
+	 */
+	static long readKiloBytes(long pid) {
+		long pss = readField("/proc/" + pid + "/smaps_rollup", SMAPS_ROLLUP_PSS);
+		return pss != UNKNOWN ? pss : readRssKiloBytes(pid);
+	}
+
+	/**
+	 * @param pid
+	 * @return resident set size in kB, or UNKNOWN if it could not be read
+	 */
+	private static long readRssKiloBytes(long pid) {
+		return readField("/proc/" + pid + "/status", STATUS_RSS);
+	}
+
+	private static long readField(String path, String field) {
+		try {
+			List<String> lines = Files.readAllLines(Paths.get(path), StandardCharsets.US_ASCII);
+			for (String line: lines) {
+				if (line.startsWith(field)) {
+					return Long.parseLong(line.substring(field.length()).replace("kB", "").trim());
+				}
+			}
+		} catch (IOException | NumberFormatException e) {/* handled below */}
+		return UNKNOWN;
+	}
+
+	static String report(List<MonitoredDevice> monitoredDevices) {
+		long ownKB = readKiloBytes(ProcessHandle.current().pid());
+		long totalKB = ownKB;
+		int inProcess = 0;
+		int separate = 0;
+		long separateKB = 0;
+		StringBuilder sb = new StringBuilder();
+		for (MonitoredDevice d: monitoredDevices) {
+			ProcessHandle process = d.p != null ? d.p.toHandle() : d.adoptedProcess;
+			if (d.host != null) {
+				inProcess++;
+				sb.append("ID=" + d.deviceID.getID() + " mode=inProcess\n");
+			} else if (process != null && process.isAlive()) {
+				long kB = readKiloBytes(process.pid());
+				if (kB != UNKNOWN) {
+					separate++;
+					separateKB += kB;
+					totalKB += kB;
+				}
+				sb.append("ID=" + d.deviceID.getID() + " mode=separateProcess pid=" + process.pid() + " memory=" + kB + "kB\n");
+			} else {
+				sb.append("ID=" + d.deviceID.getID() + " not running\n");
+			}
+		}
+		sb.insert(0, "PalComStarter memory=" + ownKB + "kB, " + baselineKiloBytes + "kB before starting devices (hosting "
+				+ inProcess + " device(s) in-process, " + separate + " in separate JVMs). Total memory=" + totalKB + "kB\n"
+				+ compare(ownKB, inProcess, separate, separateKB) + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * @return the memory per device of both kinds of hosting, and what hosting in-process saves per device
+	 */
+	private static String compare(long ownKB, int inProcess, int separate, long separateKB) {
+		long perSeparateKB = separate > 0 ? separateKB / separate : UNKNOWN;
+		long perInProcessKB = UNKNOWN;
+		if (inProcess > 0 && ownKB != UNKNOWN && baselineKiloBytes != UNKNOWN)
+			perInProcessKB = Math.max(0, ownKB - baselineKiloBytes) / inProcess;
+		String result = "Per device: separate JVM " + (perSeparateKB != UNKNOWN ? perSeparateKB + "kB" : "unknown")
+				+ ", in-process " + (perInProcessKB != UNKNOWN ? perInProcessKB + "kB" : "unknown") + ". ";
+		if (perSeparateKB == UNKNOWN || perInProcessKB == UNKNOWN)
+			return result + "Host devices both ways to compare.";
+		long savedKB = perSeparateKB - perInProcessKB;
+		return result + "Hosting in-process saves " + savedKB + "kB (" + (perSeparateKB > 0 ? 100 * savedKB / perSeparateKB : 0) + "%) per device.";
+	}
+}
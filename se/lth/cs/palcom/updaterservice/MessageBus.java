@@ -0,0 +1,284 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Buffers messages in one mailbox per topic and correlation ID, so that a message is kept until someone
+ * asks for exactly that kind of message, instead of being thrown away by whoever happens to be waiting
+ * for something else. A waiter sleeps on the condition of its own mailbox(es) and is woken as soon as
+ * a matching message is posted.
+ * <p>
+ * Mailboxes are bounded. What happens when a mailbox is full is decided by the {@link OverflowPolicy}, except for
+ * topics that must never lose a message, see {@link #neverDrop(String)}. A mailbox that is empty and has no
+ * waiters is removed, so that correlation IDs that are used once do not pile up.
+ * @author splushii
+ *
+ * @param <T> the message type
+ */
+class MessageBus<T> {
+	static final int WAIT_FOREVER = -1;
+
+	enum OverflowPolicy {
+		/** Throw away the oldest message in the mailbox to make room for the new one */
+		DROP_OLDEST,
+		/** Keep the mailbox as it is and throw away the new message */
+		REJECT_NEWEST,
+	}
+
+	private class Mailbox {
+		final String key;
+		final ArrayDeque<T> messages = new ArrayDeque<T>();
+		final Condition notEmpty = lock.newCondition();
+		// Number of take calls waiting on notEmpty
+		int waiters = 0;
+		// Conditions of waitAny calls that include this mailbox
+		final Set<Condition> anyWaiters = new HashSet<Condition>();
+
+		Mailbox(String key) {
+			this.key = key;
+		}
+	}
+
+	private final String name;
+	private final int capacity;
+	private final OverflowPolicy overflowPolicy;
+	private final UpdaterService us;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+	// Topics whose messages are kept even if their mailbox is full
+	private final Set<String> neverDropTopics = new HashSet<String>();
+
+	/**
+	 * @param us used for logging, or null to not log
+	 * @param name used in log messages
+	 * @param capacity maximum number of messages in each mailbox
+	 * @param overflowPolicy what to do when a message is posted to a full mailbox
+	 */
+	MessageBus(UpdaterService us, String name, int capacity, OverflowPolicy overflowPolicy) {
+		this.us = us;
+		this.name = name;
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Makes the messages of the topic be kept even if their mailbox is full, for messages that are small and
+	 * must not be lost, like aborts.
+	 */
+	void neverDrop(String topic) {
+		lock.lock();
+		try {
+			neverDropTopics.add(topic);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static String key(String topic, String correlationID) {
+		return correlationID == null ? topic : topic + "\u0000" + correlationID;
+	}
+
+	// Must be called with lock held
+	private Mailbox mailbox(String topic, String correlationID) {
+		String key = key(topic, correlationID);
+		Mailbox mailbox = mailboxes.get(key);
+		if (mailbox == null) {
+			mailbox = new Mailbox(key);
+			mailboxes.put(key, mailbox);
+		}
+		return mailbox;
+	}
+
+	// Must be called with lock held
+	private void removeIfUnused(Mailbox mailbox) {
+		if (mailbox.messages.isEmpty() && mailbox.waiters == 0 && mailbox.anyWaiters.isEmpty())
+			mailboxes.remove(mailbox.key);
+	}
+
+	/**
+	 * @param correlationID may be null
+	 * @return false if the message was not added because the mailbox was full
+	 */
+	boolean post(String topic, String correlationID, T msg) {
+		lock.lock();
+		try {
+			Mailbox mailbox = mailbox(topic, correlationID);
+			if (mailbox.messages.size() >= capacity && !neverDropTopics.contains(topic)) {
+				if (overflowPolicy == OverflowPolicy.REJECT_NEWEST) {
+					log(name + ": mailbox " + topic + " (" + correlationID + ") is full. Rejecting new message.");
+					return false;
+				}
+				log(name + ": mailbox " + topic + " (" + correlationID + ") is full. Dropping oldest message.");
+				mailbox.messages.poll();
+			}
+			mailbox.messages.add(msg);
+			mailbox.notEmpty.signal();
+			for (Condition c: mailbox.anyWaiters) {
+				c.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void log(String msg) {
+		if (us != null)
+			us.log(msg, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+	}
+
+	/**
+	 * Takes the oldest message in a mailbox, waiting for one to arrive if it is empty.
+	 * @param correlationID may be null
+	 * @param waitInSeconds MessageBus.WAIT_FOREVER (-1) to wait forever
+	 * @return the message, or null on timeout or interrupt
+	 */
+	T take(String topic, String correlationID, int waitInSeconds) {
+		lock.lock();
+		try {
+			Mailbox mailbox = mailbox(topic, correlationID);
+			mailbox.waiters++;
+			try {
+				long nanosLeft = TimeUnit.SECONDS.toNanos(waitInSeconds);
+				while (mailbox.messages.isEmpty()) {
+					if (waitInSeconds == WAIT_FOREVER) {
+						mailbox.notEmpty.await();
+					} else {
+						if (nanosLeft <= 0)
+							return null;
+						nanosLeft = mailbox.notEmpty.awaitNanos(nanosLeft);
+					}
+				}
+				return mailbox.messages.poll();
+			} finally {
+				mailbox.waiters--;
+				removeIfUnused(mailbox);
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the oldest message from the first of the given topics that has one, waiting for one to arrive
+	 * if they are all empty. Topics earlier in the array win if several have messages.
+	 * @param correlationID may be null
+	 * @param waitInSeconds MessageBus.WAIT_FOREVER (-1) to wait forever
+	 * @return the topic and message, or null on timeout or interrupt
+	 */
+	Map.Entry<String, T> takeAny(String[] topics, String correlationID, int waitInSeconds) {
+		String[] correlationIDs = new String[topics.length];
+		Arrays.fill(correlationIDs, correlationID);
+		Map.Entry<Integer, T> taken = takeFirst(topics, correlationIDs, waitInSeconds);
+		return taken == null ? null : new AbstractMap.SimpleImmutableEntry<String, T>(topics[taken.getKey()], taken.getValue());
+	}
+
+	/**
+	 * Same as {@link #takeAny(String[], String, int)}, for one topic and several correlation IDs.
+	 * @return the correlation ID and message, or null on timeout or interrupt
+	 */
+	Map.Entry<String, T> takeAnyCorrelation(String topic, String[] correlationIDs, int waitInSeconds) {
+		String[] topics = new String[correlationIDs.length];
+		Arrays.fill(topics, topic);
+		Map.Entry<Integer, T> taken = takeFirst(topics, correlationIDs, waitInSeconds);
+		return taken == null ? null : new AbstractMap.SimpleImmutableEntry<String, T>(correlationIDs[taken.getKey()], taken.getValue());
+	}
+
+	/**
+	 * Takes the oldest message from the first mailbox that has one, waiting for one to arrive if they are all empty.
+	 * @return the index of the mailbox and the message, or null on timeout or interrupt
+	 */
+	private Map.Entry<Integer, T> takeFirst(String[] topics, String[] correlationIDs, int waitInSeconds) {
+		lock.lock();
+		List<Mailbox> boxes = new ArrayList<Mailbox>(topics.length);
+		Condition anyNotEmpty = lock.newCondition();
+		try {
+			for (int i = 0; i < topics.length; i++) {
+				Mailbox box = mailbox(topics[i], correlationIDs[i]);
+				box.anyWaiters.add(anyNotEmpty);
+				boxes.add(box);
+			}
+			long nanosLeft = TimeUnit.SECONDS.toNanos(waitInSeconds);
+			while (true) {
+				for (int i = 0; i < boxes.size(); i++) {
+					if (!boxes.get(i).messages.isEmpty()) {
+						return new AbstractMap.SimpleImmutableEntry<Integer, T>(i, boxes.get(i).messages.poll());
+					}
+				}
+				if (waitInSeconds == WAIT_FOREVER) {
+					anyNotEmpty.await();
+				} else {
+					if (nanosLeft <= 0)
+						return null;
+					nanosLeft = anyNotEmpty.awaitNanos(nanosLeft);
+				}
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			for (Mailbox box: boxes) {
+				box.anyWaiters.remove(anyNotEmpty);
+				removeIfUnused(box);
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empties a mailbox, for example when a new conversation starts and late replies to an
+	 * old one must not be mistaken for new ones.
+	 * @param correlationID may be null
+	 * @return the number of messages removed
+	 */
+	int clear(String topic, String correlationID) {
+		lock.lock();
+		try {
+			Mailbox mailbox = mailboxes.get(key(topic, correlationID));
+			if (mailbox == null)
+				return 0;
+			int removed = mailbox.messages.size();
+			mailbox.messages.clear();
+			removeIfUnused(mailbox);
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empties all mailboxes with the given correlation ID.
+	 * @return the number of messages removed
+	 */
+	int clearCorrelation(String correlationID) {
+		String suffix = "\u0000" + correlationID;
+		int removed = 0;
+		lock.lock();
+		try {
+			for (Mailbox mailbox: new ArrayList<Mailbox>(mailboxes.values())) {
+				if (mailbox.key.endsWith(suffix)) {
+					removed += mailbox.messages.size();
+					mailbox.messages.clear();
+					removeIfUnused(mailbox);
+				}
+			}
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
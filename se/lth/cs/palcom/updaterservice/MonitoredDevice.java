@@ -1,5 +1,7 @@
 package se.lth.cs.palcom.updaterservice;
 
+import java.util.concurrent.CompletableFuture;
+
 import ist.palcom.resource.descriptor.DeviceID;
 import se.lth.cs.palcom.communication.connection.Writable;
 import se.lth.cs.palcom.discovery.proxy.PalcomDevice;
@@ -13,13 +15,56 @@ class MonitoredDevice {
 	DeviceID deviceID;
 	String deviceType;
 	PalcomDevice palcomDevice;
-	Writable conn;
+	volatile Writable conn;
 	Process p;
+	/** A process that was started by an earlier PalComStarter and adopted by us. Set instead of p. */
+	volatile ProcessHandle adoptedProcess;
+	/** Completed when the last process that we killed has exited. Starts wait for it, so that the device never runs twice. */
+	volatile CompletableFuture<Integer> stopping;
+	/** Set instead of p for devices hosted in-process */
+	volatile InProcessDeviceHost host;
+	boolean hostInProcess;
+	boolean hotPatchable;
 	int nextProtocolBreakingUpdateVersion = -1;
 	long recentlyStartedDelay = 0;
-	MonitoredDevice(DeviceID deviceID, String typeOfDevice, PalcomDevice palcomDevice) {
+	long startTimeMillis = 0;
+	/** Version of the jar the device was last started from, to learn its startup times by */
+	volatile String startedVersion;
+	/** Set when the device is started, cleared when PalCom discovery has found it */
+	volatile boolean awaitingDiscovery;
+	boolean startedWithArchive;
+	/** Where the device listens for Update Protocol messages, and the sender that talks to it there */
+	UpdateProtocolEndpoint endpoint;
+	SocketSender sender;
+	/** Set when the process exits without us killing it. Cleared when the device is started again. */
+	volatile boolean exitedUnexpectedly;
+	/** Exit code of the last process exit that we did not cause, and when it happened */
+	volatile int lastExitCode;
+	volatile long lastExitTimeMillis;
+	RestartPolicy restartPolicy;
+	FlapDamper flapDamper;
+	/** Set by the first heartbeat after the device was started. Only devices that send heartbeats are watched for missing ones. */
+	volatile boolean heartbeating;
+	volatile long lastHeartbeatMillis;
+	/** Health fields of the last heartbeat */
+	volatile String lastHealth;
+	/** Set when the device has stopped sending heartbeats, or reports deadlocked threads. Cleared when the device is started again. */
+	volatile boolean hung;
+	/** The last dispatch probe sent to the device, and when, or 0 if it has been answered */
+	volatile long probeID;
+	volatile long probeSentMillis;
+	/** Set when the device has answered a probe, cleared when it is started again */
+	volatile boolean answersProbes;
+	/** Set when the device has never answered a probe, since it runs an UpdaterService that does not know them */
+	volatile boolean ignoresProbes;
+	/** How long the device took to handle the last probe that it answered */
+	volatile long dispatchLagMillis;
+	/** Version to start instead of the configured version of the type, after falling back from a crash loop */
+	volatile String versionOverride;
+	MonitoredDevice(DeviceID deviceID, String typeOfDevice, PalcomDevice palcomDevice, boolean hostInProcess) {
 		this.deviceID = deviceID;
 		this.deviceType = typeOfDevice;
 		this.palcomDevice = palcomDevice;
+		this.hostInProcess = hostInProcess;
 	}
 }
\ No newline at end of file
@@ -1,17 +1,32 @@
 package se.lth.cs.palcom.updaterservice;
 
+import java.io.File;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import ist.palcom.resource.descriptor.Command;
 import ist.palcom.resource.descriptor.DeviceID;
+import se.lth.cs.palcom.communication.connection.Writable;
 import se.lth.cs.palcom.discovery.DiscoveryManager;
 import se.lth.cs.palcom.discovery.Resource;
 import se.lth.cs.palcom.discovery.ResourceListener;
@@ -19,46 +34,131 @@ import se.lth.cs.palcom.discovery.proxy.PalcomDevice;
 import se.lth.cs.palcom.discovery.proxy.implementors.DeviceProxy;
 import se.lth.cs.palcom.filesystem.HostFileSystems;
 import se.lth.cs.palcom.logging.Logger;
-import se.lth.cs.palcom.util.configuration.DeviceList;
 
 /**
  * Monitors specified devices. Uses discovery mechanism to see 
  * if monitored devices are up or down. If they are down, and monitoring
- * is enabled, they are restarted.
+ * is enabled, they are restarted. Checks and restarts run on {@link ShardedWorkers}
+ * keyed by device ID, so a device that hangs while being restarted only holds up
+ * the devices in its own shard. Every monitored device has its own Update Protocol
+ * endpoint, so devices in different shards can do their startup checks at the same time.
+ * Devices that send heartbeats are also checked when their heartbeats stop, which finds a device
+ * that is hung long before discovery notices it, if ever. A device that only discovery has lost,
+ * while its process is still running, is given time to come back before it is restarted (see {@link FlapDamper}).
+ * The process of every device we start is recorded in monitoring.properties, so that a restarted PalComStarter
+ * can adopt the devices that are still running instead of restarting them.
  * @author Christian Hernvall
  */
-class MonitoringThread extends Thread implements ResourceListener {
+class MonitoringThread extends Thread implements ResourceListener, SocketListenerThread.HeartbeatListener {
 	private UpdaterService us;
 	private DiscoveryManager dm;
 	private SocketListenerThread socketListener;
-	private SocketSender socketSender;
 	private static final int MAX_SECONDS_WAIT_FOR_DEVICE = 5;
+	private static final int MONITOR_SHARDS = 8;
 	private static final int RECENTLY_STARTED_WAIT_SEC = 10;
+	// Timeouts and recheck delays are learned per device type and version. These are used until there is something to learn from.
+	private DurationEstimator durations;
+	private static final long DEFAULT_KILL_GRACE_PERIOD_MILLIS = 3000;
+	private static final long DEFAULT_TERMINATE_GRACE_PERIOD_MILLIS = 2000;
+	// 5 s of silence. A full GC or a busy host can easily hold up a few heartbeats in a row.
+	private static final long DEFAULT_MISSED_HEARTBEATS = 20;
+	// Work such as a big command may keep the dispatch thread of a healthy device busy for a while
+	private static final long DEFAULT_MAX_DISPATCH_LAG_MILLIS = 10000;
+	// Dispatch probes are sent about once a second
+	private static final int HEARTBEAT_CHECKS_PER_PROBE = 4;
+	// Exit code recorded for processes that we did not start, since their exit codes cannot be known
+	private static final int UNKNOWN_EXIT_CODE = -1;
+	// How long a device gets to exit after the PalCom kill command, and after SIGTERM, before we escalate
+	private long killGracePeriodMillis;
+	private long terminateGracePeriodMillis;
+	// A device that has sent no heartbeat for this long is taken to be hung
+	private long heartbeatTimeoutMillis;
+	// A device that has not handled a dispatch probe for this long is taken to be hung, even if it sends heartbeats
+	private long maxDispatchLagMillis;
+	// Only used by the heartbeat watchdog
+	private long nextProbeID = 1;
+	private int heartbeatChecks = 0;
+	private ScheduledExecutorService heartbeatWatchdog;
+	// Sends kill commands and unloads in-process devices, which means waiting for their threads to finish, so that
+	// no device lock is held meanwhile. Devices may still be killed after the thread has stopped, and the idle
+	// threads go away by themselves, so it is never shut down.
+	private final ExecutorService killer = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Monitored device killer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	private ArrayList<MonitoredDevice> monitoredDevices;
-	private HashMap<String, String> typeToVersionMap;
-	private HashMap<String, Integer> typeToNewMajorVersionMap;
+	// Indexes of monitoredDevices, kept up to date by addNewMonitoredDevice.
+	// Lists are handed out through read-only views that are created once, so queries do not allocate.
+	private HashMap<String, MonitoredDevice> monitoredDevicesByID;
+	private HashMap<String, ArrayList<MonitoredDevice>> monitoredDevicesByType;
+	private HashMap<String, List<MonitoredDevice>> monitoredDevicesByTypeView;
+	private ArrayList<String> monitoredDeviceTypes;
+	private List<String> monitoredDeviceTypesView;
+	// Written by update pipelines that may run side by side
+	private ConcurrentHashMap<String, String> typeToVersionMap;
+	private ConcurrentHashMap<String, Integer> typeToNewMajorVersionMap;
+	private VersionLedger versionLedger;
+	private RestartPolicy.Settings restartPolicySettings;
+	private FlapDamper.Settings flapDamperSettings;
 	private Semaphore disableMonitorLock;
-	private Semaphore checkListSemaphore;
-	private Semaphore doingStuffLock;
-	private boolean halt = false;
+	// Every check or restart holds a permit. disable() takes them all, to wait for and hold off actions in all shards.
+	private Semaphore actionPermits;
+	private volatile boolean halt = false;
 	private boolean monitoringEnabled = true;
-	private Timer timer;
-	private ConcurrentLinkedQueue<MonitoredDevice> checkList;
-	private LinkedList<MonitoredDevice> newVersionMonitoredDevicesRunning;
+	// Device types that update pipelines are working on. Their devices are not checked until they are released.
+	private final Set<String> heldDeviceTypes = ConcurrentHashMap.newKeySet();
+	// When each device is to be checked next, if it is to be checked at all
+	private DeadlineScheduler<MonitoredDevice> checkScheduler;
+	private ShardedWorkers<String> workers;
 
-	MonitoringThread(UpdaterService us, SocketListenerThread socketListener, SocketSender socketSender) {
+	MonitoringThread(UpdaterService us, SocketListenerThread socketListener) {
 		this.us = us;
 		this.dm = us.getDevice().getDiscoveryManager();
 		this.socketListener = socketListener;
-		this.socketSender = socketSender;
+		workers = new ShardedWorkers<String>("Monitor shard", MONITOR_SHARDS);
 		monitoredDevices = new ArrayList<MonitoredDevice>();
+		monitoredDevicesByID = new HashMap<String, MonitoredDevice>();
+		monitoredDevicesByType = new HashMap<String, ArrayList<MonitoredDevice>>();
+		monitoredDevicesByTypeView = new HashMap<String, List<MonitoredDevice>>();
+		monitoredDeviceTypes = new ArrayList<String>();
+		monitoredDeviceTypesView = Collections.unmodifiableList(monitoredDeviceTypes);
 		disableMonitorLock = new Semaphore(1);
-		checkListSemaphore = new Semaphore(0);
-		doingStuffLock = new Semaphore(1);
-		timer = new Timer();
-		checkList = new ConcurrentLinkedQueue<MonitoredDevice>();
-		typeToVersionMap = new HashMap<String, String>();
-		typeToNewMajorVersionMap = new HashMap<String, Integer>();
+		actionPermits = new Semaphore(MONITOR_SHARDS, true);
+		checkScheduler = new DeadlineScheduler<MonitoredDevice>();
+		typeToVersionMap = new ConcurrentHashMap<String, String>();
+		typeToNewMajorVersionMap = new ConcurrentHashMap<String, Integer>();
+		versionLedger = us.getVersionLedger();
+		restartPolicySettings = new RestartPolicy.Settings();
+		restartPolicySettings.backoffBaseMillis = us.getGeneralLongProperty(UpdaterService.KEY_RESTART_BACKOFF_BASE_MILLIS, restartPolicySettings.backoffBaseMillis);
+		restartPolicySettings.backoffMaxMillis = us.getGeneralLongProperty(UpdaterService.KEY_RESTART_BACKOFF_MAX_MILLIS, restartPolicySettings.backoffMaxMillis);
+		restartPolicySettings.crashLoopWindowMillis = us.getGeneralLongProperty(UpdaterService.KEY_CRASH_LOOP_WINDOW_MILLIS, restartPolicySettings.crashLoopWindowMillis);
+		restartPolicySettings.crashLoopThreshold = (int) us.getGeneralLongProperty(UpdaterService.KEY_CRASH_LOOP_THRESHOLD, restartPolicySettings.crashLoopThreshold);
+		restartPolicySettings.stableRunMillis = us.getGeneralLongProperty(UpdaterService.KEY_STABLE_RUN_MILLIS, restartPolicySettings.stableRunMillis);
+		restartPolicySettings.quarantineMillis = us.getGeneralLongProperty(UpdaterService.KEY_QUARANTINE_MILLIS, restartPolicySettings.quarantineMillis);
+		durations = us.getDurationEstimator();
+		flapDamperSettings = new FlapDamper.Settings();
+		flapDamperSettings.halfLifeMillis = us.getGeneralLongProperty(UpdaterService.KEY_FLAP_PENALTY_HALF_LIFE_MILLIS, flapDamperSettings.halfLifeMillis);
+		flapDamperSettings.suppressThreshold = us.getGeneralLongProperty(UpdaterService.KEY_FLAP_SUPPRESS_THRESHOLD, flapDamperSettings.suppressThreshold);
+		flapDamperSettings.reuseThreshold = us.getGeneralLongProperty(UpdaterService.KEY_FLAP_REUSE_THRESHOLD, flapDamperSettings.reuseThreshold);
+		flapDamperSettings.maxSuppressMillis = us.getGeneralLongProperty(UpdaterService.KEY_FLAP_MAX_SUPPRESS_MILLIS, flapDamperSettings.maxSuppressMillis);
+		flapDamperSettings.confirmMillis = us.getGeneralLongProperty(UpdaterService.KEY_UNREACHABLE_CONFIRM_MILLIS, flapDamperSettings.confirmMillis);
+		killGracePeriodMillis = us.getGeneralLongProperty(UpdaterService.KEY_KILL_GRACE_PERIOD_MILLIS, DEFAULT_KILL_GRACE_PERIOD_MILLIS);
+		terminateGracePeriodMillis = us.getGeneralLongProperty(UpdaterService.KEY_TERMINATE_GRACE_PERIOD_MILLIS, DEFAULT_TERMINATE_GRACE_PERIOD_MILLIS);
+		heartbeatTimeoutMillis = us.getGeneralLongProperty(UpdaterService.KEY_MISSED_HEARTBEATS, DEFAULT_MISSED_HEARTBEATS) * HeartbeatSender.HEARTBEAT_INTERVAL_MILLIS;
+		maxDispatchLagMillis = us.getGeneralLongProperty(UpdaterService.KEY_MAX_DISPATCH_LAG_MILLIS, DEFAULT_MAX_DISPATCH_LAG_MILLIS);
+		heartbeatWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Heartbeat watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		socketListener.setHeartbeatListener(this);
 	}
 	
 
@@ -88,33 +188,49 @@ class MonitoringThread extends Thread implements ResourceListener {
 		typeToVersionMap.put(deviceType, deviceVersion);
 	}
 
+	/**
+	 * @return a read-only list of the devices of the type, in configuration order
+	 */
 	List<MonitoredDevice> getMonitoredDevicesOfType(String deviceType) {
-		List<MonitoredDevice> mdList = new ArrayList<MonitoredDevice>();
-		for (MonitoredDevice d: monitoredDevices)
-			if (d.deviceType.equals(deviceType))
-				mdList.add(d);
+		List<MonitoredDevice> mdList = monitoredDevicesByTypeView.get(deviceType);
+		if (mdList == null)
+			return Collections.emptyList();
 		return mdList;
 	}
 	
+	/**
+	 * @return a read-only list of the monitored device types, in configuration order
+	 */
 	List<String> getMonitoredDeviceTypes() {
-		List<String> deviceTypes = new LinkedList<String>();
-		for (MonitoredDevice d: monitoredDevices) {
-			if (!deviceTypes.contains(d.deviceType)) {
-				deviceTypes.add(d.deviceType);
-			}
-		}
-		return deviceTypes;
+		return monitoredDeviceTypesView;
+	}
+
+	/**
+	 * @return the monitored device with the ID, or null if it is not monitored
+	 */
+	MonitoredDevice getMonitoredDevice(String deviceID) {
+		return monitoredDevicesByID.get(deviceID);
 	}
 
 	boolean monitorsDeviceType(String deviceType) {
 		return typeToVersionMap.containsKey(deviceType);
 	}
 
+	String getMemoryUsageReport() {
+		String report = MemoryBenchmark.report(monitoredDevices);
+		us.log("Memory benchmark:\n" + report, Logger.CMP_SERVICE, Logger.LEVEL_BULK);
+		return report;
+	}
+
 	String getListOfMonitoredDevices() {
 		String list = "";
 		int i = 0;
 		for (MonitoredDevice d: monitoredDevices) {
-			list += "index=" + i++ + " ID=" + d.deviceID + " type=" + d.deviceType + " ";
+			list += "index=" + i++ + " ID=" + d.deviceID + " type=" + d.deviceType + " version=" + getMonitoredDeviceVersion(d) + " " + d.restartPolicy + " " + d.flapDamper + " ";
+			if (d.heartbeating)
+				list += d.lastHealth + " ";
+			if (d.answersProbes)
+				list += "dispatchLag=" + d.dispatchLagMillis + "ms ";
 		}
 		return list;
 	}
@@ -123,38 +239,58 @@ class MonitoringThread extends Thread implements ResourceListener {
 		if (!halt) {
 			halt = true;
 			enable(); // Nothing bad happens if monitoring is already enabled
-			checkListSemaphore.release();				
+			checkScheduler.wakeUp();
+			heartbeatWatchdog.shutdownNow();
+			workers.shutdown();
+			for (MonitoredDevice d: monitoredDevices) {
+				d.sender.close();
+			}
 		}
 	}
 
-	void addNewMonitoredDevice(String deviceID, String instanceName, String typeOfDevice, String monitoredDeviceVersion) {
+	void addNewMonitoredDevice(String deviceID, String instanceName, String typeOfDevice, String monitoredDeviceVersion, boolean hostInProcess) {
 		DeviceID dID = new DeviceID(deviceID);
 		PalcomDevice palcomDevice = dm.getDevice(dID);
 		palcomDevice.addListener(this);
 		typeToVersionMap.put(typeOfDevice, monitoredDeviceVersion);
-		MonitoredDevice monitoredDevice = new MonitoredDevice(dID, typeOfDevice, palcomDevice);
+		MonitoredDevice monitoredDevice = new MonitoredDevice(dID, typeOfDevice, palcomDevice, hostInProcess);
+		monitoredDevice.endpoint = UpdateProtocolEndpoint.forDevice(deviceID, us.socketDirectory, updateProtocolPort(deviceID));
+		monitoredDevice.sender = new SocketSender(us, socketListener, monitoredDevice.endpoint, deviceID);
+		monitoredDevice.restartPolicy = new RestartPolicy(restartPolicySettings);
+		monitoredDevice.flapDamper = new FlapDamper(flapDamperSettings);
 		monitoredDevices.add(monitoredDevice);
+		monitoredDevicesByID.put(deviceID, monitoredDevice);
+		ArrayList<MonitoredDevice> ofType = monitoredDevicesByType.get(typeOfDevice);
+		if (ofType == null) {
+			ofType = new ArrayList<MonitoredDevice>();
+			monitoredDevicesByType.put(typeOfDevice, ofType);
+			monitoredDevicesByTypeView.put(typeOfDevice, Collections.unmodifiableList(ofType));
+			monitoredDeviceTypes.add(typeOfDevice);
+		}
+		ofType.add(monitoredDevice);
 		us.log("Adding device to monitor:", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.log("Name: " + instanceName, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.log("ID: " + deviceID, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.log("Device type: " + typeOfDevice, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		us.log("Hosted in-process: " + hostInProcess, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		us.log("Update Protocol endpoint: " + monitoredDevice.endpoint, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.log("", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 	}
 
 	/**
-	 * Blocking until monitoring thread has stopped.
+	 * Blocking until all shards have finished what they are doing. Actions queued in the
+	 * shards wait until monitoring is enabled again.
 	 */
 	void disable() {
 		if (monitoringEnabled) {
 			us.log("Disabling monitoring.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 			disableMonitorLock.acquireUninterruptibly();
-			// wait for the monitoring thread to finish what it is doing
-			if(!doingStuffLock.tryAcquire()){
-				us.log("Waiting for monitoring thread to finish what it is doing...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-				doingStuffLock.acquireUninterruptibly();
-				us.log("Monitoring thread has finished doing its stuff. Monitoring is now disabled.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			// wait for the shards to finish what they are doing
+			if(!actionPermits.tryAcquire(MONITOR_SHARDS)){
+				us.log("Waiting for monitoring shards to finish what they are doing...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				actionPermits.acquireUninterruptibly(MONITOR_SHARDS);
+				us.log("Monitoring shards have finished doing their stuff. Monitoring is now disabled.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 			}
-			doingStuffLock.release();		
 			monitoringEnabled = false;
 		}
 	}
@@ -162,14 +298,47 @@ class MonitoringThread extends Thread implements ResourceListener {
 	void enable() {
 		if (!monitoringEnabled) {
 			us.log("Enabling monitoring.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			actionPermits.release(MONITOR_SHARDS);
 			disableMonitorLock.release();
 			monitoringEnabled = true;
 		}
 	}
 
+	/**
+	 * Like {@link #disable()}, but only for devices of the types, so that other devices are still monitored
+	 * while they are updated. Blocking until checks of the devices that are already running have finished.
+	 */
+	void holdDeviceTypes(Collection<String> deviceTypes) {
+		heldDeviceTypes.addAll(deviceTypes);
+		for (String deviceType: deviceTypes) {
+			for (MonitoredDevice d: getMonitoredDevicesOfType(deviceType)) {
+				try {
+					workers.awaitIdle(d.deviceID.getID());
+				} catch (InterruptedException e) {/* do nothing */}
+			}
+		}
+		us.log("Monitoring of " + deviceTypes + " is on hold.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+	}
+
+	/**
+	 * Monitors the devices of the types again, and checks them right away since checks were skipped while they were held.
+	 */
+	void releaseDeviceTypes(Collection<String> deviceTypes) {
+		heldDeviceTypes.removeAll(deviceTypes);
+		for (String deviceType: deviceTypes) {
+			for (MonitoredDevice d: getMonitoredDevicesOfType(deviceType)) {
+				checkScheduler.schedule(d, 0);
+			}
+		}
+		us.log("Monitoring of " + deviceTypes + " is no longer on hold.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+	}
+
+	/**
+	 * Starts killing the device without waiting for it to be gone.
+	 */
 	void killMonitoredDeviceByIndex(int index, boolean b) {
 		if (index >= 0 && index < monitoredDevices.size())
-			killMonitoredDevice(monitoredDevices.get(index), b);
+			killMonitoredDeviceAsync(monitoredDevices.get(index), b);
 	}
 	
 	MonitoredDevice initiateStageTwo() {
@@ -183,36 +352,166 @@ class MonitoringThread extends Thread implements ResourceListener {
 	}
 	
 	private boolean sendCommandToMonitoredDevice(MonitoredDevice monitoredDevice, Command cmd) {
-		if (monitoredDevice.conn == null){
+		Writable conn = monitoredDevice.conn;
+		if (conn == null){
 			us.log("No connection registered to device " + monitoredDevice.deviceID, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 			return false;
 		}
-		return us.sendPalComMessage(monitoredDevice.conn, cmd);
+		return us.sendPalComMessage(conn, cmd);
+	}
+
+	/**
+	 * Kills the device and waits until it is gone. See {@link #killMonitoredDeviceAsync(MonitoredDevice, boolean)}.
+	 */
+	void killMonitoredDevice(MonitoredDevice monitoredDevice, boolean startGentle) {
+		killMonitoredDeviceAsync(monitoredDevice, startGentle).join();
+	}
+
+	/**
+	 * Starts killing the device and returns right away. A separate JVM is asked to exit with the PalCom kill command
+	 * if startGentle is set, and gets killGracePeriodMillis to do so. Then it gets SIGTERM, and after
+	 * terminateGracePeriodMillis SIGKILL. Nothing waits in a thread while this goes on. Only the fields of the device
+	 * are handed over with the device locked. The kill command is sent, and an in-process device unloaded, afterwards.
+	 * @return completed with the exit code when the process is gone, or with null if there was no process
+	 */
+	CompletableFuture<Integer> killMonitoredDeviceAsync(final MonitoredDevice monitoredDevice, final boolean startGentle) {
+		final Process p;
+		final ProcessHandle adopted;
+		final InProcessDeviceHost host;
+		final String deviceID = monitoredDevice.deviceID.getID();
+		// Devices are started and killed in parallel, but each device only by one thread at a time
+		synchronized (monitoredDevice) {
+			// Forget the process before it exits, so that the exit is not taken for a crash
+			p = monitoredDevice.p;
+			monitoredDevice.p = null;
+			adopted = monitoredDevice.adoptedProcess;
+			monitoredDevice.adoptedProcess = null;
+			if (p != null || adopted != null)
+				forgetProcess(monitoredDevice);
+			// Forget the host before its threads finish, for the same reason
+			host = monitoredDevice.host;
+			monitoredDevice.host = null;
+			monitoredDevice.heartbeating = false;
+			monitoredDevice.restartPolicy.recordStopped();
+			// Sending may block on the connection, so it is done after the device is unlocked. A start of the
+			// device waits for all of this to be done.
+			CompletableFuture<Integer> stopping = CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					return disconnect(monitoredDevice, startGentle);
+				}
+			}, killer).thenCompose(new Function<Boolean, CompletableFuture<Integer>>() {
+				@Override
+				public CompletableFuture<Integer> apply(Boolean gentleKillSent) {
+					if (host != null)
+						return unload(deviceID, host);
+					if (p != null)
+						return terminateProcess(p.toHandle(), p, deviceID, gentleKillSent);
+					if (adopted != null)
+						return terminateProcess(adopted, null, deviceID, gentleKillSent);
+					return CompletableFuture.completedFuture(null);
+				}
+			});
+			monitoredDevice.stopping = stopping;
+			return stopping;
+		}
 	}
 
-	synchronized void killMonitoredDevice(MonitoredDevice monitoredDevice, boolean startGentle) {
-		if (startGentle) {
+	/**
+	 * Asks the device to exit with the PalCom kill command if gentle is set, and closes the heartbeat channel.
+	 * @return true if the kill command was sent
+	 */
+	private boolean disconnect(MonitoredDevice monitoredDevice, boolean gentle) {
+		boolean gentleKillSent = false;
+		if (gentle) {
 			Command killCmd = us.getCommand(UpdaterService.COMMAND_OUT_KILL);
-			if(!sendCommandToMonitoredDevice(monitoredDevice, killCmd)) {
+			gentleKillSent = sendCommandToMonitoredDevice(monitoredDevice, killCmd);
+			if(!gentleKillSent) {
 				us.log("Could not send " + killCmd.getID() + " to " + monitoredDevice.deviceID, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 			}
 		}
-		if(monitoredDevice.p != null) {
-			us.log("Trying to kill monitored device forcibly...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			monitoredDevice.p.destroyForcibly();
-			try {
-				monitoredDevice.p.waitFor();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		monitoredDevice.sender.closeChannel();
+		return gentleKillSent;
+	}
+
+	/**
+	 * Stops the threads of an in-process device in the background, since they get a grace period to finish.
+	 * @return completed with null when the device has been unloaded
+	 */
+	private CompletableFuture<Integer> unload(final String deviceID, final InProcessDeviceHost host) {
+		return CompletableFuture.supplyAsync(new Supplier<Integer>() {
+			@Override
+			public Integer get() {
+				us.log("Unloading in-process device " + deviceID + "...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				host.stop();
+				us.log("Device " + deviceID + " unloaded.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return null;
 			}
-			us.log("Device killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			monitoredDevice.p = null;
-		}
+		}, killer);
+	}
+
+	/**
+	 * @param process the process to terminate
+	 * @param child the same process if we started it, or null if it was adopted. Only children have exit codes.
+	 */
+	private CompletableFuture<Integer> terminateProcess(final ProcessHandle process, final Process child, final String deviceID, boolean gentleKillSent) {
+		final CompletableFuture<ProcessHandle> exit = process.onExit();
+		CompletableFuture<Boolean> exitedGently = gentleKillSent ? exitedWithin(exit, killGracePeriodMillis) : CompletableFuture.completedFuture(false);
+		return exitedGently.thenCompose(new Function<Boolean, CompletableFuture<Boolean>>() {
+			@Override
+			public CompletableFuture<Boolean> apply(Boolean exited) {
+				if (exited)
+					return CompletableFuture.completedFuture(true);
+				us.log("Terminating " + deviceID + " (pid " + process.pid() + ")...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				process.destroy();
+				return exitedWithin(exit, terminateGracePeriodMillis);
+			}
+		}).thenCompose(new Function<Boolean, CompletableFuture<ProcessHandle>>() {
+			@Override
+			public CompletableFuture<ProcessHandle> apply(Boolean exited) {
+				if (!exited) {
+					us.log(deviceID + " did not terminate within " + terminateGracePeriodMillis + "ms. Killing it forcibly...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+					process.destroyForcibly();
+				}
+				return exit;
+			}
+		}).thenApply(new Function<ProcessHandle, Integer>() {
+			@Override
+			public Integer apply(ProcessHandle exited) {
+				if (child == null) {
+					us.log("Device " + deviceID + " killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+					return null;
+				}
+				us.log("Device " + deviceID + " killed. Exit code " + child.exitValue() + ".", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return child.exitValue();
+			}
+		});
+	}
+
+	/**
+	 * @return completed with true when the process exits, or with false if it has not exited after the timeout
+	 */
+	private static CompletableFuture<Boolean> exitedWithin(CompletableFuture<ProcessHandle> exit, long timeoutMillis) {
+		return exit.thenApply(new Function<ProcessHandle, Boolean>() {
+			@Override
+			public Boolean apply(ProcessHandle p) {
+				return true;
+			}
+		}).completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Kills the devices in parallel and waits until all are gone.
+	 */
+	private void killMonitoredDevices(List<MonitoredDevice> devices, boolean startGentle) {
+		List<CompletableFuture<Integer>> kills = new ArrayList<CompletableFuture<Integer>>();
+		for (MonitoredDevice d: devices)
+			kills.add(killMonitoredDeviceAsync(d, startGentle));
+		CompletableFuture.allOf(kills.toArray(new CompletableFuture<?>[kills.size()])).join();
 	}
 	
 	void killAllMonitoredDevices(boolean startGentle) {
-		for (MonitoredDevice d: monitoredDevices)
-			killMonitoredDevice(d, startGentle);
+		killMonitoredDevices(monitoredDevices, startGentle);
 	}
 
 	void startMonitoredDeviceByIndex(int index) {
@@ -223,64 +522,187 @@ class MonitoringThread extends Thread implements ResourceListener {
 		}
 	}
 	
-	synchronized boolean startMonitoredDevice(MonitoredDevice monitoredDevice) {
-		String pathToJar = getMonitoredDevicePathToJar(monitoredDevice);
-		return startMonitoredDeviceHelper(monitoredDevice, pathToJar);
+	/**
+	 * Waits until the process of the device that is being killed, if any, has exited. The process is forgotten
+	 * as soon as the kill starts, so without this a start could run a second process of the device next to it.
+	 * Must not be called with the device locked, since the exit is handled with the device locked.
+	 */
+	private void awaitStopped(MonitoredDevice d) {
+		CompletableFuture<Integer> stopping = d.stopping;
+		if (stopping == null || stopping.isDone())
+			return;
+		us.log("Waiting for the old process of " + d.deviceID + " to exit before starting it.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		try {
+			stopping.join();
+		} catch (RuntimeException e) {/* the process is gone anyway, or will never be */}
 	}
 
-	boolean startNewVersionMonitoredDevice(MonitoredDevice monitoredDevice, String version) {
-		if (newVersionMonitoredDevicesRunning == null) {
-			newVersionMonitoredDevicesRunning = new LinkedList<MonitoredDevice>();
+	boolean startMonitoredDevice(MonitoredDevice monitoredDevice) {
+		awaitStopped(monitoredDevice);
+		synchronized (monitoredDevice) {
+			monitoredDevice.startedVersion = getMonitoredDeviceVersion(monitoredDevice);
+			String pathToJar = getMonitoredDevicePathToJar(monitoredDevice);
+			return startMonitoredDeviceHelper(monitoredDevice, pathToJar);
 		}
-		newVersionMonitoredDevicesRunning.add(monitoredDevice);
-		String pathToJar;
-		try {
-			pathToJar = DeviceList.getConfFolder(monitoredDevice.deviceType).getNativeURL().replace("file:", "");
-		} catch (IOException e) {
-			e.printStackTrace();
+	}
+
+	boolean startNewVersionMonitoredDevice(MonitoredDevice monitoredDevice, String version) {
+		awaitStopped(monitoredDevice);
+		// A new version replaces any fallback from a crash loop, and gets a clean record
+		monitoredDevice.versionOverride = null;
+		monitoredDevice.restartPolicy.release();
+		String pathToJar = VersionLedger.getJarPath(monitoredDevice.deviceType, version);
+		if (pathToJar == null)
 			return false;
-		}
-		pathToJar += monitoredDevice.deviceType + "-" + version + ".jar";
-		return startMonitoredDeviceHelper(monitoredDevice, pathToJar);
+		monitoredDevice.startedVersion = version;
+		if (!startMonitoredDeviceHelper(monitoredDevice, pathToJar))
+			return false;
+		// Passing the checks of the update does not make the new version known-good. Running for a while does.
+		monitoredDevice.restartPolicy.recordRunning(System.currentTimeMillis());
+		checkScheduler.schedule(monitoredDevice, monitoredDevice.restartPolicy.getStableRunMillis());
+		return true;
 	}
 	
-	void killAllNewVersionMonitoredDevices() {
-		for (MonitoredDevice newMonitoredDevice: newVersionMonitoredDevicesRunning) {
-			killMonitoredDevice(newMonitoredDevice, false);
-		}
+	/**
+	 * Replaces the new version the device was started with during an update by the current version of its type.
+	 */
+	void rollBackMonitoredDevice(MonitoredDevice d) {
+		us.log("Rolling back " + d.deviceID + " to version " + getMonitoredDeviceVersion(d) + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		restartMonitoredDevice(d);
 	}
 	
-	boolean startMonitoredDeviceHelper(MonitoredDevice monitoredDevice, String pathToJar) {
+	boolean startMonitoredDeviceHelper(final MonitoredDevice monitoredDevice, String pathToJar) {
 		String pathToFS = HostFileSystems.getUnixStylePathToFilesystemRoot().replace("/PalcomFilesystem", "");
-		String[] arguments = {"java", "-jar", pathToJar, "-x", monitoredDevice.deviceID.getID(), "-f", pathToFS};
+		if (monitoredDevice.hostInProcess) {
+			if (InProcessDeviceHost.canHost(pathToJar)) {
+				return startInProcessMonitoredDevice(monitoredDevice, pathToJar, pathToFS);
+			}
+			us.log("Cannot host " + pathToJar + " in-process. Starting it in a separate JVM instead.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		}
+		List<String> arguments = new ArrayList<String>();
+		arguments.add("java");
+		// Attach the hot patch agent if the jar has it, so that PATCH updates can be applied without a restart
+		monitoredDevice.hotPatchable = HotPatchAgent.isAgentJar(pathToJar);
+		if (monitoredDevice.hotPatchable) {
+			arguments.add("-javaagent:" + pathToJar);
+		}
+		List<String> archiveArguments = AppCdsArchive.getLaunchArguments(pathToJar);
+		monitoredDevice.startedWithArchive = !archiveArguments.isEmpty();
+		arguments.addAll(archiveArguments);
+		if (us.socketDirectory != null) {
+			arguments.add("-D" + UpdateProtocolEndpoint.SOCKET_DIRECTORY_PROPERTY + "=" + us.socketDirectory);
+		}
+		arguments.add("-D" + UpdateProtocolEndpoint.ENDPOINT_PROPERTY + "=" + monitoredDevice.endpoint.toSpec());
+		arguments.addAll(Arrays.asList("-jar", pathToJar, "-x", monitoredDevice.deviceID.getID(), "-f", pathToFS));
 		String msg = "Starting monitored device with:";
 		for(String s: arguments)
 			msg += " " + s;
 		us.log(msg, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		ProcessBuilder pb = new ProcessBuilder(arguments);
 		pb.inheritIO();
+		monitoredDevice.startTimeMillis = System.currentTimeMillis();
+		monitoredDevice.awaitingDiscovery = true;
+		monitoredDevice.exitedUnexpectedly = false;
+		monitoredDevice.heartbeating = false;
+		monitoredDevice.hung = false;
+		final Process p;
 		try {
-			monitoredDevice.p = pb.start();
+			p = pb.start();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
-		monitoredDevice.recentlyStartedDelay = System.currentTimeMillis() + RECENTLY_STARTED_WAIT_SEC*1000;
+		monitoredDevice.p = p;
+		rememberProcess(monitoredDevice, p.toHandle(), pathToJar);
+		p.onExit().thenAccept(new Consumer<Process>() {
+			@Override
+			public void accept(Process exited) {
+				monitoredDeviceExited(monitoredDevice, exited);
+			}
+		});
+		monitoredDevice.recentlyStartedDelay = System.currentTimeMillis() + recentlyStartedWaitMillis(monitoredDevice);
+		return true;
+	}
+
+	/**
+	 * Tries to apply a PATCH update to a running monitored device without restarting it. In-process devices
+	 * are not hot patched here, since the regular update path already swaps their class loader without a JVM start.
+	 * @return true if the device now runs the classes of the new jar
+	 */
+	boolean hotPatchMonitoredDevice(MonitoredDevice monitoredDevice, String pathToNewJar, int maxWaitInSeconds) {
+		if (!monitoredDevice.hotPatchable || monitoredDevice.p == null || !monitoredDevice.p.isAlive()) {
+			return false;
+		}
+		socketListener.startConversation(monitoredDevice.deviceID.getID());
+		Command cmd = us.getCommand(UpdaterService.COMMAND_OUT_HOT_PATCH);
+		cmd.findParam(UpdaterService.PARAM_JAR_PATH).setData(pathToNewJar.getBytes());
+		if (!sendCommandToMonitoredDevice(monitoredDevice, cmd)) {
+			return false;
+		}
+		String[] replies = {UpdaterService.UPDATE_PROTOCOL_HOT_PATCH_DONE, UpdaterService.UPDATE_PROTOCOL_HOT_PATCH_FAILED};
+		String reply = socketListener.waitForAnyMsgFrom(monitoredDevice.deviceID.getID(), replies, maxWaitInSeconds);
+		if (reply == null) {
+			us.log("Timeout when waiting for hot patch of " + monitoredDevice.deviceID + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		}
+		return reply.equals(UpdaterService.UPDATE_PROTOCOL_HOT_PATCH_DONE);
+	}
+
+	/**
+	 * @return how long a started device usually needs to show up in PalCom discovery, with a margin.
+	 * Until then, not finding it does not mean that it is down.
+	 */
+	private long recentlyStartedWaitMillis(MonitoredDevice d) {
+		return durations.timeoutMillis(DurationEstimator.Kind.DISCOVERY, d.deviceType, d.startedVersion, RECENTLY_STARTED_WAIT_SEC*1000L);
+	}
+
+	/**
+	 * @return how many seconds to wait for the step of the Update Protocol with the device
+	 */
+	int timeoutSeconds(MonitoredDevice d, DurationEstimator.Kind kind, int defaultSeconds) {
+		return durations.timeoutSeconds(kind, d.deviceType, d.startedVersion, defaultSeconds);
+	}
+
+	void recordDuration(MonitoredDevice d, DurationEstimator.Kind kind, long millis) {
+		durations.record(kind, d.deviceType, d.startedVersion, millis);
+	}
+
+	/**
+	 * Logs the time from process start until the startup handshake was done, to compare starts with and without AppCDS archive.
+	 */
+	void logStartupBenchmark(MonitoredDevice d) {
+		if (d.p == null)
+			return;
+		us.log("Startup benchmark: " + d.deviceID.getID() + " (" + d.deviceType + ") AppCDS archive: " + (d.startedWithArchive ? "yes" : "no")
+				+ ". Time from start to finished startup handshake: " + (System.currentTimeMillis() - d.startTimeMillis) + "ms", Logger.CMP_SERVICE, Logger.LEVEL_BULK);
+	}
+
+	private boolean startInProcessMonitoredDevice(MonitoredDevice monitoredDevice, String pathToJar, String pathToFS) {
+		String[] arguments = {"-x", monitoredDevice.deviceID.getID(), "-f", pathToFS};
+		us.log("Starting in-process monitored device from " + pathToJar, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		// All in-process devices share our system properties, so tell each one its endpoint under its own key
+		System.setProperty(UpdateProtocolEndpoint.ENDPOINT_PROPERTY + "." + monitoredDevice.deviceID.getID(), monitoredDevice.endpoint.toSpec());
+		InProcessDeviceHost host = new InProcessDeviceHost(us, pathToJar, arguments);
+		monitoredDevice.startTimeMillis = System.currentTimeMillis();
+		monitoredDevice.awaitingDiscovery = true;
+		monitoredDevice.exitedUnexpectedly = false;
+		monitoredDevice.heartbeating = false;
+		monitoredDevice.hung = false;
+		if (!host.start(monitoredDevice.deviceID.getID())) {
+			return false;
+		}
+		monitoredDevice.host = host;
+		monitoredDevice.recentlyStartedDelay = System.currentTimeMillis() + recentlyStartedWaitMillis(monitoredDevice);
 		return true;
 	}
 	
 	
 	private String getMonitoredDevicePathToJar(MonitoredDevice monitoredDevice) {
-		String version = typeToVersionMap.get(monitoredDevice.deviceType);
-		String pathToJar;
-		try {
-			pathToJar = DeviceList.getConfFolder(monitoredDevice.deviceType).getNativeURL().replace("file:", "");
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		}
-		pathToJar += monitoredDevice.deviceType + "-" + version + ".jar";
-		return pathToJar;
+		return getMonitoredDevicePathToJar(monitoredDevice.deviceType, getMonitoredDeviceVersion(monitoredDevice));
+	}
+
+	private String getMonitoredDevicePathToJar(String deviceType, String version) {
+		return VersionLedger.getJarPath(deviceType, version);
 	}
 
 
@@ -298,107 +720,456 @@ class MonitoringThread extends Thread implements ResourceListener {
 		// Kill first, in case it is a zombie. It was not found by PalCom discovery so there is
 //		// no idea to try to kill it via PalCom commands. Kill it with brute force.
 		killMonitoredDevice(d, false);
+		d.restartPolicy.recordRestart();
+		d.flapDamper.recordRestarted();
 		
 		if (!startMonitoredDevice(d)) {
-			us.log("Could not start monitored device: " + d.deviceID + ". Will try again in " + RECENTLY_STARTED_WAIT_SEC + "s.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			us.log("Could not start monitored device: " + d.deviceID + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 			killMonitoredDevice(d, false);
-			if (!checkList.contains(d)) {
-				checkList.add(d);
-				timer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						checkListSemaphore.release();
-					}
-				}, RECENTLY_STARTED_WAIT_SEC*1000);					
-			}
+			restartFailed(d);
 			return;
 		}
 		if(!performMonitoredDeviceStartupCheck(d)) {
-			us.log("Monitored device " + d.deviceID + " failed startup check. Will try again in " + RECENTLY_STARTED_WAIT_SEC + "s.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-			if (!checkList.contains(d)) {
-				checkList.add(d);
-				timer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						checkListSemaphore.release();
-					}
-				}, RECENTLY_STARTED_WAIT_SEC*1000);					
-			}
+			us.log("Monitored device " + d.deviceID + " failed startup check.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			restartFailed(d);
 			return;
 		} else {
 			us.log("Child started and startup check finished.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			deviceRunning(d);
+		}
+	}
+
+	private void deviceRunning(MonitoredDevice d) {
+		d.restartPolicy.recordRunning(System.currentTimeMillis());
+		// Check it again when it has run long enough to be called stable
+		checkScheduler.schedule(d, d.restartPolicy.getStableRunMillis());
+	}
+
+	private void restartFailed(MonitoredDevice d) {
+		deviceFailed(d);
+		long wait = d.restartPolicy.millisUntilRestart(System.currentTimeMillis());
+		us.log("Will try to start " + d.deviceID + " again in " + wait + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		checkScheduler.schedule(d, wait);
+	}
+
+	/**
+	 * Records a failure in the device's restart policy, and deals with a crash loop if this failure makes one.
+	 * A device in a crash loop falls back to the last known-good version of its type, if it does not run that
+	 * version already. Otherwise it is quarantined.
+	 */
+	private void deviceFailed(MonitoredDevice d) {
+		long now = System.currentTimeMillis();
+		RestartPolicy policy = d.restartPolicy;
+		policy.recordFailure(now);
+		if (!policy.isCrashLooping())
+			return;
+		String version = getMonitoredDeviceVersion(d);
+		String knownGoodVersion = getKnownGoodVersion(d.deviceType);
+		if (knownGoodVersion != null && !knownGoodVersion.equals(version) && new File(getMonitoredDevicePathToJar(d.deviceType, knownGoodVersion)).isFile()) {
+			us.log(d.deviceID + " is crash looping on version " + version + ". Falling back to last known-good version " + knownGoodVersion + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			d.versionOverride = knownGoodVersion;
+			policy.recordFallback(now);
+		} else {
+			policy.quarantine(now);
+			// Drop any earlier pending check, like the one for a stable run, so that the device is next
+			// checked when the quarantine ends
+			checkScheduler.cancel(d);
+			us.log(d.deviceID + " is crash looping on version " + version + " and there is no known-good version to fall back to. Quarantined for "
+					+ policy.millisUntilRestart(now) + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+		}
+	}
+
+	/**
+	 * @return the version the device is started with
+	 */
+	String getMonitoredDeviceVersion(MonitoredDevice d) {
+		String override = d.versionOverride;
+		return override != null ? override : typeToVersionMap.get(d.deviceType);
+	}
+
+	/**
+	 * @return the last version of the device type that a device has run stably, or null if none has
+	 */
+	private String getKnownGoodVersion(String deviceType) {
+		return versionLedger.getKnownGoodVersion(deviceType);
+	}
+
+	private void setKnownGoodVersion(String deviceType, String version) {
+		if (versionLedger.setKnownGoodVersion(deviceType, version)) {
+			us.log("Version " + version + " of " + deviceType + " is now known to be good.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			// The version it replaced may have been kept only for being known-good
+			pruneOldJars(deviceType);
+		}
+	}
+
+	/**
+	 * Deletes the jars of the device type that are no longer retained, without waiting for it to be done.
+	 */
+	void pruneOldJars(String deviceType) {
+		List<String> inUse = new ArrayList<String>();
+		for (MonitoredDevice d: getMonitoredDevicesOfType(deviceType)) {
+			if (d.startedVersion != null)
+				inUse.add(d.startedVersion);
+			if (d.versionOverride != null)
+				inUse.add(d.versionOverride);
+		}
+		versionLedger.pruneInBackground(deviceType, inUse);
+	}
+
+	/**
+	 * Lifts the quarantine or backoff of a device, so that it is restarted right away if it is down.
+	 */
+	void releaseMonitoredDeviceByIndex(int index) {
+		if (index >= 0 && index < monitoredDevices.size()) {
+			MonitoredDevice d = monitoredDevices.get(index);
+			us.log("Releasing " + d.deviceID + " from quarantine and backoff.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			d.restartPolicy.release();
+			checkScheduler.schedule(d, 0);
 		}
 	}
 	
+	/**
+	 * Called when the process of a monitored device has exited. Unless we killed it ourselves, the exit is
+	 * recorded and the device is checked right away, without waiting for discovery to notice that it is gone.
+	 */
+	private void monitoredDeviceExited(MonitoredDevice d, Process process) {
+		synchronized (d) {
+			if (d.p != process) {
+				// Killed by us, or already replaced by a new process
+				us.log("Process of " + d.deviceID.getID() + " exited with code " + process.exitValue() + ".", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return;
+			}
+			d.p = null;
+			d.lastExitCode = process.exitValue();
+			recordUnexpectedExit(d);
+		}
+		us.log("Monitored device " + d.deviceID.getID() + " exited unexpectedly with code " + d.lastExitCode + " after "
+				+ (d.lastExitTimeMillis - d.startTimeMillis) + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		if (!halt)
+			checkScheduler.schedule(d, 0);
+	}
+
+	/**
+	 * Same as {@link #monitoredDeviceExited(MonitoredDevice, Process)}, for adopted processes. Their exit codes are not known.
+	 */
+	private void adoptedDeviceExited(MonitoredDevice d, ProcessHandle process) {
+		synchronized (d) {
+			if (d.adoptedProcess != process)
+				return;
+			d.adoptedProcess = null;
+			d.lastExitCode = UNKNOWN_EXIT_CODE;
+			recordUnexpectedExit(d);
+		}
+		us.log("Adopted monitored device " + d.deviceID.getID() + " exited unexpectedly.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		if (!halt)
+			checkScheduler.schedule(d, 0);
+	}
+
+	/**
+	 * Same as {@link #monitoredDeviceExited(MonitoredDevice, Process)}, for devices hosted in-process. They have
+	 * exited when all their threads have finished. Their exit codes are not known.
+	 */
+	private void inProcessDeviceExited(MonitoredDevice d, InProcessDeviceHost host) {
+		synchronized (d) {
+			if (d.host != host)
+				return;
+			d.host = null;
+			d.lastExitCode = UNKNOWN_EXIT_CODE;
+			recordUnexpectedExit(d);
+		}
+		// No threads are left to wait for, this only closes the class loader
+		host.stop();
+		us.log("In-process monitored device " + d.deviceID.getID() + " exited unexpectedly after "
+				+ (d.lastExitTimeMillis - d.startTimeMillis) + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+		if (!halt)
+			checkScheduler.schedule(d, 0);
+	}
+
+	// Must be called with d locked
+	private void recordUnexpectedExit(MonitoredDevice d) {
+		d.lastExitTimeMillis = System.currentTimeMillis();
+		d.exitedUnexpectedly = true;
+		forgetProcess(d);
+	}
+
+	/**
+	 * Records the process of a device that we have started in monitoring.properties, as
+	 * "pid,start time in milliseconds,version,path to jar", so that it can be adopted by a later PalComStarter.
+	 */
+	private void rememberProcess(MonitoredDevice d, ProcessHandle process, String pathToJar) {
+		if (us.monitoringProperties == null)
+			return;
+		long startMillis = -1;
+		Optional<Instant> start = process.info().startInstant();
+		if (start.isPresent())
+			startMillis = start.get().toEpochMilli();
+		us.monitoringProperties.setProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PROCESS, d.deviceID.getID(),
+				process.pid() + "," + startMillis + "," + d.startedVersion + "," + pathToJar);
+	}
+
+	/**
+	 * Gives every device a TCP port of its own, and remembers it in monitoring.properties, so that a restarted
+	 * PalComStarter finds running devices where it left them even if the configuration has changed. A device
+	 * without a port gets the lowest free one from MONITORED_DEVICE_SOCKET_PORT and up. Ports are handed out
+	 * in configuration order, so devices started before ports were remembered keep the ports they have.
+	 */
+	private int updateProtocolPort(String deviceID) {
+		if (us.monitoringProperties == null)
+			return UpdaterService.MONITORED_DEVICE_SOCKET_PORT + monitoredDevices.size();
+		String recorded = us.monitoringProperties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PORT, deviceID);
+		if (recorded != null) {
+			try {
+				return Integer.parseInt(recorded);
+			} catch (NumberFormatException e) {
+				us.log("Invalid Update Protocol port of " + deviceID + ": " + recorded + ". Choosing a new one.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			}
+		}
+		Set<Integer> taken = new HashSet<Integer>();
+		String[] devices = us.monitoringProperties.getKeys(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PORT);
+		if (devices != null) {
+			for (String other: devices) {
+				try {
+					taken.add(Integer.parseInt(us.monitoringProperties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PORT, other)));
+				} catch (NumberFormatException e) {/* not taken then */}
+			}
+		}
+		int port = UpdaterService.MONITORED_DEVICE_SOCKET_PORT;
+		while (taken.contains(port)) {
+			port++;
+		}
+		us.monitoringProperties.setProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PORT, deviceID, Integer.toString(port));
+		return port;
+	}
+
+	private void forgetProcess(MonitoredDevice d) {
+		if (us.monitoringProperties != null)
+			us.monitoringProperties.removeProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PROCESS, d.deviceID.getID());
+	}
+
+	/**
+	 * Adopts the processes of devices that were started by an earlier PalComStarter and are still running,
+	 * so that they are monitored without being restarted. A recorded process is only adopted if a process
+	 * with its PID is alive, started at the recorded time, and runs the recorded jar as the device. Otherwise
+	 * the PID has been reused, and the device is handled as if it was not running.
+	 */
+	private void adoptRunningMonitoredDevices() {
+		if (us.monitoringProperties == null)
+			return;
+		for (final MonitoredDevice d: monitoredDevices) {
+			String record = us.monitoringProperties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_PROCESS, d.deviceID.getID());
+			// Only devices in separate JVMs are recorded, also devices that could not be hosted in-process
+			if (record == null)
+				continue;
+			String[] fields = record.split(",", 4);
+			final ProcessHandle process;
+			long startMillis;
+			try {
+				startMillis = Long.parseLong(fields[1]);
+				process = findRecordedProcess(d, Long.parseLong(fields[0]), startMillis, fields[3]);
+			} catch (RuntimeException e) {
+				us.log("Invalid process record of " + d.deviceID.getID() + ": " + record, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				forgetProcess(d);
+				continue;
+			}
+			if (process == null) {
+				forgetProcess(d);
+				continue;
+			}
+			synchronized (d) {
+				d.adoptedProcess = process;
+				d.startedVersion = fields[2];
+				d.startTimeMillis = startMillis;
+				d.exitedUnexpectedly = false;
+				// Give discovery time to find it again, and the device time to send heartbeats to us
+				d.recentlyStartedDelay = System.currentTimeMillis() + recentlyStartedWaitMillis(d);
+			}
+			process.onExit().thenAccept(new Consumer<ProcessHandle>() {
+				@Override
+				public void accept(ProcessHandle exited) {
+					adoptedDeviceExited(d, exited);
+				}
+			});
+			us.log("Adopted running monitored device " + d.deviceID.getID() + " (pid " + process.pid() + ").", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		}
+	}
+
+	/**
+	 * @return the process, or null if no process matching the record is running
+	 */
+	private ProcessHandle findRecordedProcess(MonitoredDevice d, long pid, long startMillis, String pathToJar) {
+		Optional<ProcessHandle> found = ProcessHandle.of(pid);
+		if (!found.isPresent() || !found.get().isAlive())
+			return null;
+		ProcessHandle process = found.get();
+		ProcessHandle.Info info = process.info();
+		Optional<Instant> start = info.startInstant();
+		boolean sameStart = start.isPresent() && startMillis >= 0 && start.get().toEpochMilli() == startMillis;
+		Optional<String> commandLine = info.commandLine();
+		if (commandLine.isPresent()) {
+			String cmd = commandLine.get();
+			if (!cmd.contains(pathToJar) || !cmd.contains(d.deviceID.getID())) {
+				us.log("Process " + pid + " recorded for " + d.deviceID.getID() + " runs something else: " + cmd, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return null;
+			}
+			if (start.isPresent() && startMillis >= 0 && !sameStart)
+				return null;
+			return process;
+		}
+		// The command line cannot be seen on every platform. Then the start time has to do.
+		return sameStart ? process : null;
+	}
+	
 	private void checkMonitoredDevice(MonitoredDevice d) {
 		PalcomDevice pd = d.palcomDevice;
-		if(!pd.isReady()) {
-			us.log("Could not find " + d.deviceID.getID() + " on network.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-			long timeDiff = d.recentlyStartedDelay - System.currentTimeMillis();
-			if (timeDiff > 0) {
+		// An exited process is certain, while discovery may still think the device is there
+		boolean exited = d.exitedUnexpectedly;
+		// So is a device that has stopped sending heartbeats, even if it is still found on the network
+		boolean hung = d.hung;
+		if(exited || hung || !pd.isReady()) {
+			if (exited) {
+				us.log(d.deviceID.getID() + " has exited with code " + d.lastExitCode + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			} else if (hung) {
+				us.log(d.deviceID.getID() + " is hung.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			} else {
+				us.log("Could not find " + d.deviceID.getID() + " on network.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			}
+			long now = System.currentTimeMillis();
+			long timeDiff = d.recentlyStartedDelay - now;
+			if (timeDiff > 0 && !exited && !hung) {
 				us.log("Recently started " + d.deviceID.getID() + ". Waiting " + timeDiff + "ms before trying to start it again.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-				// Schedule the check if it is not already scheduled
-				if (!checkList.contains(d)) {
-					checkList.add(d);
-					timer.schedule(new TimerTask() {
-						@Override
-						public void run() {
-							checkListSemaphore.release();
-						}
-					}, RECENTLY_STARTED_WAIT_SEC*1000);					
+				// Check again when the device has had its time to start, unless a check is already due before that
+				checkScheduler.schedule(d, timeDiff);
+				return;
+			}
+			if (!exited && !hung && isProcessAlive(d)) {
+				// Only discovery says that it is gone. Make sure that it stays gone before killing it.
+				long wait = d.flapDamper.millisUntilConfirmed(now);
+				if (wait > 0) {
+					us.log("Waiting " + wait + "ms for " + d.deviceID.getID() + " to come back before restarting it"
+							+ (d.flapDamper.isSuppressing() ? ", since it is flapping." : "."), Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+					checkScheduler.schedule(d, wait);
+					return;
 				}
+			}
+			if (d.restartPolicy.getState() == RestartPolicy.State.RUNNING) {
+				// It was up last we knew, so this is a new failure
+				deviceFailed(d);
+			}
+			long wait = d.restartPolicy.millisUntilRestart(now);
+			if (wait > 0) {
+				us.log(d.deviceID.getID() + " is " + (d.restartPolicy.getState() == RestartPolicy.State.QUARANTINED ? "quarantined" : "backing off")
+						+ ". Waiting " + wait + "ms before trying to start it again.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				checkScheduler.schedule(d, wait);
 			} else {
 				us.log("It will be restarted.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 				restartMonitoredDevice(d);					
 			}
 		} else {
 			us.log("Device " + pd.getDeviceID().getID() + " is up and running. It does not need to be restarted.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			d.flapDamper.recordReachable();
+			if (d.restartPolicy.getState() == RestartPolicy.State.STOPPED) {
+				// Started before we were, for example by a previous PalComStarter
+				deviceRunning(d);
+			} else if (d.restartPolicy.checkStable(System.currentTimeMillis())) {
+				setKnownGoodVersion(d.deviceType, getMonitoredDeviceVersion(d));
+			}
 		}
 	}
 	
+	/**
+	 * @return true if we started the device and it has not exited. False if we did not start it.
+	 */
+	private static boolean isProcessAlive(MonitoredDevice d) {
+		Process p = d.p;
+		ProcessHandle adopted = d.adoptedProcess;
+		InProcessDeviceHost host = d.host;
+		return (p != null && p.isAlive()) || (adopted != null && adopted.isAlive()) || (host != null && host.isAlive());
+	}
+
 	private void checkAllMonitoredDevices() {
-		for (MonitoredDevice d: monitoredDevices) {
-			checkMonitoredDevice(d);
+		checkMonitoredDevices(monitoredDevices);
+	}
+
+	/**
+	 * Hands the devices to their shards to be checked, and restarted if they are down. Does not wait for the checks.
+	 */
+	private void checkMonitoredDevices(List<MonitoredDevice> devices) {
+		for (final MonitoredDevice d: devices) {
+			if (!workers.submit(d.deviceID.getID(), new Runnable() {
+				@Override
+				public void run() {
+					actionPermits.acquireUninterruptibly();
+					try {
+						// Held devices are checked when they are released
+						if (!halt && !heldDeviceTypes.contains(d.deviceType))
+							checkMonitoredDevice(d);
+					} finally {
+						actionPermits.release();
+					}
+				}
+			})) {
+				us.log("Device " + d.deviceID.getID() + " is already being handled. It will be checked again afterwards.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			}
 		}
 	}
 	
 	private boolean performMonitoredDeviceStartupCheck(MonitoredDevice d) {
-		if (socketSender == null) {
-			System.err.println("DERP IT IS NULL");
-		}
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		SocketSender socketSender = d.sender;
+		// Talk to the new device, not over a channel to a previous one
+		socketSender.closeChannel();
+		socketListener.startConversation(d.deviceID.getID());
+		int handshakeSeconds = timeoutSeconds(d, DurationEstimator.Kind.HANDSHAKE, MAX_SECONDS_WAIT_FOR_DEVICE);
+		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, handshakeSeconds)) {
 			us.log("Send msg timeout: Could not send msg to monitored device. Shutting down device again.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			killMonitoredDevice(d, false);
 			return false;
 		}
-		if (socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, MAX_SECONDS_WAIT_FOR_DEVICE) == null) {
+		if (socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, handshakeSeconds) == null) {
 			us.log("Wait for msg timeout: No socket response from monitored device. Shutting down device again.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			killMonitoredDevice(d, false);
 			return false;
 		}
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		long now = System.currentTimeMillis();
+		recordDuration(d, DurationEstimator.Kind.HANDSHAKE, now - d.startTimeMillis);
+		int replySeconds = timeoutSeconds(d, DurationEstimator.Kind.REPLY, MAX_SECONDS_WAIT_FOR_DEVICE);
+		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, replySeconds)) {
 			us.log("Send msg timeout: Could not send msg to monitored device. Shutting down device again.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			killMonitoredDevice(d, false);
 			return false;
 		}
-		if (socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, MAX_SECONDS_WAIT_FOR_DEVICE) == null) {
+		if (socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, replySeconds) == null) {
 			us.log("Wait for msg timeout: No socket response from monitored device. Shutting down device again.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			killMonitoredDevice(d, false);
 			return false;
 		}
+		recordDuration(d, DurationEstimator.Kind.REPLY, System.currentTimeMillis() - now);
+		socketSender.closeChannel();
 		us.log("Startup check finished.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		logStartupBenchmark(d);
 		return true;
 	}
 
 	@Override
 	public void run() {
 		us.log("Monitoring Thread started. Doing startup check.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-		doingStuffLock.acquireUninterruptibly();
+		// Before any device is hosted in-process, to tell what hosting them costs
+		MemoryBenchmark.recordBaseline();
+		adoptRunningMonitoredDevices();
+		heartbeatWatchdog.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkHeartbeats();
+				checkInProcessHosts();
+				if (heartbeatChecks++ % HEARTBEAT_CHECKS_PER_PROBE == 0)
+					sendDispatchProbes();
+			}
+		}, HeartbeatSender.HEARTBEAT_INTERVAL_MILLIS, HeartbeatSender.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
 		checkAllMonitoredDevices();
-		doingStuffLock.release();
+		List<MonitoredDevice> devices = new ArrayList<MonitoredDevice>();
 		while(true) {	
+			devices.clear();
 			try {
-				checkListSemaphore.acquire(); // wait for something to check in the checklist
+				checkScheduler.awaitDue(devices); // wait for devices whose checks are due
 			} catch (InterruptedException e1) {/* do nothing */}
 			if(!disableMonitorLock.tryAcquire()){ // there is something to check, but monitoring may be disabled
 				us.log("Monitoring is temporarily disabled.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
@@ -410,29 +1181,111 @@ class MonitoringThread extends Thread implements ResourceListener {
 				us.log("Monitoring Thread stopped.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 				return;
 			}
-			doingStuffLock.acquireUninterruptibly();
 			// BEGIN: Stuff to be done
-			MonitoredDevice md = checkList.poll();
-			checkMonitoredDevice(md);
+			// Devices that are due at the same time, for example because they went down together, are restarted together
+			checkMonitoredDevices(devices);
 			// END: Stuff to be done
-			doingStuffLock.release();	
 		}
 	}
 	
+	@Override
+	public void heartbeat(String peer, String health) {
+		MonitoredDevice d = monitoredDevicesByID.get(peer);
+		if (d == null || d.hung)
+			return;
+		long now = System.currentTimeMillis();
+		if (!d.heartbeating) {
+			// First heartbeat since the device was started. Nothing is known about its probes yet.
+			d.probeSentMillis = 0;
+			d.answersProbes = false;
+			d.ignoresProbes = false;
+		}
+		d.lastHealth = health;
+		d.lastHeartbeatMillis = now;
+		d.heartbeating = true;
+		long sent = d.probeSentMillis;
+		if (sent > 0 && HeartbeatSender.getField(health, HeartbeatSender.FIELD_PROBE, 0) >= d.probeID) {
+			d.answersProbes = true;
+			d.dispatchLagMillis = now - sent;
+			d.probeSentMillis = 0;
+		}
+		if (HeartbeatSender.getField(health, HeartbeatSender.FIELD_DEADLOCKED_THREADS, 0) > 0) {
+			us.log(d.deviceID.getID() + " reports deadlocked threads: " + health, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			deviceHung(d);
+		}
+	}
+
+	/**
+	 * Looks for devices whose heartbeats have stopped. Devices that have not sent any since they were
+	 * started, for example because they run an older UpdaterService, are left to discovery.
+	 */
+	private void checkHeartbeats() {
+		long now = System.currentTimeMillis();
+		for (MonitoredDevice d: monitoredDevices) {
+			if (d.heartbeating && !d.hung && now - d.lastHeartbeatMillis > heartbeatTimeoutMillis) {
+				us.log("No heartbeat from " + d.deviceID.getID() + " in " + (now - d.lastHeartbeatMillis) + "ms. Last health: " + d.lastHealth, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				deviceHung(d);
+				continue;
+			}
+			long sent = d.probeSentMillis;
+			if (d.heartbeating && !d.hung && sent > 0 && now - sent > maxDispatchLagMillis) {
+				if (d.answersProbes) {
+					us.log(d.deviceID.getID() + " has not handled a probe in " + (now - sent) + "ms, although it sends heartbeats. Last health: " + d.lastHealth, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+					deviceHung(d);
+				} else {
+					// Never answered one, so it runs an UpdaterService that does not know probes
+					d.ignoresProbes = true;
+					d.probeSentMillis = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a probe to every device that sends heartbeats and has answered the last probe. See {@link HeartbeatSender}.
+	 */
+	private void sendDispatchProbes() {
+		for (MonitoredDevice d: monitoredDevices) {
+			if (!d.heartbeating || d.hung || d.ignoresProbes || d.probeSentMillis != 0 || d.conn == null)
+				continue;
+			Command probe = us.getCommand(UpdaterService.COMMAND_OUT_PROBE);
+			long id = nextProbeID++;
+			probe.findParam(UpdaterService.PARAM_PROBE_ID).setData(Long.toString(id).getBytes());
+			d.probeID = id;
+			d.probeSentMillis = System.currentTimeMillis();
+			if (!sendCommandToMonitoredDevice(d, probe))
+				d.probeSentMillis = 0;
+		}
+	}
+
+	/**
+	 * Looks for devices hosted in-process whose threads have all finished. Nothing tells us when that happens,
+	 * like the exit of a process does, so they are checked as often as heartbeats.
+	 */
+	private void checkInProcessHosts() {
+		for (MonitoredDevice d: monitoredDevices) {
+			InProcessDeviceHost host = d.host;
+			if (host != null && !host.isAlive())
+				inProcessDeviceExited(d, host);
+		}
+	}
+
+	private void deviceHung(MonitoredDevice d) {
+		d.hung = true;
+		d.heartbeating = false;
+		checkScheduler.schedule(d, 0);
+	}
+
 	@Override
 	public void unavailable(Resource resource) {
 		if (resource instanceof DeviceProxy) {
 			DeviceProxy dp = (DeviceProxy) resource;
 			us.log("Unvailable: " + dp.getDeviceID().getID(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			for (MonitoredDevice md: monitoredDevices) {
-				if (dp.getDeviceID().getID().equals(md.deviceID.getID())) {
-					md.conn = null;
-					if (!checkList.contains(md)) {
-						checkList.add(md);
-						checkListSemaphore.release();							
-					}
-					break;
-				}
+			MonitoredDevice md = monitoredDevicesByID.get(dp.getDeviceID().getID());
+			if (md != null) {
+				md.conn = null;
+				md.flapDamper.recordUnreachable(System.currentTimeMillis());
+				checkScheduler.schedule(md, 0);
 			}
 		} else {
 			us.log("Unavailable: " + resource.toString(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);				
@@ -444,11 +1297,14 @@ class MonitoringThread extends Thread implements ResourceListener {
 		if (resource instanceof DeviceProxy) {
 			DeviceProxy dp = (DeviceProxy) resource;
 			us.log("Available: " + dp.getDeviceID().getID(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			for (MonitoredDevice md: monitoredDevices) {
-				if (dp.getDeviceID().getID().equals(md.deviceID.getID())) {
-					md.conn = us.getWritableConnectionToService(md.deviceID, UpdaterService.SERVICE_NAME, MAX_SECONDS_WAIT_FOR_DEVICE);
-					break;
+			MonitoredDevice md = monitoredDevicesByID.get(dp.getDeviceID().getID());
+			if (md != null) {
+				md.flapDamper.recordReachable();
+				if (md.awaitingDiscovery) {
+					md.awaitingDiscovery = false;
+					recordDuration(md, DurationEstimator.Kind.DISCOVERY, System.currentTimeMillis() - md.startTimeMillis);
 				}
+				md.conn = us.getWritableConnectionToService(md.deviceID, UpdaterService.SERVICE_NAME, MAX_SECONDS_WAIT_FOR_DEVICE);
 			}
 		} else {
 			us.log("Available: " + resource.toString(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);				
@@ -75,6 +75,9 @@ class PalComDeviceUpdateDescription {
 	boolean isProtocolBreaking() {
 		return updateType == MAJOR ? true : false;
 	}
+	boolean isPatch() {
+		return updateType == PATCH ? true : false;
+	}
 	boolean isIdentical() {
 		return updateType == IDENTICAL_VERSION ? true : false;
 	}
@@ -0,0 +1,182 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a monitored device that has gone down may be restarted. Every failure in a row (the device
+ * went down, could not be started or failed its startup check) doubles the wait before the next restart,
+ * with some jitter so that devices that went down together are not restarted in lockstep. A device that
+ * has run for a while is considered stable, and its next failure starts from scratch.
+ * <p>
+ * Too many failures within a sliding window is a crash loop. What to do about it (fall back to an older
+ * version, or quarantine the device) is up to the {@link MonitoringThread}. A quarantined device is not
+ * restarted until the quarantine has run out or is released.
+ * <p>
+ * There is one RestartPolicy per monitored device. It is used from several threads.
+ * @author splushii
+ *
+ */
+class RestartPolicy {
+	enum State {
+		/** Not started by us yet, or stopped on purpose */
+		STOPPED,
+		/** Started and passed the startup check */
+		RUNNING,
+		/** Went down, waiting for the backoff delay before the next restart */
+		BACKING_OFF,
+		/** Crash looping. Not restarted until the quarantine runs out or is released. */
+		QUARANTINED,
+	}
+
+	/**
+	 * Settings shared by all devices, from monitoring.properties.
+	 */
+	static class Settings {
+		long backoffBaseMillis = 1000;
+		long backoffMaxMillis = 5*60*1000;
+		double jitter = 0.2;
+		long crashLoopWindowMillis = 2*60*1000;
+		int crashLoopThreshold = 5;
+		long stableRunMillis = 60*1000;
+		long quarantineMillis = 10*60*1000;
+	}
+
+	private final Settings settings;
+	private State state = State.STOPPED;
+	private int consecutiveFailures = 0;
+	private final ArrayDeque<Long> recentFailureMillis = new ArrayDeque<Long>();
+	private long nextAttemptMillis = 0;
+	private long runningSinceMillis = -1;
+	private boolean stable = false;
+	private int restarts = 0;
+	private int failures = 0;
+	private int crashLoops = 0;
+	private int fallbacks = 0;
+
+	RestartPolicy(Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Records that the device went down or could not be brought up, and works out when it may be restarted.
+	 */
+	synchronized void recordFailure(long now) {
+		failures++;
+		if (stable) {
+			// It ran fine for a good while, so this is not part of a series of failures
+			consecutiveFailures = 0;
+		}
+		consecutiveFailures++;
+		recentFailureMillis.add(now);
+		while (!recentFailureMillis.isEmpty() && now - recentFailureMillis.peek() > settings.crashLoopWindowMillis) {
+			recentFailureMillis.poll();
+		}
+		runningSinceMillis = -1;
+		stable = false;
+		if (state != State.QUARANTINED || now >= nextAttemptMillis) {
+			state = State.BACKING_OFF;
+			nextAttemptMillis = now + backoffMillis(consecutiveFailures);
+		}
+	}
+
+	private long backoffMillis(int failuresInARow) {
+		if (failuresInARow <= 1)
+			return 0; // The first restart is immediate
+		long delay = settings.backoffBaseMillis << Math.min(failuresInARow - 2, 30);
+		if (delay <= 0 || delay > settings.backoffMaxMillis)
+			delay = settings.backoffMaxMillis;
+		double jitter = 1 + settings.jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+		return (long) (delay * jitter);
+	}
+
+	/**
+	 * @return true if the device has failed crashLoopThreshold times within the crash loop window
+	 */
+	synchronized boolean isCrashLooping() {
+		return state != State.QUARANTINED && recentFailureMillis.size() >= settings.crashLoopThreshold;
+	}
+
+	/**
+	 * Records that the device has been switched to another version because of a crash loop.
+	 * It may be restarted right away, and gets a fresh crash loop window.
+	 */
+	synchronized void recordFallback(long now) {
+		crashLoops++;
+		fallbacks++;
+		recentFailureMillis.clear();
+		consecutiveFailures = 0;
+		state = State.BACKING_OFF;
+		nextAttemptMillis = now;
+	}
+
+	synchronized void quarantine(long now) {
+		crashLoops++;
+		recentFailureMillis.clear();
+		state = State.QUARANTINED;
+		nextAttemptMillis = now + settings.quarantineMillis;
+	}
+
+	/**
+	 * Lifts a quarantine, or skips the current backoff, so that the device may be restarted right away.
+	 */
+	synchronized void release() {
+		recentFailureMillis.clear();
+		consecutiveFailures = 0;
+		if (state == State.QUARANTINED || state == State.BACKING_OFF) {
+			state = State.BACKING_OFF;
+			nextAttemptMillis = 0;
+		}
+	}
+
+	/**
+	 * @return 0 if the device may be restarted now, otherwise how long until it may
+	 */
+	synchronized long millisUntilRestart(long now) {
+		if (state != State.BACKING_OFF && state != State.QUARANTINED)
+			return 0;
+		return Math.max(0, nextAttemptMillis - now);
+	}
+
+	synchronized void recordRestart() {
+		restarts++;
+	}
+
+	/**
+	 * Records that the device is up and has passed its startup check.
+	 */
+	synchronized void recordRunning(long now) {
+		state = State.RUNNING;
+		runningSinceMillis = now;
+		stable = false;
+	}
+
+	/**
+	 * @return true the first time this is called after the device has been running for stableRunMillis
+	 */
+	synchronized boolean checkStable(long now) {
+		if (state != State.RUNNING || stable || now - runningSinceMillis < settings.stableRunMillis)
+			return false;
+		stable = true;
+		return true;
+	}
+
+	synchronized void recordStopped() {
+		state = State.STOPPED;
+		runningSinceMillis = -1;
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	long getStableRunMillis() {
+		return settings.stableRunMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "state=" + state + " restarts=" + restarts + " failures=" + failures + " failuresInARow=" + consecutiveFailures
+				+ " crashLoops=" + crashLoops + " fallbacks=" + fallbacks;
+	}
+}
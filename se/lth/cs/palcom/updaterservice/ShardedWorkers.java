@@ -0,0 +1,128 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs actions on a fixed set of worker threads, where each key is always handled by the same worker (its shard).
+ * At most one action per key is queued or running at a time. An action submitted for a key that already has
+ * one in flight is remembered and run when the first one is done, replacing any action remembered before it.
+ * So a key that hangs holds up only the keys in its own shard, and repeated submits for a busy key collapse into one.
+ * @author splushii
+ *
+ * @param <K> the key type, for example a device ID
+ */
+class ShardedWorkers<K> {
+	private final ExecutorService[] shards;
+	// Keys with an action queued or running, mapped to the action to run after it, or null. Guarded by itself,
+	// and notified when a key leaves it.
+	private final Map<K, Runnable> inFlight = new HashMap<K, Runnable>();
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param name used to name the worker threads
+	 * @param shardCount number of worker threads
+	 */
+	ShardedWorkers(final String name, int shardCount) {
+		shards = new ExecutorService[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			final String threadName = name + " " + i;
+			shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return false if the action was not queued to run right away, either because the key has
+	 * an action in flight (the new one runs after it) or because the workers are shut down
+	 */
+	boolean submit(K key, Runnable action) {
+		synchronized (inFlight) {
+			if (shutdown)
+				return false;
+			if (inFlight.containsKey(key)) {
+				inFlight.put(key, action);
+				return false;
+			}
+			inFlight.put(key, null);
+		}
+		execute(key, action);
+		return true;
+	}
+
+	/**
+	 * Waits until the key has no action queued or running.
+	 */
+	void awaitIdle(K key) throws InterruptedException {
+		synchronized (inFlight) {
+			while (inFlight.containsKey(key)) {
+				inFlight.wait();
+			}
+		}
+	}
+
+	private void execute(final K key, final Runnable action) {
+		try {
+			shardFor(key).execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!shutdown)
+							action.run();
+					} finally {
+						done(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (inFlight) {
+				inFlight.remove(key);
+				inFlight.notifyAll();
+			}
+		}
+	}
+
+	private void done(K key) {
+		Runnable next;
+		synchronized (inFlight) {
+			next = inFlight.get(key);
+			if (next == null || shutdown) {
+				inFlight.remove(key);
+				inFlight.notifyAll();
+				return;
+			}
+			inFlight.put(key, null);
+		}
+		execute(key, next);
+	}
+
+	private ExecutorService shardFor(K key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return shards[(h & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Stops accepting actions. Actions already running are allowed to finish, queued ones are dropped.
+	 */
+	void shutdown() {
+		synchronized (inFlight) {
+			shutdown = true;
+			inFlight.clear();
+			inFlight.notifyAll();
+		}
+		for (ExecutorService shard: shards) {
+			shard.shutdown();
+		}
+	}
+}
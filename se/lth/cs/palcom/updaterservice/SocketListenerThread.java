@@ -1,154 +1,365 @@
 package se.lth.cs.palcom.updaterservice;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import se.lth.cs.palcom.logging.Logger;
 
 /**
- * A helper class running as a thread used to receive and buffer Update Protocols commands over TCP.
- * Ugly, but does its job.
+ * A helper class running as a thread used to receive and buffer Update Protocols commands over TCP or Unix domain sockets.
+ * One {@link Selector} serves the listening socket and all open {@link UpdateProtocolChannel}s, both accepted ones
+ * and the ones opened by our {@link SocketSender}, so many peers can talk to us at the same time.
+ * Every received message is put in a {@link MessageBus} mailbox for its message type and the peer it came from,
+ * where it stays until someone waits for it. Heartbeats are not buffered but handed straight to the
+ * {@link HeartbeatListener}, if there is one. Ugly, but does its job.
  * @author Christian Hernvall
  *
  */
 class SocketListenerThread extends Thread {
+	/**
+	 * Told about every heartbeat that is received. Called on the listener thread, so it must be quick.
+	 */
+	interface HeartbeatListener {
+		void heartbeat(String peer, String health);
+	}
+
 	static final int WAIT_FOREVER = -1;
-	private int listeningPort;
-	private LinkedBlockingQueue<String> msgBox;
-	private ServerSocket ss;
-	private Semaphore wakeLock = new Semaphore(0);
-	private boolean halt = false;
+	private static final long CLOSE_SOCKET_TIMEOUT_MILLIS = 1000;
+	private UpdateProtocolEndpoint endpoint;
+	private static final int MAILBOX_CAPACITY = 256;
+	private static final String DATA_TOPIC = "data";
+	private MessageBus<String> msgBus;
+	private volatile String defaultPeer;
+	private volatile String legacyPeer;
+	private volatile Selector selector;
+	private ServerSocketChannel ss;
+	private Set<UpdateProtocolChannel> acceptedChannels = ConcurrentHashMap.newKeySet();
+	// Changes to the selector's channels are made by the selector thread only
+	private Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean halt = false;
+	private volatile HeartbeatListener heartbeatListener;
 	private UpdaterService us;
-	
-	SocketListenerThread(UpdaterService us, int port) {
-		this.listeningPort = port;
+
+	SocketListenerThread(UpdaterService us, UpdateProtocolEndpoint endpoint) {
+		this.endpoint = endpoint;
 		this.us = us;
-		msgBox = new LinkedBlockingQueue<String>();
+		msgBus = new MessageBus<String>(us, "SocketListener", MAILBOX_CAPACITY, MessageBus.OverflowPolicy.DROP_OLDEST);
 	}
-	
+
 	void stopThread() {
 		if (!halt) {
 			halt = true;
-			if(ss.isClosed()) {
-				wakeLock.release();
-			} else {
-				closeSocket();				
-			}			
+			wakeUpSelector();
+		}
+	}
+
+	void setHeartbeatListener(HeartbeatListener heartbeatListener) {
+		this.heartbeatListener = heartbeatListener;
+	}
+
+	/**
+	 * Sets whom {@link #getData()}, {@link #waitForMsg(String, int)} and {@link #waitForAnyMsg(String[], int)} wait for.
+	 * @param peer the device ID of the peer, or PalComStarter
+	 */
+	void setDefaultPeer(String peer) {
+		defaultPeer = peer;
+	}
+
+	/**
+	 * Sets whom messages on channels from old peers, which do not say hello, are taken to come from.
+	 * Old peers only talk to one device at a time, so this is the one our {@link SocketSender} last
+	 * found to be old. Until then it is the default peer.
+	 */
+	void setLegacyPeer(String peer) {
+		legacyPeer = peer;
+	}
+
+	/**
+	 * Throws away what is left from an earlier conversation with the peer, so that late replies
+	 * to that conversation are not taken for replies in the new one.
+	 */
+	void startConversation(String peer) {
+		int removed = msgBus.clearCorrelation(peer);
+		if (removed > 0) {
+			us.log("Removed " + removed + " stale message(s) from " + peer + " before starting a new conversation.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		}
 	}
-	
-	String getMsg() {
+
+	/**
+	 * Takes the next value sent with {@link SocketSender#sendData(String, int)} by the default peer. Waits forever.
+	 */
+	String getData() {
+		return getDataFrom(defaultPeer, WAIT_FOREVER);
+	}
+
+	/**
+	 * @return the next value sent with {@link SocketSender#sendData(String, int)} by the peer, or null on timeout
+	 */
+	String getDataFrom(String peer, int waitInSeconds) {
+		return msgBus.take(DATA_TOPIC, peer, waitInSeconds);
+	}
+
+	String waitForMsg(String msgID, int waitInSeconds) {
+		return waitForAnyMsgFrom(defaultPeer, new String[] {msgID}, waitInSeconds);
+	}
+
+	/**
+	 * Waits for the first message from the default peer matching any of the given IDs.
+	 * @return the matching message, {@link UpdaterService#UPDATE_PROTOCOL_ABORT}, or null on timeout
+	 */
+	String waitForAnyMsg(String[] msgIDs, int waitInSeconds) {
+		return waitForAnyMsgFrom(defaultPeer, msgIDs, waitInSeconds);
+	}
+
+	/**
+	 * Waits for a message from a specific peer.
+	 * @param peer the device ID of the peer, or PalComStarter
+	 * @return the message, {@link UpdaterService#UPDATE_PROTOCOL_ABORT}, or null on timeout
+	 */
+	String waitForMsgFrom(String peer, String msgID, int waitInSeconds) {
+		return waitForAnyMsgFrom(peer, new String[] {msgID}, waitInSeconds);
+	}
+
+	/**
+	 * Waits for the first message from a specific peer matching any of the given IDs. Messages that
+	 * do not match are kept for whoever waits for them. An abort from the peer always ends the wait.
+	 * @param peer the device ID of the peer, or PalComStarter
+	 * @return the matching message, {@link UpdaterService#UPDATE_PROTOCOL_ABORT}, or null on timeout
+	 */
+	String waitForAnyMsgFrom(String peer, String[] msgIDs, int waitInSeconds) {
+		String[] topics = Arrays.copyOf(msgIDs, msgIDs.length + 1);
+		topics[msgIDs.length] = UpdaterService.UPDATE_PROTOCOL_ABORT;
+		Map.Entry<String, String> msg = msgBus.takeAny(topics, peer, waitInSeconds);
+		return msg == null ? null : msg.getValue();
+	}
+
+	/**
+	 * Closes the listening socket and all connections accepted by it, so that the port and the
+	 * peer are free for someone else. Returns when the socket is closed.
+	 */
+	void closeSocket() {
+		if (selector == null || Thread.currentThread() == this) {
+			closeListeningSocket();
+			return;
+		}
+		// A channel registered with a selector is not released until the selector has deregistered it,
+		// so let the selector thread do the closing.
+		final CountDownLatch closed = new CountDownLatch(1);
+		runOnSelectorThread(new Runnable() {
+			@Override
+			public void run() {
+				closeListeningSocket();
+				closed.countDown();
+			}
+		});
 		try {
-			return msgBox.take();
+			if (!closed.await(CLOSE_SOCKET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				us.log("Timeout when closing the listening socket in SocketListener.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			}
 		} catch (InterruptedException e) {
 			e.printStackTrace();
-			return null;
 		}
 	}
-	
-	String waitForMsg(String msgID, int waitInSeconds) {
-		String msg = null;
-		long stopTimeMillis = System.currentTimeMillis() + waitInSeconds*1000;
-		while(true) {
-			try {
-				if (waitInSeconds == WAIT_FOREVER) {
-					msg = msgBox.take();
-				} else {
-					long currentTimeMillis = System.currentTimeMillis();
-					if (stopTimeMillis < currentTimeMillis) {
-						return msg;
-					}
-					msg = msgBox.poll(stopTimeMillis-currentTimeMillis, TimeUnit.MILLISECONDS);					
+
+	private void closeListeningSocket() {
+		try {
+			if (ss != null) {
+				ss.close();
+				if (selector != null) {
+					selector.selectNow();
 				}
-				if (msg != null && msg.equals(msgID)) {
-					return msg;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (UpdateProtocolChannel channel: acceptedChannels) {
+			channel.close();
+		}
+		acceptedChannels.clear();
+	}
+
+	UpdateProtocolEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	boolean isSocketClosed() {
+		return ss == null || !ss.isOpen();
+	}
+
+	/**
+	 * Reopens the listening socket if it is closed.
+	 */
+	void reopenSocket() {
+		runOnSelectorThread(new Runnable() {
+			@Override
+			public void run() {
+				if (isSocketClosed()) {
+					openListeningSocket();
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}				
+			}
+		});
+	}
+
+	/**
+	 * Lets the selector read messages from a channel that we opened ourselves.
+	 */
+	void startReading(final UpdateProtocolChannel channel) throws IOException {
+		channel.getSocketChannel().configureBlocking(false);
+		runOnSelectorThread(new Runnable() {
+			@Override
+			public void run() {
+				register(channel);
+			}
+		});
+	}
+
+	private void runOnSelectorThread(Runnable task) {
+		selectorTasks.add(task);
+		wakeUpSelector();
+	}
+
+	private void wakeUpSelector() {
+		Selector s = selector;
+		if (s != null) {
+			s.wakeup();
 		}
 	}
-	
-	private void addMsg(String msg) {
+
+	private boolean openListeningSocket() {
 		try {
-			msgBox.put(msg);
-		} catch (InterruptedException e) {
-			us.log("Got interrupted when trying to add msg \"" + msg + "\" to SocketListener's msgBox", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			ss = endpoint.bind();
+			ss.configureBlocking(false);
+			ss.register(selector, SelectionKey.OP_ACCEPT);
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			us.log("Could not open listening socket on " + endpoint, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
 		}
 	}
-	
-	void closeSocket() {
+
+	private void register(UpdateProtocolChannel channel) {
 		try {
-			ss.close();
+			channel.getSocketChannel().register(selector, SelectionKey.OP_READ, channel);
 		} catch (IOException e) {
-			e.printStackTrace();
+			// Closed before we got to it
+			channel.close();
 		}
 	}
-	
-	boolean isSocketClosed() {
-		return ss.isClosed();
+
+	private void accept() {
+		try {
+			SocketChannel sock = ss.accept();
+			if (sock == null)
+				return;
+			UpdateProtocolChannel channel = new UpdateProtocolChannel(sock);
+			channel.sendHello(us.getUpdateProtocolName());
+			sock.configureBlocking(false);
+			acceptedChannels.add(channel);
+			register(channel);
+		} catch (IOException e) {
+			us.log("Could not accept connection in SocketListener: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		}
 	}
-	
-	void reopenSocket() {
-		wakeLock.release();
+
+	private void read(SelectionKey key) {
+		UpdateProtocolChannel channel = (UpdateProtocolChannel) key.attachment();
+		List<String> messages = new ArrayList<String>();
+		List<String> data = new ArrayList<String>();
+		List<String> heartbeats = new ArrayList<String>();
+		boolean open;
+		try {
+			open = channel.read(messages, data, heartbeats);
+		} catch (IOException e) {
+			if (channel.isOpen()) {
+				us.log("Update Protocol channel broken: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			}
+			open = false;
+		}
+		String peer = channel.getPeer();
+		if (peer == null && channel.isLegacy()) {
+			peer = legacyPeer != null ? legacyPeer : defaultPeer;
+		}
+		for (String msg: messages) {
+			us.log("Socket message received from " + peer + " \"" + msg + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			msgBus.post(msg, peer, msg);
+		}
+		for (String value: data) {
+			us.log("Socket data received from " + peer + " \"" + value + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			msgBus.post(DATA_TOPIC, peer, value);
+		}
+		HeartbeatListener listener = heartbeatListener;
+		if (listener != null && channel.getPeer() != null) {
+			for (String health: heartbeats) {
+				listener.heartbeat(channel.getPeer(), health);
+			}
+		}
+		if (!open) {
+			key.cancel();
+			channel.close();
+			acceptedChannels.remove(channel);
+		}
 	}
 
 	@Override
 	public void run() {
-		us.log("SocketListener Thread started. Socket listening on port " + listeningPort, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		us.log("SocketListener Thread started. Socket listening on " + endpoint, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		try {
-			ss = new ServerSocket(listeningPort);
+			selector = Selector.open();
 		} catch (IOException e1) {
 			e1.printStackTrace();
 			us.log("SocketListener Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 			return;
 		}
-		Socket sock;
-		while (true) {
+		if (!openListeningSocket()) {
+			us.log("SocketListener Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			return;
+		}
+		while (!halt) {
 			try {
-				sock = ss.accept();
-//				PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-				BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-				String line = null;
-				while ((line = in.readLine()) != null) {
-					us.log("Socket message received \"" + line + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-					addMsg(line);
-				}
-			} catch (SocketException e) {
-				if (halt) {
-					us.log("SocketListener Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-					return;
-				}
-				us.log("SocketException (" + e.getMessage() + ") in SocketListener. Waiting until awoken.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-				try {
-					ss.close();
-				} catch (IOException e2) {
-					us.log("Could not close socket in SocketListener.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-				}
-				wakeLock.acquireUninterruptibly();
-				if (halt) {
-					us.log("SocketListener Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-					return;
-				}
-				try {
-					ss = new ServerSocket(listeningPort);
-				} catch (IOException e2) {
-					e2.printStackTrace();
-					us.log("Could not open SocketListener again. Returning", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-					break;
-				}
+				selector.select();
 			} catch (IOException e) {
-				e.printStackTrace();					
+				e.printStackTrace();
+				break;
+			}
+			Runnable task;
+			while ((task = selectorTasks.poll()) != null) {
+				task.run();
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+				} else if (key.isReadable()) {
+					read(key);
+				}
 			}
 		}
+		closeListeningSocket();
+		try {
+			for (SelectionKey key: selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {/* do nothing */}
 		us.log("SocketListener Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 	}
-}
\ No newline at end of file
+}
@@ -1,76 +1,318 @@
 package se.lth.cs.palcom.updaterservice;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 import se.lth.cs.palcom.logging.Logger;
 
 /**
- * A helper class used to send Update Protocol commands over TCP.
+ * A helper class used to send Update Protocol commands over TCP or Unix domain sockets. Keeps one {@link UpdateProtocolChannel}
+ * open to the peer, so that a conversation only costs one connect. Messages that the peer sends back on
+ * the channel are handed to the {@link SocketListenerThread}. Idle channels are kept alive with keep-alive
+ * frames, which also makes us notice a dead peer before the next real message. PalComStarter has one sender
+ * per monitored device, so all senders share one keep-alive timer thread.
+ * <p>
+ * If the peer does not say hello when the channel is opened, it is an older version. Then messages are sent
+ * the way it expects, as text lines on a connection of their own, and heartbeats and keep-alives are not sent.
+ * This is remembered from one conversation to the next, so that only the first one waits for the hello. If the
+ * peer is replaced by a newer version, the newer version says hello on the connection of a line, and the next
+ * message is sent on a channel again.
+ * <p>
+ * Heartbeats never wait for messages. Sending a message may take long, for example while the peer is not
+ * listening yet, and a device that is busy sending must not look hung because its heartbeats were held up.
  * @author Christian Hernvall
  *
  */
 
 class SocketSender {
 	static final int TRY_FOREVER = -1;
-	private int sendPort;
-	private Socket s;
+	private static final long KEEP_ALIVE_INTERVAL_MILLIS = 5000;
+	// How often a heartbeat may try to open a new channel, so that a missing peer is not hammered
+	private static final long HEARTBEAT_RECONNECT_DELAY_MILLIS = 5000;
+	// The peer says hello as soon as it accepts the channel, so this is plenty
+	private static final long HELLO_TIMEOUT_MILLIS = 1000;
+	private UpdateProtocolEndpoint target;
+	private final String peer;
+	// Held while the channel is opened, closed or used for messages. Heartbeats only try to get it.
+	private final ReentrantLock lock = new ReentrantLock();
+	// True if the peer is an older version that only understands text lines
+	private volatile boolean legacy = false;
+	private volatile UpdateProtocolChannel channel;
 	private UpdaterService us;
+	private SocketListenerThread socketListener;
 	private long defaultRetryDelayMillis = 100;
-	SocketSender(UpdaterService us, int sendPort) {
-		this.sendPort = sendPort;
+	private static final Timer keepAliveTimer = new Timer("SocketSender keep-alive", true);
+	private TimerTask keepAliveTask;
+	private long nextHeartbeatConnectMillis = 0;
+	/**
+	 * @param peer the name the peer says hello with. Replies from an older peer, which does not say hello, are taken to come from it.
+	 */
+	SocketSender(UpdaterService us, SocketListenerThread socketListener, UpdateProtocolEndpoint target, String peer) {
+		this.target = target;
+		this.peer = peer;
 		this.us = us;
+		this.socketListener = socketListener;
+		keepAliveTask = new TimerTask() {
+			@Override
+			public void run() {
+				sendKeepAlive();
+			}
+		};
+		keepAliveTimer.schedule(keepAliveTask, KEEP_ALIVE_INTERVAL_MILLIS, KEEP_ALIVE_INTERVAL_MILLIS);
 	}
 	/**
-	 * 
-	 * @param msg
+	 *
+	 * @param msg one of the UPDATE_PROTOCOL messages
 	 * @param waitInSeconds SocketSender.TRY_FOREVER (-1) to try forever
 	 */
-	synchronized boolean sendMsg(String msg, int waitInSeconds) {
+	boolean sendMsg(String msg, int waitInSeconds) {
+		return send(UpdateProtocolChannel.FRAME_MESSAGE, msg, waitInSeconds);
+	}
+
+	/**
+	 * Sends a value that the peer reads with {@link SocketListenerThread#getData()}.
+	 * @param data
+	 * @param waitInSeconds SocketSender.TRY_FOREVER (-1) to try forever
+	 */
+	boolean sendData(String data, int waitInSeconds) {
+		return send(UpdateProtocolChannel.FRAME_DATA, data, waitInSeconds);
+	}
+
+	/**
+	 * Sends a heartbeat without waiting. A heartbeat that cannot be sent right away is dropped, since
+	 * the next one is never far off. It goes on the open channel even while a message is being sent, and
+	 * only opens a new channel if no message is being sent, since the sender of the message opens one anyway.
+	 * @param health the health fields of the heartbeat
+	 * @return false if the heartbeat was dropped
+	 */
+	boolean sendHeartbeat(String health) {
+		if (legacy)
+			return false;
+		UpdateProtocolChannel c = channel;
+		if (c == null || !c.isOpen()) {
+			if (!lock.tryLock())
+				return false;
+			try {
+				c = channel;
+				if (legacy)
+					return false;
+				if (c == null || !c.isOpen()) {
+					long now = System.currentTimeMillis();
+					if (now < nextHeartbeatConnectMillis)
+						return false;
+					nextHeartbeatConnectMillis = now + HEARTBEAT_RECONNECT_DELAY_MILLIS;
+					c = connect(now, 0);
+					channel = c;
+					if (c == null)
+						return false;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		try {
+			c.sendHeartbeat(health);
+			return true;
+		} catch (IOException e) {
+			// Whoever sends next opens a new channel
+			c.close();
+			return false;
+		}
+	}
+
+	private boolean send(byte frameType, String msg, int waitInSeconds) {
+		lock.lock();
+		try {
+			return sendLocked(frameType, msg, waitInSeconds);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must be called with lock held
+	private boolean sendLocked(byte frameType, String msg, int waitInSeconds) {
 		long stopTimeMillis = System.currentTimeMillis() + waitInSeconds*1000;
-		boolean connected = false;
-		while (!connected) {
+		while (true) {
+			if (!legacy && (channel == null || !channel.isOpen())) {
+				channel = connect(stopTimeMillis, waitInSeconds);
+				if (channel == null && !legacy) {
+					return false;
+				}
+			}
+			if (legacy) {
+				return sendLine(msg, stopTimeMillis, waitInSeconds);
+			}
 			try {
-				connected = true;
-				s = new Socket("localhost", sendPort);
-			} catch (ConnectException e) {
-				connected = false;
-				long timeLeftToStopMillis = stopTimeMillis - System.currentTimeMillis();
-				if (waitInSeconds != -1 && timeLeftToStopMillis < 0) {
-					us.log("SocketSender could not connect to localhost port " + sendPort, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				if (frameType == UpdateProtocolChannel.FRAME_DATA) {
+					channel.sendData(msg);
+				} else {
+					channel.send(msg);
+				}
+				us.log("Socket message sent: \"" + msg + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return true;
+			} catch (IOException e) {
+				// The peer has gone away since the channel was opened. Try again with a new channel.
+				channel.close();
+				channel = null;
+				if (waitInSeconds != TRY_FOREVER && stopTimeMillis < System.currentTimeMillis()) {
+					us.log("SocketSender could not send msg: " + msg  + ". IOException: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 					return false;
 				}
-				long msToWait = defaultRetryDelayMillis < timeLeftToStopMillis ? defaultRetryDelayMillis : timeLeftToStopMillis;
-				us.log("SocketSender could not connect to localhost port " + sendPort + ". Trying again in " + msToWait + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			}
+		}
+	}
+
+	/**
+	 * Opens a channel to the target and waits for the hello of the peer. If the peer does not say hello,
+	 * it is an older version, and the sender switches to text lines.
+	 * @return the channel, or null if none could be opened or the peer is old
+	 */
+	private UpdateProtocolChannel connect(long stopTimeMillis, int waitInSeconds) {
+		SocketChannel sc = openSocket(stopTimeMillis, waitInSeconds);
+		if (sc == null)
+			return null;
+		try {
+			UpdateProtocolChannel newChannel = new UpdateProtocolChannel(sc);
+			if (!newChannel.awaitHello(HELLO_TIMEOUT_MILLIS)) {
+				us.log("No hello from " + target + ". Talking to it as an older version.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				newChannel.close();
+				legacy = true;
+				socketListener.setLegacyPeer(peer);
+				return null;
+			}
+			newChannel.sendHello(us.getUpdateProtocolName());
+			socketListener.startReading(newChannel);
+			return newChannel;
+		} catch (IOException e) {
+			us.log("SocketSender: IOException: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			try {
+				sc.close();
+			} catch (IOException e1) {/* do nothing */}
+			return null;
+		}
+	}
+
+	/**
+	 * Sends a message to an older peer on a connection of its own, like older versions did.
+	 */
+	private boolean sendLine(String msg, long stopTimeMillis, int waitInSeconds) {
+		SocketChannel sc = openSocket(stopTimeMillis, waitInSeconds);
+		if (sc == null)
+			return false;
+		try {
+			UpdateProtocolChannel.sendLine(sc, msg);
+			us.log("Socket message sent as a line: \"" + msg + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			if (new UpdateProtocolChannel(sc).hasSaidHello()) {
+				us.log(target + " said hello. Talking to it as a newer version from now on.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				legacy = false;
+			}
+			return true;
+		} catch (IOException e) {
+			us.log("SocketSender could not send msg: " + msg  + ". IOException: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return false;
+		} finally {
+			try {
+				sc.close();
+			} catch (IOException e) {/* do nothing */}
+		}
+	}
+
+	/**
+	 * Connects to the target, trying again until it is listening or the time is up.
+	 * @return a blocking socket channel, or null
+	 */
+	private SocketChannel openSocket(long stopTimeMillis, int waitInSeconds) {
+		if (target == null) {
+			us.log("SocketSender does not know whom to send to.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return null;
+		}
+		while (true) {
+			try {
+				return target.connect();
+			} catch (SocketException e) {
+				// Nobody is listening yet. For Unix domain sockets the socket file may not even exist yet.
+				long timeLeftToStopMillis = stopTimeMillis - System.currentTimeMillis();
+				if (waitInSeconds != TRY_FOREVER && timeLeftToStopMillis < 0) {
+					us.log("SocketSender could not connect to " + target, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+					return null;
+				}
+				long msToWait = waitInSeconds == TRY_FOREVER || defaultRetryDelayMillis < timeLeftToStopMillis ? defaultRetryDelayMillis : timeLeftToStopMillis;
+				us.log("SocketSender could not connect to " + target + ". Trying again in " + msToWait + "ms.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 				try {
 					Thread.sleep(msToWait);
 				} catch (InterruptedException e1) {/* do nothing */}
-			} catch (UnknownHostException e) {
+			} catch (UnresolvedAddressException e) {
 				us.log("SocketSender: Unknown host.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-				return false;
+				return null;
 			} catch (IOException e) {
 				us.log("SocketSender: IOException: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-				return false;
-			}			
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Sets whom to talk to from now on. The channel to the previous target is closed, and whether the
+	 * new target is an older version is found out again.
+	 */
+	void setTarget(UpdateProtocolEndpoint target) {
+		lock.lock();
+		try {
+			closeChannel();
+			this.target = target;
+			legacy = false;
+		} finally {
+			lock.unlock();
 		}
-		
-		BufferedWriter out;
+	}
+
+	/**
+	 * Ends the current conversation. The next message will be sent on a new channel, to whoever
+	 * is listening on the port by then. An older peer is still sent text lines, without waiting for a hello.
+	 */
+	void closeChannel() {
+		lock.lock();
 		try {
-			out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
-			out.write(msg);
-			us.log("Socket message sent: \"" + msg + "\"", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			out.newLine();
-			out.flush();
-			out.close();
-			s.close();
-		} catch (IOException e) {
-			us.log("SocketSender could not send msg: " + msg  + ". IOException: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-			return false;
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the channel and stops sending keep-alives. The sender must not be used after this.
+	 */
+	void close() {
+		keepAliveTask.cancel();
+		closeChannel();
+	}
+
+	private void sendKeepAlive() {
+		// A message is being sent, which keeps the channel alive anyway
+		if (!lock.tryLock())
+			return;
+		try {
+			if (channel == null || !channel.isOpen())
+				return;
+			if (System.currentTimeMillis() - channel.getLastSendMillis() < KEEP_ALIVE_INTERVAL_MILLIS)
+				return;
+			try {
+				channel.sendKeepAlive();
+			} catch (IOException e) {
+				us.log("Update Protocol channel to " + target + " is dead. Closing it.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				channel.close();
+				channel = null;
+			}
+		} finally {
+			lock.unlock();
 		}
-		return true;
 	}
 }
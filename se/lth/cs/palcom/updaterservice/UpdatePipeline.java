@@ -0,0 +1,102 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * One update of one or more device types, from the announcement until it is finished or aborted. Each pipeline
+ * has its own state, so updates of different device types can run side by side, and management commands keep
+ * working while they do. A device type is updated by at most one pipeline at a time. A pipeline that updates
+ * PalComStarter or breaks the protocol runs alone, see {@link UpdaterService#runAlone(UpdatePipeline)}.
+ * <p>
+ * The state only changes by compare-and-set, and only along the transitions in the table, so a late reply or
+ * a second thread cannot move a pipeline back into a state it has left.
+ * @author splushii
+ *
+ */
+class UpdatePipeline {
+	enum State {
+		/** Comparing the announced versions with ours and downloading the new ones */
+		PREPARING,
+		/** Waiting for update data from the update server */
+		WAITING_FOR_JAR,
+		/** Downloaded, waiting for the update scheduler to allow swapping */
+		SCHEDULED,
+		/** Replacing running devices by their new versions */
+		SWAPPING,
+		/** Replacing PalComStarter, by update stage two or by the supervisor */
+		HANDING_OVER,
+		FINISHED,
+		ABORTED,
+	}
+
+	private static final EnumMap<State, Set<State>> TRANSITIONS = new EnumMap<State, Set<State>>(State.class);
+	static {
+		TRANSITIONS.put(State.PREPARING, EnumSet.of(State.WAITING_FOR_JAR, State.SCHEDULED, State.SWAPPING, State.FINISHED, State.ABORTED));
+		TRANSITIONS.put(State.WAITING_FOR_JAR, EnumSet.of(State.PREPARING, State.ABORTED));
+		TRANSITIONS.put(State.SCHEDULED, EnumSet.of(State.SWAPPING, State.FINISHED, State.ABORTED));
+		TRANSITIONS.put(State.SWAPPING, EnumSet.of(State.HANDING_OVER, State.FINISHED, State.ABORTED));
+		TRANSITIONS.put(State.HANDING_OVER, EnumSet.of(State.ABORTED));
+		TRANSITIONS.put(State.FINISHED, EnumSet.noneOf(State.class));
+		TRANSITIONS.put(State.ABORTED, EnumSet.noneOf(State.class));
+	}
+
+	private final UpdaterService us;
+	private final int id;
+	private final Set<String> deviceTypes;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.PREPARING);
+
+	UpdatePipeline(UpdaterService us, int id, Set<String> deviceTypes) {
+		this.us = us;
+		this.id = id;
+		this.deviceTypes = Collections.unmodifiableSet(new LinkedHashSet<String>(deviceTypes));
+	}
+
+	/**
+	 * @return false if the pipeline may not go to the state from the state it is in
+	 */
+	boolean moveTo(State to) {
+		while (true) {
+			State from = state.get();
+			if (!TRANSITIONS.get(from).contains(to)) {
+				us.log("Update pipeline " + this + " cannot go from " + from + " to " + to + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				return false;
+			}
+			if (state.compareAndSet(from, to)) {
+				us.log("Update pipeline " + this + ": " + from + " -> " + to, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				return true;
+			}
+		}
+	}
+
+	State getState() {
+		return state.get();
+	}
+
+	boolean isDone() {
+		State s = state.get();
+		return s == State.FINISHED || s == State.ABORTED;
+	}
+
+	/**
+	 * @return true if this pipeline updates the device type
+	 */
+	boolean updates(String deviceType) {
+		return deviceTypes.contains(deviceType);
+	}
+
+	Set<String> getDeviceTypes() {
+		return deviceTypes;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + id + " " + deviceTypes;
+	}
+}
@@ -0,0 +1,176 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.lth.cs.palcom.device.DeviceProperties;
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Plans in which order the device types of an update are swapped to their new versions. A device type may depend
+ * on other device types, which means that its new version needs the new versions of those running before it starts.
+ * Dependencies are configured per new version or per device type in monitoring.properties:
+ * <pre>
+ * deviceTypeDependencies@TypeA-2.0.0=TypeB,TypeC
+ * deviceTypeDependencies@TypeA=TypeB
+ * </pre>
+ * With Kahn's algorithm the types are split into waves, where every wave holds the types whose dependencies are all
+ * in earlier waves. All devices of a wave can be swapped at the same time, so an update takes as many swaps as the
+ * longest dependency chain, however many devices there are. Dependencies on types that are not part of the update
+ * are already satisfied. Types in a dependency cycle are swapped together in a last wave.
+ * <p>
+ * If a type fails, only the types that depend on it, directly or not, are affected. See {@link #affectedBy(String)}.
+ * @author splushii
+ *
+ */
+class UpdatePlanner {
+	private final LinkedHashMap<String, PalComDeviceUpdateDescription> updates = new LinkedHashMap<String, PalComDeviceUpdateDescription>();
+	// The types of the update that a type depends on, and the types that depend on it
+	private final HashMap<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+	private final HashMap<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+	private final List<List<PalComDeviceUpdateDescription>> waves;
+	// The types that are in or behind a dependency cycle, swapped together in the last wave
+	private final List<PalComDeviceUpdateDescription> cycle = new ArrayList<PalComDeviceUpdateDescription>();
+
+	/**
+	 * Plans the update with the dependencies configured in monitoring.properties.
+	 */
+	UpdatePlanner(UpdaterService us, List<PalComDeviceUpdateDescription> updateDescriptions) {
+		this(updateDescriptions, readDependencies(us.monitoringProperties, updateDescriptions));
+		if (!cycle.isEmpty())
+			us.log("The dependencies between " + typesOf(cycle) + " are cyclic. They are swapped together last.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+	}
+
+	/**
+	 * @param declaredDependencies the types that each type depends on. Types that are not part of the update are ignored.
+	 */
+	UpdatePlanner(List<PalComDeviceUpdateDescription> updateDescriptions, Map<String, Set<String>> declaredDependencies) {
+		for (PalComDeviceUpdateDescription ud: updateDescriptions) {
+			updates.put(ud.deviceType, ud);
+			dependencies.put(ud.deviceType, new LinkedHashSet<String>());
+			dependents.put(ud.deviceType, new LinkedHashSet<String>());
+		}
+		for (PalComDeviceUpdateDescription ud: updateDescriptions) {
+			Set<String> declared = declaredDependencies.get(ud.deviceType);
+			if (declared == null)
+				continue;
+			for (String dependency: declared) {
+				if (updates.containsKey(dependency) && !dependency.equals(ud.deviceType)) {
+					dependencies.get(ud.deviceType).add(dependency);
+					dependents.get(dependency).add(ud.deviceType);
+				}
+			}
+		}
+		waves = Collections.unmodifiableList(plan());
+	}
+
+	/**
+	 * @param properties monitoring.properties, or null if there are none
+	 * @return the types that each type depends on
+	 */
+	private static Map<String, Set<String>> readDependencies(DeviceProperties properties, List<PalComDeviceUpdateDescription> updateDescriptions) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (PalComDeviceUpdateDescription ud: updateDescriptions) {
+			Set<String> dependencies = new LinkedHashSet<String>();
+			String value = null;
+			if (properties != null) {
+				value = properties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_DEPENDENCIES, ud.deviceType + "-" + ud.newVersion);
+				if (value == null)
+					value = properties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_DEPENDENCIES, ud.deviceType);
+			}
+			if (value != null) {
+				for (String dependency: value.split(",")) {
+					if (!dependency.trim().isEmpty())
+						dependencies.add(dependency.trim());
+				}
+			}
+			result.put(ud.deviceType, dependencies);
+		}
+		return result;
+	}
+
+	private List<List<PalComDeviceUpdateDescription>> plan() {
+		List<List<PalComDeviceUpdateDescription>> result = new ArrayList<List<PalComDeviceUpdateDescription>>();
+		HashMap<String, Integer> unmetDependencies = new HashMap<String, Integer>();
+		ArrayDeque<String> ready = new ArrayDeque<String>();
+		for (String deviceType: updates.keySet()) {
+			int unmet = dependencies.get(deviceType).size();
+			unmetDependencies.put(deviceType, unmet);
+			if (unmet == 0)
+				ready.add(deviceType);
+		}
+		int planned = 0;
+		while (!ready.isEmpty()) {
+			List<PalComDeviceUpdateDescription> wave = new ArrayList<PalComDeviceUpdateDescription>();
+			ArrayDeque<String> next = new ArrayDeque<String>();
+			for (String deviceType: ready) {
+				wave.add(updates.get(deviceType));
+				for (String dependent: dependents.get(deviceType)) {
+					int unmet = unmetDependencies.get(dependent) - 1;
+					unmetDependencies.put(dependent, unmet);
+					if (unmet == 0)
+						next.add(dependent);
+				}
+			}
+			planned += wave.size();
+			result.add(wave);
+			ready = next;
+		}
+		if (planned < updates.size()) {
+			for (String deviceType: updates.keySet()) {
+				if (unmetDependencies.get(deviceType) > 0)
+					cycle.add(updates.get(deviceType));
+			}
+			result.add(cycle);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the waves in the order they are to be swapped. The types of a wave do not depend on each other.
+	 */
+	List<List<PalComDeviceUpdateDescription>> getWaves() {
+		return waves;
+	}
+
+	/**
+	 * @return the failed type and the types of the update that depend on it, directly or not
+	 */
+	Set<String> affectedBy(String failedDeviceType) {
+		Set<String> affected = new LinkedHashSet<String>();
+		ArrayDeque<String> toVisit = new ArrayDeque<String>();
+		toVisit.add(failedDeviceType);
+		while (!toVisit.isEmpty()) {
+			String deviceType = toVisit.poll();
+			if (affected.add(deviceType) && dependents.containsKey(deviceType))
+				toVisit.addAll(dependents.get(deviceType));
+		}
+		return affected;
+	}
+
+	static List<String> typesOf(List<PalComDeviceUpdateDescription> updateDescriptions) {
+		List<String> types = new ArrayList<String>();
+		for (PalComDeviceUpdateDescription ud: updateDescriptions) {
+			types.add(ud.deviceType);
+		}
+		return types;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (List<PalComDeviceUpdateDescription> wave: waves) {
+			if (sb.length() > 0)
+				sb.append(" -> ");
+			sb.append(typesOf(wave));
+		}
+		return sb.toString();
+	}
+}
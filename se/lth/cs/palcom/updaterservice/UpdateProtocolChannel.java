@@ -0,0 +1,290 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A long-lived connection carrying Update Protocol messages in both directions. Every message is sent
+ * as a frame: a four byte payload length, a one byte frame type and the UTF-8 encoded payload.
+ * Message frames carry protocol messages, for example {@link UpdaterService#UPDATE_PROTOCOL_KILL}, and
+ * data frames carry the values that follow them, such as versions and device IDs.
+ * Keep-alive frames have no payload and are never handed to the receiver. Hello frames carry the name
+ * of the sender (its device ID, or PalComStarter) and are sent by both ends when the channel is opened,
+ * so that received messages can be tagged with where they came from. Heartbeat frames carry a few health
+ * fields of a running device, and are handed to whoever watches heartbeats instead of being buffered.
+ * <p>
+ * Older versions sent every message as a text line on a connection of its own, and never answer with a hello.
+ * The accepting end says hello first, so a connecting end that gets no hello knows that the peer is old, and
+ * sends it text lines instead (see {@link #sendLine(SocketChannel, String)}). An accepted channel whose first
+ * byte is not zero, which the length of a frame always starts with, is from an old peer and is read as text lines.
+ * Lines that are protocol messages are received as messages, the others as data.
+ * @author splushii
+ *
+ */
+class UpdateProtocolChannel {
+	static final byte FRAME_MESSAGE = 1;
+	static final byte FRAME_KEEP_ALIVE = 2;
+	static final byte FRAME_HELLO = 3;
+	static final byte FRAME_DATA = 4;
+	static final byte FRAME_HEARTBEAT = 5;
+	private static final int HEADER_LENGTH = 5;
+	private static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+	private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+	// A peer that has not made room for a frame in this long has stopped reading
+	private static final long WRITE_TIMEOUT_MILLIS = 5000;
+	private static final byte LINE_END = '\n';
+	private static final Set<String> LEGACY_MESSAGES = new HashSet<String>(Arrays.asList(
+			UpdaterService.UPDATE_PROTOCOL_KILL, UpdaterService.UPDATE_PROTOCOL_KILL_ACK, UpdaterService.UPDATE_PROTOCOL_ABORT,
+			UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM,
+			UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM,
+			UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK,
+			UpdaterService.UPDATE_PROTOCOL_STAGE_TWO, UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO,
+			UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO_ACK));
+	private final SocketChannel channel;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+	private volatile long lastSendMillis;
+	private volatile String peer;
+	// Decided by the first byte received
+	private boolean framingKnown;
+	private volatile boolean legacy;
+
+	UpdateProtocolChannel(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		UpdateProtocolEndpoint.configure(channel);
+		lastSendMillis = System.currentTimeMillis();
+	}
+
+	void send(String msg) throws IOException {
+		writeFrame(FRAME_MESSAGE, msg.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void sendData(String data) throws IOException {
+		writeFrame(FRAME_DATA, data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void sendKeepAlive() throws IOException {
+		writeFrame(FRAME_KEEP_ALIVE, new byte[0]);
+	}
+
+	void sendHeartbeat(String health) throws IOException {
+		writeFrame(FRAME_HEARTBEAT, health.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void sendHello(String name) throws IOException {
+		writeFrame(FRAME_HELLO, name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private synchronized void writeFrame(byte type, byte[] payload) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		frame.putInt(payload.length);
+		frame.put(type);
+		frame.put(payload);
+		frame.flip();
+		long stopMillis = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+		while (frame.hasRemaining()) {
+			// The channel is non-blocking once it is registered with the listener's selector,
+			// so a full send buffer makes the write return without writing anything.
+			if (channel.write(frame) == 0) {
+				awaitWritable(stopMillis);
+			}
+		}
+		lastSendMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Waits for room in the send buffer. A frame that is half written cannot be taken back, so if
+	 * the peer does not make room in time the channel is closed.
+	 * @throws IOException if the time is up
+	 */
+	private void awaitWritable(long stopMillis) throws IOException {
+		long millisLeft = stopMillis - System.currentTimeMillis();
+		if (millisLeft > 0) {
+			try (Selector selector = Selector.open()) {
+				channel.register(selector, SelectionKey.OP_WRITE);
+				selector.select(millisLeft);
+			}
+		}
+		if (System.currentTimeMillis() >= stopMillis) {
+			close();
+			throw new IOException("The peer has not read anything for " + WRITE_TIMEOUT_MILLIS + "ms");
+		}
+	}
+
+	/**
+	 * Waits for the hello of the peer on a channel that we opened. Nothing must have been sent on the
+	 * channel, so that it can be closed without harm if the peer turns out to be old. The accepting end sends
+	 * nothing but its hello until it hears from us, so nothing else is read here. Leaves the channel non-blocking.
+	 * @return false if the peer did not say hello in time, which means that it only understands text lines
+	 * @throws IOException if the peer closed the channel
+	 */
+	boolean awaitHello(long timeoutMillis) throws IOException {
+		channel.configureBlocking(false);
+		List<String> ignored = new ArrayList<String>();
+		long stopMillis = System.currentTimeMillis() + timeoutMillis;
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			while (peer == null) {
+				long millisLeft = stopMillis - System.currentTimeMillis();
+				if (millisLeft <= 0)
+					return false;
+				selector.select(millisLeft);
+				selector.selectedKeys().clear();
+				if (!read(ignored, ignored, ignored))
+					throw new IOException("Channel closed before the peer said hello");
+				if (legacy)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Sends a message or a value the way older versions did, as a text line. Older peers read one
+	 * connection at a time until it is closed, so the connection should only be used for this line.
+	 */
+	static void sendLine(SocketChannel sc, String line) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			sc.write(buffer);
+		}
+	}
+
+	/**
+	 * Checks without waiting whether the peer has said hello on a channel that we opened and sent a text line
+	 * on. A peer that accepts channels says hello right away, so by the time the line is sent its hello has
+	 * usually arrived. Leaves the channel non-blocking.
+	 * @return true if the peer has said hello, which means that it understands frames
+	 */
+	boolean hasSaidHello() throws IOException {
+		channel.configureBlocking(false);
+		List<String> ignored = new ArrayList<String>();
+		return read(ignored, ignored, ignored) && peer != null;
+	}
+
+	/**
+	 * Reads what is available on the channel without blocking, and decodes all complete frames, or
+	 * lines if the peer is old.
+	 * @param messages the received messages are added here
+	 * @param data the received data is added here
+	 * @param heartbeats the health fields of received heartbeats are added here
+	 * @return false if the peer closed the channel
+	 * @throws IOException
+	 */
+	boolean read(List<String> messages, List<String> data, List<String> heartbeats) throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			return false;
+		}
+		readBuffer.flip();
+		if (!framingKnown && readBuffer.hasRemaining()) {
+			framingKnown = true;
+			legacy = readBuffer.get(0) != 0;
+		}
+		if (legacy) {
+			readLines(messages, data);
+			return true;
+		}
+		int needed = 0;
+		while (readBuffer.remaining() >= HEADER_LENGTH) {
+			int start = readBuffer.position();
+			int length = readBuffer.getInt(start);
+			if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+				throw new IOException("Invalid frame length " + length);
+			}
+			if (readBuffer.remaining() < HEADER_LENGTH + length) {
+				needed = HEADER_LENGTH + length;
+				break;
+			}
+			readBuffer.position(start + 4);
+			byte type = readBuffer.get();
+			byte[] payload = new byte[length];
+			readBuffer.get(payload);
+			if (type == FRAME_MESSAGE) {
+				messages.add(new String(payload, StandardCharsets.UTF_8));
+			} else if (type == FRAME_DATA) {
+				data.add(new String(payload, StandardCharsets.UTF_8));
+			} else if (type == FRAME_HEARTBEAT) {
+				heartbeats.add(new String(payload, StandardCharsets.UTF_8));
+			} else if (type == FRAME_HELLO) {
+				peer = new String(payload, StandardCharsets.UTF_8);
+			}
+		}
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(needed);
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		} else {
+			readBuffer.compact();
+		}
+		return true;
+	}
+
+	private void readLines(List<String> messages, List<String> data) throws IOException {
+		int lineStart = readBuffer.position();
+		for (int i = lineStart; i < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) != LINE_END)
+				continue;
+			byte[] bytes = new byte[i - lineStart];
+			readBuffer.get(bytes);
+			readBuffer.get(); // the line end
+			String line = new String(bytes, StandardCharsets.UTF_8);
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			if (LEGACY_MESSAGES.contains(line)) {
+				messages.add(line);
+			} else {
+				data.add(line);
+			}
+			lineStart = i + 1;
+		}
+		if (readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+			if (readBuffer.capacity() >= MAX_PAYLOAD_LENGTH)
+				throw new IOException("Too long line");
+			ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		} else {
+			readBuffer.compact();
+		}
+	}
+
+	SocketChannel getSocketChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the name the peer said hello with, or null if it has not yet
+	 */
+	String getPeer() {
+		return peer;
+	}
+
+	/**
+	 * @return true if the peer is an older version that sends text lines
+	 */
+	boolean isLegacy() {
+		return legacy;
+	}
+
+	long getLastSendMillis() {
+		return lastSendMillis;
+	}
+
+	boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {/* already closed */}
+	}
+}
@@ -0,0 +1,213 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import se.lth.cs.palcom.filesystem.HostFileSystems;
+
+/**
+ * Where an Update Protocol listener can be reached. Either a loopback TCP port, or a Unix domain socket
+ * file. Every monitored device has an endpoint of its own, so that PalComStarter can talk to several devices
+ * at the same time. PalComStarter decides the transport from monitoring.properties and tells each device
+ * it starts where to listen through the {@link #ENDPOINT_PROPERTY} system property.
+ * <p>
+ * The path of a Unix domain socket must fit in sun_path, which is 108 bytes on Linux and 104 on macOS. A device ID
+ * that makes the path too long is shortened to a digest of it, and if even that does not fit, TCP is used.
+ * @author splushii
+ *
+ */
+class UpdateProtocolEndpoint {
+	static final String TRANSPORT_TCP = "tcp";
+	static final String TRANSPORT_UNIX = "unix";
+	/** Set on monitored devices if the Update Protocol runs over Unix domain sockets in this directory */
+	static final String SOCKET_DIRECTORY_PROPERTY = "se.lth.cs.palcom.updaterservice.socketDirectory";
+	/** Set on monitored devices to the endpoint they should listen on. Devices hosted in-process use ENDPOINT_PROPERTY.deviceID. */
+	static final String ENDPOINT_PROPERTY = "se.lth.cs.palcom.updaterservice.endpoint";
+	/** Set on a new PalComStarter by the device performing stage two, so that it knows whom to answer */
+	static final String STAGE_TWO_DEVICE_PROPERTY = "se.lth.cs.palcom.updaterservice.stageTwoDevice";
+	/** Set on a new PalComStarter by the device performing stage two, so that it knows where to answer */
+	static final String STAGE_TWO_ENDPOINT_PROPERTY = "se.lth.cs.palcom.updaterservice.stageTwoEndpoint";
+	private static final String SOCKET_DIRECTORY_NAME = "updateprotocol";
+	private static final String SOCKET_SUFFIX = ".sock";
+	// The longest path that fits in sun_path on every supported OS, without the terminating zero
+	private static final int MAX_SOCKET_PATH_BYTES = 103;
+	// Characters of the device ID kept in a shortened socket file name, to tell the files apart when debugging
+	private static final int SHORT_NAME_PREFIX_LENGTH = 8;
+
+	private final SocketAddress address;
+	private final Path socketFile;
+
+	private UpdateProtocolEndpoint(SocketAddress address, Path socketFile) {
+		this.address = address;
+		this.socketFile = socketFile;
+	}
+
+	static UpdateProtocolEndpoint tcp(int port) {
+		return new UpdateProtocolEndpoint(new InetSocketAddress("localhost", port), null);
+	}
+
+	static UpdateProtocolEndpoint unix(Path socketFile) {
+		return new UpdateProtocolEndpoint(UnixDomainSocketAddress.of(socketFile), socketFile);
+	}
+
+	/**
+	 * @param socketDirectory directory of the socket files, or null to use TCP
+	 */
+	static UpdateProtocolEndpoint forPalComStarter(String socketDirectory) {
+		Path socketFile = socketDirectory == null ? null : Paths.get(socketDirectory, UpdaterService.PALCOMSTARTER_DEVICE_TYPE + SOCKET_SUFFIX);
+		if (socketFile == null || !fits(socketFile))
+			return tcp(UpdaterService.PALCOMSTARTER_SOCKET_PORT);
+		return unix(socketFile);
+	}
+
+	/**
+	 * @param socketDirectory directory of the socket files, or null to use the shared TCP port
+	 */
+	static UpdateProtocolEndpoint forDevice(String deviceID, String socketDirectory) {
+		return forDevice(deviceID, socketDirectory, UpdaterService.MONITORED_DEVICE_SOCKET_PORT);
+	}
+
+	/**
+	 * @param socketDirectory directory of the socket files, or null to use TCP
+	 * @param port the TCP port of the device, used if socketDirectory is null
+	 */
+	static UpdateProtocolEndpoint forDevice(String deviceID, String socketDirectory, int port) {
+		if (socketDirectory == null)
+			return tcp(port);
+		String name = deviceID.replaceAll("[^A-Za-z0-9._-]", "_");
+		Path socketFile = Paths.get(socketDirectory, name + SOCKET_SUFFIX);
+		if (!fits(socketFile)) {
+			String prefix = name.substring(0, Math.min(name.length(), SHORT_NAME_PREFIX_LENGTH));
+			socketFile = Paths.get(socketDirectory, prefix + "-" + digest(deviceID) + SOCKET_SUFFIX);
+		}
+		if (!fits(socketFile))
+			return tcp(port);
+		return unix(socketFile);
+	}
+
+	/**
+	 * @return true if the path of the socket file fits in a Unix domain socket address
+	 */
+	private static boolean fits(Path socketFile) {
+		return socketFile.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8).length <= MAX_SOCKET_PATH_BYTES;
+	}
+
+	/**
+	 * @return the first 64 bits of the SHA-256 of the device ID, in hex, so that shortened names stay unique
+	 */
+	private static String digest(String deviceID) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(deviceID.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			hex.append(String.format("%02x", hash[i]));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the endpoint a monitored device has been told to listen on, or null if it has not been told
+	 */
+	static UpdateProtocolEndpoint forThisDevice(String deviceID) {
+		String spec = System.getProperty(ENDPOINT_PROPERTY + "." + deviceID);
+		if (spec == null)
+			spec = System.getProperty(ENDPOINT_PROPERTY);
+		return spec == null ? null : parse(spec);
+	}
+
+	/**
+	 * @param spec as returned by {@link #toSpec()}
+	 * @return the endpoint, or null if spec is malformed
+	 */
+	static UpdateProtocolEndpoint parse(String spec) {
+		try {
+			if (spec.startsWith(TRANSPORT_UNIX + ":"))
+				return unix(Paths.get(spec.substring(TRANSPORT_UNIX.length() + 1)));
+			if (spec.startsWith(TRANSPORT_TCP + ":"))
+				return tcp(Integer.parseInt(spec.substring(TRANSPORT_TCP.length() + 1)));
+		} catch (NumberFormatException | UnsupportedOperationException e) {/* fall through */}
+		return null;
+	}
+
+	/**
+	 * @return a string that can be passed on a command line and read back with {@link #parse(String)}
+	 */
+	String toSpec() {
+		if (socketFile != null)
+			return TRANSPORT_UNIX + ":" + socketFile;
+		return TRANSPORT_TCP + ":" + ((InetSocketAddress) address).getPort();
+	}
+
+	/**
+	 * @return the default directory for socket files, in the PalCom file system
+	 */
+	static String getDefaultSocketDirectory() {
+		return HostFileSystems.getUnixStylePathToFilesystemRoot() + File.separator + SOCKET_DIRECTORY_NAME;
+	}
+
+	/**
+	 * @return true if this JVM and OS can use Unix domain sockets
+	 */
+	static boolean isUnixDomainSupported() {
+		try {
+			SocketChannel.open(StandardProtocolFamily.UNIX).close();
+			return true;
+		} catch (UnsupportedOperationException | IOException | LinkageError e) {
+			return false;
+		}
+	}
+
+	SocketChannel connect() throws IOException {
+		return SocketChannel.open(address);
+	}
+
+	ServerSocketChannel bind() throws IOException {
+		ServerSocketChannel ssc;
+		if (socketFile != null) {
+			// A socket file left behind by a process that did not exit cleanly would make bind fail
+			Files.createDirectories(socketFile.getParent());
+			Files.deleteIfExists(socketFile);
+			ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			ssc = ServerSocketChannel.open();
+			ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		}
+		ssc.bind(address);
+		return ssc;
+	}
+
+	/**
+	 * Sets the TCP socket options that do not exist for Unix domain sockets.
+	 */
+	static void configure(SocketChannel channel) throws IOException {
+		if (channel.getLocalAddress() instanceof InetSocketAddress) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (socketFile != null)
+			return "socket " + socketFile;
+		return "localhost port " + ((InetSocketAddress) address).getPort();
+	}
+}
@@ -0,0 +1,246 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+
+import se.lth.cs.palcom.logging.Logger;
+
+/**
+ * Decides when updates may restart devices, so that updates do not get in the way of the work the host is doing.
+ * Downloading and checking new versions is not scheduled. Only the swaps are:
+ * <ul>
+ * <li>An update starts swapping only within a maintenance window, and only when the host is not busy. Until then
+ * the update is deferred, at most for the max defer time. Maintenance windows are configured as local times of
+ * day, for example general@maintenanceWindows=02:00-05:00,22:30-23:30. Without windows, any time will do.</li>
+ * <li>At most maxParallelSwaps devices are swapped at the same time, by all updates together.</li>
+ * <li>Before a device is swapped, the scheduler waits for the host to be idle enough, and for the device itself
+ * to be idle enough, at most for the max pace time. Once an update has started swapping it is better to finish
+ * it than to leave it half done, so after that the device is swapped anyway.</li>
+ * </ul>
+ * The host is busy if its load average per processor is over maxHostLoadPercent, or it has less than
+ * minFreeMemoryMB of available memory. A device is busy if it has used more than maxDeviceCpuPercent of a
+ * processor during the last second.
+ * @author splushii
+ *
+ */
+class UpdateScheduler {
+	private static final long DEFAULT_MAX_HOST_LOAD_PERCENT = 80;
+	private static final long DEFAULT_MIN_FREE_MEMORY_MB = 256;
+	private static final long DEFAULT_MAX_DEVICE_CPU_PERCENT = 50;
+	private static final long DEFAULT_MAX_SWAP_PACE_MILLIS = 2*60*1000;
+	private static final int DEFER_POLL_SECONDS = 15;
+	private static final long PACE_POLL_MILLIS = 1000;
+	private static final long CPU_SAMPLE_MILLIS = 1000;
+	private static final String MEMINFO = "/proc/meminfo";
+	private static final String MEM_AVAILABLE = "MemAvailable:";
+
+	private final UpdaterService us;
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	// Start and end of each maintenance window, in minutes of the day
+	private final List<int[]> maintenanceWindows = new ArrayList<int[]>();
+	private final long maxHostLoadPercent;
+	private final long minFreeMemoryMB;
+	private final long maxDeviceCpuPercent;
+	private final long maxUpdateDeferMillis;
+	private final long maxSwapPaceMillis;
+	private final Semaphore swapSlots;
+
+	UpdateScheduler(UpdaterService us) {
+		this.us = us;
+		for (String window: us.getGeneralProperty(UpdaterService.KEY_MAINTENANCE_WINDOWS, "").split(",")) {
+			if (window.trim().isEmpty())
+				continue;
+			int[] w = parseWindow(window.trim());
+			if (w == null) {
+				us.log("Invalid maintenance window in configuration: " + window.trim() + ". Ignoring it.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				continue;
+			}
+			maintenanceWindows.add(w);
+		}
+		maxHostLoadPercent = us.getGeneralLongProperty(UpdaterService.KEY_MAX_HOST_LOAD_PERCENT, DEFAULT_MAX_HOST_LOAD_PERCENT);
+		minFreeMemoryMB = us.getGeneralLongProperty(UpdaterService.KEY_MIN_FREE_MEMORY_MB, DEFAULT_MIN_FREE_MEMORY_MB);
+		maxDeviceCpuPercent = us.getGeneralLongProperty(UpdaterService.KEY_MAX_DEVICE_CPU_PERCENT, DEFAULT_MAX_DEVICE_CPU_PERCENT);
+		maxUpdateDeferMillis = us.getGeneralLongProperty(UpdaterService.KEY_MAX_UPDATE_DEFER_MILLIS, UpdaterService.DEFAULT_MAX_UPDATE_DEFER_MILLIS);
+		maxSwapPaceMillis = us.getGeneralLongProperty(UpdaterService.KEY_MAX_SWAP_PACE_MILLIS, DEFAULT_MAX_SWAP_PACE_MILLIS);
+		int defaultParallelSwaps = Math.max(1, os.getAvailableProcessors() / 2);
+		swapSlots = new Semaphore((int) Math.max(1, us.getGeneralLongProperty(UpdaterService.KEY_MAX_PARALLEL_SWAPS, defaultParallelSwaps)), true);
+	}
+
+	/**
+	 * @return the window as minutes of the day, or null if it is not like 02:00-05:00
+	 */
+	private static int[] parseWindow(String window) {
+		String[] startEnd = window.split("-");
+		if (startEnd.length != 2)
+			return null;
+		int start = parseMinutes(startEnd[0].trim());
+		int end = parseMinutes(startEnd[1].trim());
+		if (start < 0 || end < 0)
+			return null;
+		return new int[] {start, end};
+	}
+
+	private static int parseMinutes(String time) {
+		String[] hm = time.split(":");
+		try {
+			int h = Integer.parseInt(hm[0]);
+			int m = hm.length > 1 ? Integer.parseInt(hm[1]) : 0;
+			if (hm.length > 2 || h < 0 || m < 0 || m > 59 || h*60 + m > 24*60)
+				return -1;
+			return h*60 + m;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true if there are no maintenance windows, or it is within one of them now
+	 */
+	boolean inMaintenanceWindow() {
+		if (maintenanceWindows.isEmpty())
+			return true;
+		LocalTime now = LocalTime.now();
+		int minute = now.getHour()*60 + now.getMinute();
+		for (int[] w: maintenanceWindows) {
+			boolean inside = w[0] <= w[1] ? (minute >= w[0] && minute < w[1]) // 02:00-05:00
+					: (minute >= w[0] || minute < w[1]); // 23:00-01:00 passes midnight
+			if (inside)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return why the host is too busy to restart devices on, or null if it is not
+	 */
+	String hostBusyReason() {
+		double load = os.getSystemLoadAverage();
+		if (load >= 0) {
+			long loadPercent = Math.round(100 * load / os.getAvailableProcessors());
+			if (loadPercent > maxHostLoadPercent)
+				return "load " + loadPercent + "% per processor";
+		}
+		long freeMB = freeMemoryMB();
+		if (freeMB >= 0 && freeMB < minFreeMemoryMB)
+			return "only " + freeMB + " MB available memory";
+		return null;
+	}
+
+	/**
+	 * @return the memory available to new processes, in MB, or -1 if it is not known
+	 */
+	@SuppressWarnings("deprecation")
+	private long freeMemoryMB() {
+		// MemAvailable counts caches that can be dropped, unlike the free memory of the MXBean
+		try (BufferedReader in = new BufferedReader(new FileReader(MEMINFO))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(MEM_AVAILABLE))
+					return Long.parseLong(line.substring(MEM_AVAILABLE.length()).replace("kB", "").trim()) / 1024;
+			}
+		} catch (IOException | NumberFormatException e) {/* Not Linux, try the MXBean */}
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize() / (1024*1024);
+		return -1;
+	}
+
+	/**
+	 * Samples the CPU use of the process of the device during a second.
+	 * @return the percentage of one processor that the device used, or -1 if it is not known
+	 */
+	long deviceCpuPercent(MonitoredDevice d) {
+		ProcessHandle process = d.p != null ? d.p.toHandle() : d.adoptedProcess;
+		if (process == null || d.hostInProcess)
+			return -1;
+		Optional<Duration> before = process.info().totalCpuDuration();
+		if (!before.isPresent())
+			return -1;
+		long startNanos = System.nanoTime();
+		sleep(CPU_SAMPLE_MILLIS);
+		Optional<Duration> after = process.info().totalCpuDuration();
+		if (!after.isPresent())
+			return -1;
+		long elapsedNanos = System.nanoTime() - startNanos;
+		return 100 * after.get().minus(before.get()).toNanos() / elapsedNanos;
+	}
+
+	/**
+	 * Defers the swapping phase of an update until it is within a maintenance window and the host is not busy.
+	 * An abort of any of the device types of the update ends the wait.
+	 * @return false if the update was aborted, or could not start within the max defer time
+	 */
+	boolean awaitSwapWindow(UpdatePipeline pipeline) {
+		pipeline.moveTo(UpdatePipeline.State.SCHEDULED);
+		long stopMillis = System.currentTimeMillis() + maxUpdateDeferMillis;
+		boolean deferred = false;
+		while (true) {
+			String reason = inMaintenanceWindow() ? hostBusyReason() : "outside of the maintenance windows";
+			if (reason == null) {
+				if (deferred)
+					us.log("Update pipeline " + pipeline + " may swap devices now.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				return true;
+			}
+			if (System.currentTimeMillis() >= stopMillis) {
+				us.log("Update pipeline " + pipeline + " could not start swapping devices within " + maxUpdateDeferMillis/1000
+						+ "s (" + reason + "). Giving up the update.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				return false;
+			}
+			if (!deferred) {
+				us.log("Deferring update pipeline " + pipeline + ": " + reason + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				deferred = true;
+			}
+			if (us.getAbortFromBuffer(pipeline.getDeviceTypes(), DEFER_POLL_SECONDS) != null) {
+				us.log("Deferred update pipeline " + pipeline + " was aborted.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				pipeline.moveTo(UpdatePipeline.State.ABORTED);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Waits for one of the parallel swaps to be free, and then at most for the max pace time for the host and
+	 * the device to be idle enough. Every call must be followed by {@link #releaseSwapSlot()}.
+	 */
+	void acquireSwapSlot(MonitoredDevice d) {
+		swapSlots.acquireUninterruptibly();
+		long stopMillis = System.currentTimeMillis() + maxSwapPaceMillis;
+		String reason;
+		while ((reason = busyReason(d)) != null) {
+			if (System.currentTimeMillis() >= stopMillis) {
+				us.log("Swapping " + d.deviceID + " anyway, although " + reason + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				return;
+			}
+			us.log("Pacing the swap of " + d.deviceID + ": " + reason + ".", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			sleep(PACE_POLL_MILLIS);
+		}
+	}
+
+	void releaseSwapSlot() {
+		swapSlots.release();
+	}
+
+	private String busyReason(MonitoredDevice d) {
+		String reason = hostBusyReason();
+		if (reason != null)
+			return "the host is busy, " + reason;
+		long cpuPercent = deviceCpuPercent(d);
+		if (cpuPercent > maxDeviceCpuPercent)
+			return d.deviceID + " is busy, " + cpuPercent + "% CPU";
+		return null;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {/* do nothing */}
+	}
+}
@@ -2,8 +2,20 @@ package se.lth.cs.palcom.updaterservice;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import ist.palcom.resource.descriptor.Command;
 import ist.palcom.resource.descriptor.Param;
@@ -23,9 +35,13 @@ class UpdateStageOneThread extends Thread {
 	private UpdaterService us;
 	private MonitoringThread monitor;
 	private SocketListenerThread socketListener;
-	private SocketSender socketSender;
+	private UpdatePipeline pipeline;
+	// Used until the durations of the steps have been learned
 	private static final int MAX_SECONDS_WAIT_FOR_DATA = 15;
 	private static final int MAX_SECONDS_WAIT_FOR_DEVICE = 10;
+	private DurationEstimator durations;
+	// Tells new versions that only bump the version number from real changes
+	private JarDigest jarDigest;
 	private String pathToFS;
 	private Writable conn;
 	private String[] deviceTypes;
@@ -35,12 +51,22 @@ class UpdateStageOneThread extends Thread {
 	private boolean performMonitoredDeviceUpdate;
 	private boolean performPalComStarterUpdate;
 	private boolean performMajorUpdate;
+	// Devices started with, or patched to, a new version by this update. Added to by the swaps of a wave in parallel.
+	private final List<MonitoredDevice> swappedDevices = new CopyOnWriteArrayList<MonitoredDevice>();
+	// Device types whose new version has been made current by this update
+	private final List<String> committedTypes = new ArrayList<String>();
+	// What the update server is told when the update ends
+	private boolean swapping;
+	private boolean versionsRecorded;
+	private boolean rolledBack;
 
-	UpdateStageOneThread(UpdaterService us, MonitoringThread monitor, SocketListenerThread socketListener, SocketSender socketSender, Writable conn, String[] deviceTypes, String[] deviceTypeNewVersions) {
+	UpdateStageOneThread(UpdaterService us, MonitoringThread monitor, SocketListenerThread socketListener, UpdatePipeline pipeline, Writable conn, String[] deviceTypes, String[] deviceTypeNewVersions) {
 		this.us = us;
 		this.monitor = monitor;
 		this.socketListener = socketListener;
-		this.socketSender = socketSender;
+		this.pipeline = pipeline;
+		this.durations = us.getDurationEstimator();
+		this.jarDigest = new JarDigest(us);
 		this.conn = conn;
 		this.deviceTypes = deviceTypes;
 		this.newVersions = deviceTypeNewVersions;
@@ -50,25 +76,74 @@ class UpdateStageOneThread extends Thread {
 	@Override
 	public void run() {
 		us.log("UpdateStageOne Thread started.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);		
-		// Preparing and setting some variables needed later in the process and in case of emergency abort
-		if (!stageOnePreparations()) {
-			us.log("No update will be performed.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-			us.setUpdateState(UpdateState.NONE);
+		// An abort left from an earlier update must not abort this one
+		us.clearCommandBuffer(UpdaterService.COMMAND_IN_ABORT_UPDATE);
+		try {
+			// Preparing and setting some variables needed later in the process and in case of emergency abort
+			if (!stageOnePreparations()) {
+				us.log("No update will be performed.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+				pipeline.moveTo(UpdatePipeline.State.FINISHED);
+				return;
+			}
+			// Downloading is done right away, but swapping waits for a maintenance window and an idle enough host
+			if (!us.getUpdateScheduler().awaitSwapWindow(pipeline)) {
+				us.log("No update will be performed.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				if (!pipeline.isDone())
+					pipeline.moveTo(UpdatePipeline.State.FINISHED);
+				return;
+			}
+			// Restarting PalComStarter or breaking the protocol affects all devices, so no other update may run meanwhile
+			if ((performPalComStarterUpdate || performMajorUpdate) && !us.runAlone(pipeline)) {
+				us.log("Another update runs alone. No update will be performed.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				pipeline.moveTo(UpdatePipeline.State.FINISHED);
+				return;
+			}
+			try {
+				stageOne();
+			} catch (Throwable t) {
+				// If stage one could not be completed due to any reason, such as outOfMemoryError, we try to abort gracefully
+				abortUpdateStageOne("Update Stage One received unknown error/exception. Trying to abort gracefully. Message:\n");
+				t.printStackTrace();
+			}
+		} finally {
+			us.endPipeline(pipeline);
+			reportOutcome();
+		}
+	}
+
+	/**
+	 * Tells the update server how the update ended. If PalComStarter is handed over, the new one reports it.
+	 */
+	private void reportOutcome() {
+		String outcome;
+		switch (pipeline.getState()) {
+		case FINISHED:
+			if (swapping)
+				outcome = rolledBack ? UpdaterService.UPDATE_OUTCOME_FAILURE : UpdaterService.UPDATE_OUTCOME_SUCCESS;
+			else
+				outcome = versionsRecorded ? UpdaterService.UPDATE_OUTCOME_SUCCESS : UpdaterService.UPDATE_OUTCOME_SKIPPED;
+			break;
+		case ABORTED:
+			// Aborted before anything was swapped, by command or while deferred
+			outcome = swapping ? UpdaterService.UPDATE_OUTCOME_FAILURE : UpdaterService.UPDATE_OUTCOME_SKIPPED;
+			break;
+		default:
 			return;
 		}
-		
-		try {
-			stageOne();
-		} catch (Throwable t) {
-			// If stage one could not be completed due to any reason, such as outOfMemoryError, we try to abort gracefully
-			abortUpdateStageOne("Update Stage One received unknown error/exception. Trying to abort gracefully. Message:\n");
-			t.printStackTrace();
+		List<String> types = new ArrayList<String>();
+		List<String> versions = new ArrayList<String>();
+		for (int i = 0; i < deviceTypes.length; i++) {
+			if (pipeline.updates(deviceTypes[i])) {
+				types.add(deviceTypes[i]);
+				versions.add(newVersions[i]);
+			}
 		}
+		us.reportUpdateOutcome(conn, types.toArray(new String[types.size()]), versions.toArray(new String[versions.size()]), outcome);
 	}
 	
 	private boolean stageOnePreparations() {
 		// Check if we recently tried to update and failed
-		if (us.updateAborted > 0 && us.updateAbortedDelay > System.currentTimeMillis()) {
+		if (us.updateAborted.get() > 0 && us.updateAbortedDelay > System.currentTimeMillis()) {
 			us.log("Recently tried to update (" + us.updateAborted +" times) and failed. Updating disabled for " + (us.updateAbortedDelay - System.currentTimeMillis())/1000 + "s.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 			return false;
 		}
@@ -80,6 +155,9 @@ class UpdateStageOneThread extends Thread {
 		for (int i = 0; i < deviceTypes.length; ++i) {
 			String deviceType = deviceTypes[i];
 			String newVersion = newVersions[i];
+			if (!pipeline.updates(deviceType)) {
+				continue; // Left to the pipeline that is already updating it
+			}
 			if (monitor.monitorsDeviceType(deviceType) || deviceType.equals(UpdaterService.PALCOMSTARTER_DEVICE_TYPE)) {
 				String currentVersion;
 				currentVersion = us.monitoringProperties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, deviceType);
@@ -101,17 +179,22 @@ class UpdateStageOneThread extends Thread {
 				}
 				
 				// Now we are interested in this update. It is time to fetch the update content
-				us.setUpdateState(UpdateState.UPDATING_WAITING_FOR_JAR);
+				pipeline.moveTo(UpdatePipeline.State.WAITING_FOR_JAR);
 				Command updateContentRequest = us.getCommand(UpdaterService.COMMAND_OUT_UPDATE_CONTENT_REQUEST);
 				updateContentRequest.findParam(UpdaterService.PARAM_DEVICE_TYPE).setData(deviceType.getBytes());
 				updateContentRequest.findParam(UpdaterService.PARAM_VERSION).setData(newVersion.getBytes());
+				us.clearCommandBuffer(UpdaterService.COMMAND_IN_UPDATE_DATA, deviceType);
 				us.sendPalComMessage(conn, updateContentRequest);
 				us.log("Waiting for update data from Update Server...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-				Command command = us.getCommandFromBuffer(UpdaterService.COMMAND_IN_UPDATE_DATA, MAX_SECONDS_WAIT_FOR_DATA);
+				long requestTimeMillis = System.currentTimeMillis();
+				Command command = us.getCommandFromBuffer(UpdaterService.COMMAND_IN_UPDATE_DATA, deviceType,
+						durations.timeoutSeconds(DurationEstimator.Kind.DOWNLOAD, deviceType, newVersion, MAX_SECONDS_WAIT_FOR_DATA));
+				pipeline.moveTo(UpdatePipeline.State.PREPARING);
 				if (command == null || command.getID().equals(UpdaterService.COMMAND_IN_ABORT_UPDATE)){
 					us.log("Timeout when waiting for update data to " + deviceType + " " + newVersion + ". Will not update " + deviceType + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 					continue;
 				}
+				durations.record(DurationEstimator.Kind.DOWNLOAD, deviceType, newVersion, System.currentTimeMillis() - requestTimeMillis);
 				
 				// Extract version info and jar content.
 				Param pDeviceType = command.findParam(UpdaterService.PARAM_DEVICE_TYPE);
@@ -146,10 +229,19 @@ class UpdateStageOneThread extends Thread {
 					new File(newExecPath).delete();
 					continue;
 				}
+				if (currentVersion != null && jarDigest.sameCode(VersionLedger.getJarPath(deviceType, currentVersion), newExecPath)) {
+					us.log("The code of " + deviceType + " " + newVersion + " is the same as that of " + currentVersion
+							+ ". Recording the new version without restarting anything.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+					recordVersionOnly(deviceType, currentVersion, newVersion);
+					continue;
+				}
 				if (pdu.isProtocolBreaking()) {
 					monitor.setNewMajorVersion(deviceType, pdu.newMajor);
 				}
 				us.log("New executable for " + deviceType + " saved to: " + newExecPath, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+				// Prepare class data sharing for the new version so that restarts are cheaper. Not fatal if it fails,
+				// and the update does not wait for it.
+				AppCdsArchive.generateInBackground(us, newExecPath);
 				
 				us.log("We will be updating " + deviceType + " from version (" + currentVersion + ") to version (" + newVersion + ").", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 				if (deviceType.equals(UpdaterService.PALCOMSTARTER_DEVICE_TYPE)) {
@@ -193,125 +285,172 @@ class UpdateStageOneThread extends Thread {
 			return false;
 	}
 		
+	/**
+	 * Makes a version that has the same code as the current one current, without swapping any devices. Running
+	 * devices keep their jar until they are restarted for some other reason, and then start the new one.
+	 * PalComStarter keeps running, and is started again, from the jar in the startup script, which the version
+	 * ledger never prunes.
+	 */
+	private void recordVersionOnly(String deviceType, String currentVersion, String newVersion) {
+		VersionLedger ledger = us.getVersionLedger();
+		boolean wasKnownGood = currentVersion.equals(ledger.getKnownGoodVersion(deviceType));
+		ledger.recordCurrent(deviceType, newVersion);
+		versionsRecorded = true;
+		if (wasKnownGood)
+			ledger.setKnownGoodVersion(deviceType, newVersion);
+		if (deviceType.equals(UpdaterService.PALCOMSTARTER_DEVICE_TYPE)) {
+			ledger.pruneInBackground(deviceType, Collections.singleton(currentVersion));
+		} else {
+			monitor.setCurrentDeviceTypeVersion(deviceType, newVersion);
+			monitor.pruneOldJars(deviceType);
+		}
+	}
+
 	private void stageOne() {
-		us.setUpdateState(UpdateState.UPDATING_KILLING_CURRENT);
+		pipeline.moveTo(UpdatePipeline.State.SWAPPING);
+		swapping = true;
 
 		// Disable monitoring. (Otherwise the current devices would be started again by the monitoring thread),
 		// and the monitoring thread will get in the way (for example using the socket threads).
-		monitor.disable();
+		// Updates that run side by side only hold off monitoring of their own device types.
+		if (runsAlone()) {
+			monitor.disable();
+		} else {
+			monitor.holdDeviceTypes(pipeline.getDeviceTypes());
+		}
 		
-		// Perform monitored device update
+		// Perform monitored device update, one wave of device types at a time. The devices of a wave are swapped in parallel.
 		MonitoredDevice d = null;
-		for (PalComDeviceUpdateDescription ud: monitoredDeviceTypesToUpdate) {
-			List<MonitoredDevice> md = monitor.getMonitoredDevicesOfType(ud.deviceType);
-			for(MonitoredDevice monitoredDevice: md) {
-				d = monitoredDevice;
-				monitor.killMonitoredDevice(d, true);
-				// Check that socket is working
-				if(!monitor.startNewVersionMonitoredDevice(d, ud.newVersion)) {
-					us.log("Could not start " + d.deviceType + " " + d.deviceID + " " + ud.newVersion + ". Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
-						continue;
-				}
-				if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, MAX_SECONDS_WAIT_FOR_DEVICE)) {
-					us.log("Socket check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-					monitor.killMonitoredDevice(d, false);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
-						continue;
+		// The last restarted device is held (its startup check is not finished) so that it can host stage two
+		MonitoredDevice heldDevice = null;
+		UpdatePlanner planner = new UpdatePlanner(us, monitoredDeviceTypesToUpdate);
+		us.log("Update plan: " + planner, Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		MonitoredDevice holdCandidate = null;
+		if (performPalComStarterUpdate && !us.isSupervised()) {
+			for (List<PalComDeviceUpdateDescription> wave: planner.getWaves()) {
+				for (PalComDeviceUpdateDescription ud: wave) {
+					List<MonitoredDevice> md = monitor.getMonitoredDevicesOfType(ud.deviceType);
+					if (!md.isEmpty())
+						holdCandidate = md.get(md.size() - 1);
 				}
-				
-				String tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, MAX_SECONDS_WAIT_FOR_DEVICE);
-				if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
-					us.log("Socket check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-					monitor.killMonitoredDevice(d, false);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
+			}
+		}
+		// Types that were rolled back, or depend on one that was
+		Set<String> affectedTypes = new HashSet<String>();
+		ExecutorService swapper = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Update swap");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			for (List<PalComDeviceUpdateDescription> wave: planner.getWaves()) {
+				LinkedHashMap<PalComDeviceUpdateDescription, LinkedHashMap<MonitoredDevice, Future<Boolean>>> swaps =
+						new LinkedHashMap<PalComDeviceUpdateDescription, LinkedHashMap<MonitoredDevice, Future<Boolean>>>();
+				for (final PalComDeviceUpdateDescription ud: wave) {
+					if (affectedTypes.contains(ud.deviceType)) {
+						us.log("Will not update " + ud.deviceType + ", since a device type it depends on was rolled back.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 						continue;
+					}
+					LinkedHashMap<MonitoredDevice, Future<Boolean>> ofType = new LinkedHashMap<MonitoredDevice, Future<Boolean>>();
+					for (final MonitoredDevice monitoredDevice: monitor.getMonitoredDevicesOfType(ud.deviceType)) {
+						final boolean hold = monitoredDevice == holdCandidate;
+						ofType.put(monitoredDevice, swapper.submit(new Callable<Boolean>() {
+							@Override
+							public Boolean call() {
+								UpdateScheduler scheduler = us.getUpdateScheduler();
+								scheduler.acquireSwapSlot(monitoredDevice);
+								try {
+									return swapDevice(monitoredDevice, ud, hold);
+								} finally {
+									scheduler.releaseSwapSlot();
+								}
+							}
+						}));
+					}
+					swaps.put(ud, ofType);
 				}
-				
-				// Check that device can talk to update server
-				us.setUpdateState(UpdateState.UPDATING_FALLBACK_TIMER_CHECK_UPDATE_SERVER);
-				if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, MAX_SECONDS_WAIT_FOR_DEVICE)) {
-					us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-					monitor.killMonitoredDevice(d, false);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
+				for (Map.Entry<PalComDeviceUpdateDescription, LinkedHashMap<MonitoredDevice, Future<Boolean>>> swap: swaps.entrySet()) {
+					PalComDeviceUpdateDescription ud = swap.getKey();
+					boolean typeSwapped = true;
+					for (Map.Entry<MonitoredDevice, Future<Boolean>> deviceSwap: swap.getValue().entrySet()) {
+						boolean swapped;
+						try {
+							swapped = deviceSwap.getValue().get();
+						} catch (Exception e) {
+							us.log("Swapping " + deviceSwap.getKey().deviceID + " failed: " + e, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+							swapped = false;
+						}
+						if (!swapped) {
+							typeSwapped = false;
+						} else if (deviceSwap.getKey() == holdCandidate) {
+							heldDevice = holdCandidate;
+						}
+					}
+					if (!typeSwapped && performMajorUpdate) {
+						// The new major version of this type does not work. Roll back this type and the types that depend on it.
+						Set<String> affected = planner.affectedBy(ud.deviceType);
+						us.log("Could not update " + ud.deviceType + ". Rolling back " + ud.deviceType + ", and not updating " + affected + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+						affectedTypes.addAll(affected);
+						for (MonitoredDevice monitoredDevice: swap.getValue().keySet()) {
+							if (monitoredDevice == heldDevice)
+								heldDevice = null;
+							monitor.rollBackMonitoredDevice(monitoredDevice);
+						}
 						continue;
+					}
+					// All monitored devices with deviceType are working, so we update the current version of deviceType
+					us.log("Successfully updated " + ud.deviceType + " to version " + ud.newVersion, Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+					monitor.setCurrentDeviceTypeVersion(ud.deviceType, ud.newVersion);
+					us.getVersionLedger().recordCurrent(ud.deviceType, ud.newVersion);
+					committedTypes.add(ud.deviceType);
 				}
-				if (!socketSender.sendMsg(us.updateServerDeviceID, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+			}
+		} finally {
+			swapper.shutdown();
+		}
+		if (!affectedTypes.isEmpty()) {
+			us.updateAborted.incrementAndGet();
+			rolledBack = true;
+		}
+		// Jars that were replaced, or downloaded for types that were rolled back
+		pruneOldJars();
+
+		// If we will not update PalComStarter, we can let the last monitored device go. 
+		// Otherwise, we need it later for stage two, unless a supervisor takes over from here.
+		if (!performPalComStarterUpdate || us.isSupervised()) {
+			if (heldDevice != null) {
+				d = heldDevice;
+				int replySeconds = monitor.timeoutSeconds(d, DurationEstimator.Kind.REPLY, MAX_SECONDS_WAIT_FOR_DEVICE);
+				if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, replySeconds)) {
 					us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 					monitor.killMonitoredDevice(d, false);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
-						continue;
+					abortUpdateStageOne("");
 				}
-				tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM, MAX_SECONDS_WAIT_FOR_DEVICE);
+				String tmpMsg = socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, replySeconds);
 				if (tmpMsg == null  || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
 					us.log("Update Server check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 					monitor.killMonitoredDevice(d, false);
-					if (performMajorUpdate)
-						abortUpdateStageOne("");
-					else
-						continue;
-				}
-				// Do this for all but the last monitored device. Hold on to the last one a bit longer.
-				if (monitoredDeviceTypesToUpdate.indexOf(ud) != (monitoredDeviceTypesToUpdate.size() - 1) || md.indexOf(d) != (md.size() - 1)) {
-					if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
-						us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-						monitor.killMonitoredDevice(d, false);
-						if (performMajorUpdate)
-							abortUpdateStageOne("");
-						else
-							continue;
-					}
-					tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, MAX_SECONDS_WAIT_FOR_DEVICE);
-					if (tmpMsg == null  || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
-						us.log("Update Server check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-						monitor.killMonitoredDevice(d, false);
-						if (performMajorUpdate)
-							abortUpdateStageOne("");
-						else
-							continue;
-					}						
+					abortUpdateStageOne("");
 				}
 			}
-			// All monitored devices with deviceType are working, so we update the current version of deviceType
-			us.log("Successfully updated " + ud.deviceType + " to version " + ud.newVersion, Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-			monitor.setCurrentDeviceTypeVersion(ud.deviceType, ud.newVersion);
-			us.monitoringProperties.setProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, ud.deviceType, ud.newVersion);
-		}
-
-		// If we will not update PalComStarter, we can let the last monitored device go. 
-		// Otherwise, we need it later for stage two.
-		if (performMonitoredDeviceUpdate && !performPalComStarterUpdate) {
-			if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
-				us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-				monitor.killMonitoredDevice(d, false);
-				abortUpdateStageOne("");
-			}
-			String tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, MAX_SECONDS_WAIT_FOR_DEVICE);
-			if (tmpMsg == null  || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
-				us.log("Update Server check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
-				monitor.killMonitoredDevice(d, false);
-				abortUpdateStageOne("");
+			if (performPalComStarterUpdate) {
+				handOverToSupervisor();
+				return;
 			}
 			us.log("Updating process finished.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-			monitor.enable();
-			us.setUpdateState(UpdateState.NONE);
+			resumeMonitoring();
+			pipeline.moveTo(UpdatePipeline.State.FINISHED);
 			return;
 		}
 		
 		us.log("We are about to update PalComStarter. Time for update stage two.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		pipeline.moveTo(UpdatePipeline.State.HANDING_OVER);
 		
-		if (!performMonitoredDeviceUpdate) { // If we did not perform update on some monitored device, 
-											 // we need to initiate stage two by palcom messages.
+		if (heldDevice == null) { // If we did not restart some monitored device (not updated or hot patched),
+								  // we need to initiate stage two by palcom messages.
 			// It is always possible to communicate with PalCom messages in this case, because monitored 
 			// devices need to be updated in the event of a major update.
 			d = monitor.initiateStageTwo();
@@ -319,24 +458,24 @@ class UpdateStageOneThread extends Thread {
 				us.log("Could not get hold of a monitored device to initiate stage two with. Will not update " + UpdaterService.PALCOMSTARTER_DEVICE_TYPE + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 				abortUpdateStageOne("");
 			}
+			socketListener.startConversation(d.deviceID.getID());
 		} else { // ... else, we initiate stage two by Update Protocol messages
-			if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_STAGE_TWO, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+			d = heldDevice;
+			if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_STAGE_TWO, monitor.timeoutSeconds(d, DurationEstimator.Kind.REPLY, MAX_SECONDS_WAIT_FOR_DEVICE))) {
 				us.log("Socket timeout: Could not send msg to new device. Will not update " + UpdaterService.PALCOMSTARTER_DEVICE_TYPE + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 				abortUpdateStageOne("");
 			}
 		}
 		// Send version of new PalComStarter (used to update startup script in stage three)
-		if (!socketSender.sendMsg(palComStarterUpdateDescription.newVersion, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		if (!d.sender.sendData(palComStarterUpdateDescription.newVersion, MAX_SECONDS_WAIT_FOR_DEVICE)) {
 			us.log("Socket timeout: Could not send msg to new device. Will not update " + UpdaterService.PALCOMSTARTER_DEVICE_TYPE + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			abortUpdateStageOne("");
 		}
 		// Sending the start command for the new version of PalComStarter
-		String myJarPath = palComStarterUpdateDescription.pathToExec;
-		String myDeviceID = us.getDevice().getDeviceID().getID();
-		String newStartCmd = "java -jar " + myJarPath + " -x " + myDeviceID + " -f " + pathToFS;
+		String newStartCmd = newPalComStarterCommand();
 		// Add the flag telling PalComStarter to continue with stage three when starting:
 		newStartCmd += " -" + PalComStarter.COM_CONTINUE_UPDATE_STAGE_THREE;
-		if (!socketSender.sendMsg(newStartCmd, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		if (!d.sender.sendData(newStartCmd, MAX_SECONDS_WAIT_FOR_DEVICE)) {
 			us.log("Socket timeout: Could not send msg to new device. Will not update " + UpdaterService.PALCOMSTARTER_DEVICE_TYPE + ".", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 			abortUpdateStageOne("");
 		}
@@ -350,40 +489,174 @@ class UpdateStageOneThread extends Thread {
 		 */
 		
 		// Wait for killing blow...
-		String tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_KILL, MAX_SECONDS_WAIT_FOR_DEVICE);
+		String tmpMsg = socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_KILL, MAX_SECONDS_WAIT_FOR_DEVICE);
 		if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
 			abortUpdateStageOne("Socket timeout: No kill reply from new device. Aborting update!");
 		}
 		// Make sure that we wont be disturbed and that the listening socket is closed before moving on
 		us.setUpdateState(UpdateState.UPDATING_DONT_DISTURB);
 		socketListener.closeSocket();
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_KILL_ACK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_KILL_ACK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
 			abortUpdateStageOne("Socket timeout: Kill ack not received by new device. Aborting update!");
 		}
 		us.log("UpdateStageOne Thread done. Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.stopDevice();
 	}
 	
+	/**
+	 * Swaps the device to the new version, or hot patches it, and checks that the new version works.
+	 * Runs in parallel with the swaps of the other devices of the same wave.
+	 * @param hold if true, the device is restarted even for a patch, and its startup check is not finished, so that
+	 * it can host update stage two
+	 * @return false if the new version did not work. The device has been killed then.
+	 */
+	private boolean swapDevice(MonitoredDevice d, PalComDeviceUpdateDescription ud, boolean hold) {
+		swappedDevices.add(d);
+		// Patches are applied to the running device if possible. Otherwise it is restarted as usual.
+		// A device that is to host stage two must be restarted, since only its start thread takes part in stage two.
+		if (ud.isPatch() && !hold && monitor.hotPatchMonitoredDevice(d, ud.pathToExec, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+			us.log("Hot patched " + d.deviceID + " to version " + ud.newVersion + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			return true;
+		}
+		monitor.killMonitoredDevice(d, true);
+		// Check that socket is working
+		if(!monitor.startNewVersionMonitoredDevice(d, ud.newVersion)) {
+			us.log("Could not start " + d.deviceType + " " + d.deviceID + " " + ud.newVersion + ". Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+		socketListener.startConversation(d.deviceID.getID());
+		int handshakeSeconds = monitor.timeoutSeconds(d, DurationEstimator.Kind.HANDSHAKE, MAX_SECONDS_WAIT_FOR_DEVICE);
+		int replySeconds = monitor.timeoutSeconds(d, DurationEstimator.Kind.REPLY, MAX_SECONDS_WAIT_FOR_DEVICE);
+		if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, handshakeSeconds)) {
+			us.log("Socket check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		
+		String tmpMsg = socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, handshakeSeconds);
+		if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
+			us.log("Socket check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		monitor.recordDuration(d, DurationEstimator.Kind.HANDSHAKE, System.currentTimeMillis() - d.startTimeMillis);
+		
+		// Check that device can talk to update server
+		long checkTimeMillis = System.currentTimeMillis();
+		if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, replySeconds)) {
+			us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		if (!d.sender.sendData(us.updateServerDeviceID, replySeconds)) {
+			us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		tmpMsg = socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM,
+				monitor.timeoutSeconds(d, DurationEstimator.Kind.UPDATE_SERVER_CHECK, MAX_SECONDS_WAIT_FOR_DEVICE));
+		if (tmpMsg == null  || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
+			us.log("Update Server check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		monitor.recordDuration(d, DurationEstimator.Kind.UPDATE_SERVER_CHECK, System.currentTimeMillis() - checkTimeMillis);
+		monitor.logStartupBenchmark(d);
+		if (hold)
+			return true;
+		long finishTimeMillis = System.currentTimeMillis();
+		if (!d.sender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, replySeconds)) {
+			us.log("Update Server check timeout: Could not send msg to new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		tmpMsg = socketListener.waitForMsgFrom(d.deviceID.getID(), UpdaterService.UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, replySeconds);
+		if (tmpMsg == null  || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
+			us.log("Update Server check timeout: No socket reply from new device. Will not update " + d.deviceID + "!", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			monitor.killMonitoredDevice(d, false);
+			return false;
+		}
+		monitor.recordDuration(d, DurationEstimator.Kind.REPLY, System.currentTimeMillis() - finishTimeMillis);
+		return true;
+	}
+	
+	private String newPalComStarterCommand() {
+		String myJarPath = palComStarterUpdateDescription.pathToExec;
+		String myDeviceID = us.getDevice().getDeviceID().getID();
+		String newStartCmd = "java";
+		for (String archiveArgument: AppCdsArchive.getLaunchArguments(myJarPath)) {
+			newStartCmd += " " + archiveArgument;
+		}
+		newStartCmd += " -jar " + myJarPath + " -x " + myDeviceID + " -f " + pathToFS;
+		return newStartCmd;
+	}
+	
+	/**
+	 * Replaces stage two and three when PalComStarter is supervised. The supervisor starts the new PalComStarter
+	 * on trial when we have exited, and starts us again if the new one fails.
+	 */
+	private void handOverToSupervisor() {
+		us.log("We are about to update PalComStarter. Handing over to the supervisor.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		pipeline.moveTo(UpdatePipeline.State.HANDING_OVER);
+		if (!us.requestSupervisorHandover(newPalComStarterCommand(), palComStarterUpdateDescription.newVersion)) {
+			abortUpdateStageOne("Could not hand over to the supervisor. Will not update " + UpdaterService.PALCOMSTARTER_DEVICE_TYPE + ".");
+			return;
+		}
+		us.setUpdateState(UpdateState.UPDATING_DONT_DISTURB);
+		us.log("UpdateStageOne Thread done. Thread killed.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		us.exitForHandover();
+	}
+	
 	private void abortUpdateStageOne(String message) {
 		us.log(message, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 
-		// If we were performing a major update, we need to reset everything.
+		// Reopen socket if it is closed. Needed for the startup checks of the rolled back devices.
+		socketListener.reopenSocket();			
+		
+		// If we were performing a major update, all devices must go back to the versions they had before it.
+		// Their jars are kept by the version ledger, so they are started again right away.
 		if (performMajorUpdate) {
-			monitor.killAllNewVersionMonitoredDevices();
-			monitor.restartAllMonitoredDevices();
-//			for (String newJarPath: newJarPaths) {
-				// remove the jar
-//			}
-		} else {
-			// remove the aborted jar
+			for (String deviceType: committedTypes) {
+				String previous = us.getVersionLedger().rollBack(deviceType);
+				if (previous != null)
+					monitor.setCurrentDeviceTypeVersion(deviceType, previous);
+			}
+			committedTypes.clear();
+			for (MonitoredDevice d: swappedDevices) {
+				monitor.rollBackMonitoredDevice(d);
+			}
+			swappedDevices.clear();
 		}
+		// Removes the aborted jars
+		pruneOldJars();
+		if (palComStarterUpdateDescription != null)
+			us.getVersionLedger().pruneInBackground(UpdaterService.PALCOMSTARTER_DEVICE_TYPE, Collections.<String>emptySet());
 		
-		// Reopen socket if it is closed
-		socketListener.reopenSocket();			
-		
-		us.updateAborted++;
+		us.updateAborted.incrementAndGet();
 		
-		us.setUpdateState(UpdateState.NONE);
-		monitor.enable();
+		if (pipeline.moveTo(UpdatePipeline.State.ABORTED))
+			resumeMonitoring();
+	}
+	
+	/**
+	 * Prunes the jars of the monitored device types of this update. Not the new PalComStarter jar, which is
+	 * still to be started.
+	 */
+	private void pruneOldJars() {
+		for (PalComDeviceUpdateDescription ud: monitoredDeviceTypesToUpdate) {
+			monitor.pruneOldJars(ud.deviceType);
+		}
+	}
+	
+	private boolean runsAlone() {
+		return performPalComStarterUpdate || performMajorUpdate;
+	}
+	
+	private void resumeMonitoring() {
+		if (runsAlone()) {
+			monitor.enable();
+		} else {
+			monitor.releaseDeviceTypes(pipeline.getDeviceTypes());
+		}
 	}
 }
\ No newline at end of file
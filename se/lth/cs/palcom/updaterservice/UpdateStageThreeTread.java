@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Collections;
 
 import ist.palcom.resource.descriptor.Command;
 import ist.palcom.resource.descriptor.DeviceID;
@@ -72,6 +73,7 @@ class UpdateStageThreeThread extends Thread {
 		writableConnToUpdateServer = us.getWritableConnectionToService(new DeviceID(us.updateServerDeviceID), UpdateDistributionService.SERVICE_NAME, -1);
 		
 		// request response from update server in order to test Palcom tunnel/communication
+		us.clearCommandBuffer(UpdaterService.COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM);
 		Command confirmRequestCmd = us.getCommand(UpdaterService.COMMAND_OUT_CHECK_UPDATE_SERVER);
 		us.log("Sending confirmmation request to update server", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.sendPalComMessage(writableConnToUpdateServer, confirmRequestCmd);
@@ -82,7 +84,7 @@ class UpdateStageThreeThread extends Thread {
 		us.log("Got response from update server!", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM, SocketSender.TRY_FOREVER);
 		
-		newVersion = socketListener.getMsg();
+		newVersion = socketListener.getData();
 		
 		// Make sure that we can write to the startupscript and to make a backup
 		try {
@@ -115,7 +117,11 @@ class UpdateStageThreeThread extends Thread {
 			return false;
 		}
 		pathToExec += UpdaterService.PALCOMSTARTER_DEVICE_TYPE + "-" + newVersion + ".jar";
-		newStartupCommand = "java -jar " + pathToExec + " -x " + deviceID + " -f " + pathToFS;
+		newStartupCommand = "java";
+		for (String archiveArgument: AppCdsArchive.getLaunchArguments(pathToExec)) {
+			newStartupCommand += " " + archiveArgument;
+		}
+		newStartupCommand += " -jar " + pathToExec + " -x " + deviceID + " -f " + pathToFS;
 		
 		// Creating backup
 		startupScriptBackup = new File(startupScriptURL + ".bak");
@@ -133,6 +139,7 @@ class UpdateStageThreeThread extends Thread {
 		
 		// Wait for other device to ACK our finish
 		socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO_ACK, SocketListenerThread.WAIT_FOREVER);
+		socketSender.closeChannel();
 		return true;
 	}
 	
@@ -170,14 +177,17 @@ class UpdateStageThreeThread extends Thread {
 		// Remove update aborted counter so it won't effect next updating process
 		us.monitoringProperties.removeProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_GENERAL, UpdaterService.KEY_UPDATE_ABORTED);
 	
-		// TODO Delete old version executables?
-		
-		us.monitoringProperties.setProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, UpdaterService.PALCOMSTARTER_DEVICE_TYPE, newVersion);
+		us.getVersionLedger().recordCurrent(UpdaterService.PALCOMSTARTER_DEVICE_TYPE, newVersion);
+		// The previous version is kept, the jars of older ones are deleted
+		us.getVersionLedger().pruneInBackground(UpdaterService.PALCOMSTARTER_DEVICE_TYPE, Collections.<String>emptySet());
 		us.log("Updating done", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		us.reportUpdateOutcome(writableConnToUpdateServer, new String[] {UpdaterService.PALCOMSTARTER_DEVICE_TYPE}, new String[] {newVersion}, UpdaterService.UPDATE_OUTCOME_SUCCESS);
 	}
 	
 	private void abortUpdateStageThree(String message) { //TODO
 		us.log(message, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+		if (writableConnToUpdateServer != null && newVersion != null)
+			us.reportUpdateOutcome(writableConnToUpdateServer, new String[] {UpdaterService.PALCOMSTARTER_DEVICE_TYPE}, new String[] {newVersion}, UpdaterService.UPDATE_OUTCOME_FAILURE);
 		// Set updateAborted variable so current PalComStarter knows that update failed
 		String tmp = us.monitoringProperties.getProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_GENERAL, UpdaterService.KEY_UPDATE_ABORTED);
 		if (tmp != null) {
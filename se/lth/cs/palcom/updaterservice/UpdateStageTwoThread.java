@@ -1,7 +1,10 @@
 package se.lth.cs.palcom.updaterservice;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import ist.palcom.resource.descriptor.DeviceID;
 import se.lth.cs.palcom.device.DeviceProperties;
@@ -17,7 +20,9 @@ class UpdateStageTwoThread extends Thread {
 	private UpdaterService us;
 	private SocketListenerThread socketListener;
 	private SocketSender socketSender;
+	// Used until the durations of the steps have been learned
 	private static final int MAX_SECONDS_WAIT_FOR_DEVICE = 10;		
+	private DurationEstimator durations;
 	private Process p = null;
 	private String newPalComStarterCommand;
 	private String currentPalComStarterCommand;
@@ -54,15 +59,26 @@ class UpdateStageTwoThread extends Thread {
 			return false;
 		}
 		
-		newPalComStarterVersion = socketListener.getMsg();
+		newPalComStarterVersion = socketListener.getData();
 		// We need to know how to start the current PalcomStarter in case of error.
-		newPalComStarterCommand = socketListener.getMsg();
+		newPalComStarterCommand = socketListener.getData();
 		
 		// Send kill to the current PalcomStarter
 		socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_KILL, SocketSender.TRY_FOREVER);
 		
 		// Wait for PalComStarter to ACK our kill
 		socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_KILL_ACK , SocketListenerThread.WAIT_FOREVER);
+		
+		// The learned durations are in the monitoring properties. Only open them now that PalComStarter has
+		// let go of them, so that two processes never write them at the same time.
+		if (us.monitoringProperties == null) {
+			try {
+				us.monitoringProperties = new DeviceProperties(new DeviceID("monitoring"), HostFileSystems.getGlobalRoot(), null, "Monitoring properties. Generated " + new Date());
+			} catch (IOException e) {
+				us.log("Could not open monitoring properties. Using default timeouts.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			}
+		}
+		durations = us.getDurationEstimator();
 		return true;
 	}
 	
@@ -70,13 +86,20 @@ class UpdateStageTwoThread extends Thread {
 		// Now we are in charge of the update process (so it is also our duty to abort if something goes wrong)
 		
 		// Start new PalcomStarter
-		String[] arguments = newPalComStarterCommand.split(" ");
+		List<String> arguments = new ArrayList<String>(Arrays.asList(newPalComStarterCommand.split(" ")));
+		// Tell the new PalComStarter whom it talks to, and where
+		int jarIndex = arguments.indexOf("-jar");
+		if (jarIndex > 0) {
+			arguments.add(jarIndex, "-D" + UpdateProtocolEndpoint.STAGE_TWO_DEVICE_PROPERTY + "=" + us.getDevice().getDeviceID().getID());
+			arguments.add(jarIndex, "-D" + UpdateProtocolEndpoint.STAGE_TWO_ENDPOINT_PROPERTY + "=" + socketListener.getEndpoint().toSpec());
+		}
 		String debug = "Going to start new version PalComStarter with:";
 		for(String s: arguments)
 			debug += " " + s;
 		us.log(debug, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		ProcessBuilder pb = new ProcessBuilder(arguments);
 		pb.inheritIO();
+		long startTimeMillis = System.currentTimeMillis();
 		try {
 			us.log("Starting new PalComStarter...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 			p = pb.start();
@@ -84,48 +107,67 @@ class UpdateStageTwoThread extends Thread {
 			abortUpdateStageTwo("Could not start new PalcomStarter. Aborting update!");
 		}
 		
-		// check that communication via socket is working
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		// check that communication via socket is working. The new PalComStarter needs a new channel,
+		// and has the same name as the old one, so forget what the old one said.
+		socketSender.closeChannel();
+		socketListener.startConversation(UpdaterService.PALCOMSTARTER_DEVICE_TYPE);
+		int handshakeSeconds = timeoutSeconds(DurationEstimator.Kind.HANDSHAKE);
+		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET, handshakeSeconds)) {
 			abortUpdateStageTwo("Socket check timeout: Could not send msg to new device. Aborting update!");
 		}
 		String tmpMsg;
-		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, MAX_SECONDS_WAIT_FOR_DEVICE);
+		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, handshakeSeconds);
 		if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
 			abortUpdateStageTwo("Socket check timeout: No socket reply from new device. Aborting update!");
 		}
+		long now = System.currentTimeMillis();
+		recordDuration(DurationEstimator.Kind.HANDSHAKE, now - startTimeMillis);
 		
 		// check that palcomStarter can talk to update server
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		int replySeconds = timeoutSeconds(DurationEstimator.Kind.REPLY);
+		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, replySeconds)) {
 			abortUpdateStageTwo("Update Server check timeout: Could not send msg to new device. Aborting update!");
 		}
 		
-		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM, MAX_SECONDS_WAIT_FOR_DEVICE);
+		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM, timeoutSeconds(DurationEstimator.Kind.UPDATE_SERVER_CHECK));
 		if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
 			abortUpdateStageTwo("Update Server check timeout: No socket reply from new device. Aborting update!");
 		}
+		recordDuration(DurationEstimator.Kind.UPDATE_SERVER_CHECK, System.currentTimeMillis() - now);
 		us.log("PalcomStarter can communicate.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		
 		// PalcomStarter can communicate both by socket and to update server. Time to finish!
 		
-		if (!socketSender.sendMsg(newPalComStarterVersion, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		now = System.currentTimeMillis();
+		if (!socketSender.sendData(newPalComStarterVersion, replySeconds)) {
 			abortUpdateStageTwo("Finish stage two timeout: Could not send msg to new device. Aborting update!");
 		}
 		
-		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO, MAX_SECONDS_WAIT_FOR_DEVICE);
+		tmpMsg = socketListener.waitForMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO, replySeconds);
 		if (tmpMsg == null || tmpMsg.equals(UpdaterService.UPDATE_PROTOCOL_ABORT)) {
 			abortUpdateStageTwo("Finish stage two timeout: Did not receive reply from new device. Aborting update!");
 		}
+		recordDuration(DurationEstimator.Kind.REPLY, System.currentTimeMillis() - now);
 		// make sure that we wont be disturbed and that the listening socket is closed before moving on
 		us.setUpdateState(UpdateState.UPDATING_DONT_DISTURB);
 		socketListener.closeSocket();
-		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO_ACK, MAX_SECONDS_WAIT_FOR_DEVICE)) {
+		if (!socketSender.sendMsg(UpdaterService.UPDATE_PROTOCOL_FINISH_STAGE_TWO_ACK, replySeconds)) {
 			abortUpdateStageTwo("Socket timeout: Kill ack not received by new device. Aborting update!");
 		}
+		socketSender.closeChannel();
 		
 		us.log("UpdateStageTwo Thread is done.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 		us.setUpdateState(UpdateState.NONE);
 	}
 	
+	private int timeoutSeconds(DurationEstimator.Kind kind) {
+		return durations.timeoutSeconds(kind, UpdaterService.PALCOMSTARTER_DEVICE_TYPE, newPalComStarterVersion, MAX_SECONDS_WAIT_FOR_DEVICE);
+	}
+
+	private void recordDuration(DurationEstimator.Kind kind, long millis) {
+		durations.record(kind, UpdaterService.PALCOMSTARTER_DEVICE_TYPE, newPalComStarterVersion, millis);
+	}
+	
 	private void abortUpdateStageTwo(String message) { // TODO
 		us.log(message, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 		if (p != null) {
@@ -4,11 +4,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ist.palcom.resource.descriptor.Command;
 import ist.palcom.resource.descriptor.DeviceID;
@@ -30,6 +36,7 @@ import se.lth.cs.palcom.discovery.proxy.PalcomServiceList;
 import se.lth.cs.palcom.filesystem.HostFileSystems;
 import se.lth.cs.palcom.logging.Logger;
 import se.lth.cs.palcom.palcomstarter.PalComStarter;
+import se.lth.cs.palcom.palcomstarter.Supervisor;
 import se.lth.cs.palcom.service.AbstractSimpleService;
 import se.lth.cs.palcom.service.ServiceTools;
 import se.lth.cs.palcom.service.command.CommandServiceProtocol;
@@ -55,6 +62,8 @@ public class UpdaterService extends AbstractSimpleService {
 	static final String COMMAND_IN_ABORT_UPDATE = "abort update!";
 	static final String COMMAND_IN_KILL = "kill";
 	static final String COMMAND_IN_INITIATE_STAGE_TWO = "initiate updating stage two";
+	static final String COMMAND_IN_HOT_PATCH = "hot patch";
+	static final String COMMAND_IN_PROBE = "dispatch probe";
 
 	static final String COMMAND_IN_DISABLE_MONITORING = "disable monitor";
 	static final String COMMAND_IN_ENABLE_MONITORING = "enable monitor";
@@ -63,14 +72,19 @@ public class UpdaterService extends AbstractSimpleService {
 	static final String COMMAND_IN_START_DEVICE_BY_INDEX = "start device by index";
 	static final String COMMAND_IN_RESTART_DEVICE_BY_INDEX = "restart device by index";
 	static final String COMMAND_IN_RESET_UPDATE_ABORTED_COUNTER = "reset update aborted counter";
+	static final String COMMAND_IN_REPORT_MEMORY_USAGE = "report memory usage";
+	static final String COMMAND_IN_RELEASE_DEVICE_BY_INDEX = "release device by index";
 
 	public static final String COMMAND_OUT_UPDATE_CONTENT_REQUEST = "gief the jar!";
 	public static final String COMMAND_OUT_CHECK_UPDATE_SERVER = "do you hear me?";
 	static final String COMMAND_OUT_KILL = COMMAND_IN_KILL;
 	public static final String COMMAND_OUT_CHECK_LATEST_VERSION = "latest version?";
 	static final String COMMAND_OUT_LIST_MONITORED_DEVICES = "list of all monitored devices";
+	static final String COMMAND_OUT_MEMORY_USAGE = "memory usage";
 	public static final String COMMAND_OUT_BENCHMARK_END = "benchmark end";
 	static final String COMMAND_OUT_INITIATE_STAGE_TWO = COMMAND_IN_INITIATE_STAGE_TWO;
+	static final String COMMAND_OUT_HOT_PATCH = COMMAND_IN_HOT_PATCH;
+	static final String COMMAND_OUT_PROBE = COMMAND_IN_PROBE;
 
 	public static final String PARAM_VALUE_SEPARATOR = ",,,";
 	public static final String PARAM_NO_ENTRY = "no entry";
@@ -81,18 +95,67 @@ public class UpdaterService extends AbstractSimpleService {
 	static final String PARAM_SERVICEINSTANCEID = "serviceInstanceID";
 	static final String PARAM_MONITORED_DEVICES = "monitored devices";
 	static final String PARAM_MONITORED_DEVICE_INDEX = "monitored device index";
+	static final String PARAM_MEMORY_USAGE = "memory usage";
+	static final String PARAM_JAR_PATH = "jar path";
+	static final String PARAM_PROBE_ID = "probe id";
+	public static final String PARAM_UPDATE_OUTCOME = "outcome";
+	public static final String PARAM_REPORTER = "reporter";
+
+	/** Outcomes of an update, reported to the update server with {@link #COMMAND_OUT_BENCHMARK_END} */
+	public static final String UPDATE_OUTCOME_SUCCESS = "success";
+	public static final String UPDATE_OUTCOME_FAILURE = "failure";
+	/** Nothing was updated, for example because we already had the versions or the update was deferred too long */
+	public static final String UPDATE_OUTCOME_SKIPPED = "skipped";
+	/** How long an update may wait for a good time to swap, unless {@link #KEY_MAX_UPDATE_DEFER_MILLIS} says otherwise */
+	public static final long DEFAULT_MAX_UPDATE_DEFER_MILLIS = 24*60*60*1000;
 
 	static final String NAMESPACE_UPDATERSERVICE_MONITORED_DEVICE_NAMES = "monitoredDeviceNames";
 	static final String NAMESPACE_MONITORED_DEVICE = "monitoredDevice-";
 	static final String NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION = "deviceTypeVersion";
 	static final String NAMESPACE_UPDATERSERVICE_GENERAL = "general";
+	static final String NAMESPACE_UPDATERSERVICE_KNOWN_GOOD_VERSION = "knownGoodDeviceTypeVersion";
+	static final String NAMESPACE_UPDATERSERVICE_LEARNED_DURATIONS = "learnedDurations";
+	static final String NAMESPACE_UPDATERSERVICE_DEVICE_PROCESS = "monitoredDeviceProcess";
+	static final String NAMESPACE_UPDATERSERVICE_DEVICE_PORT = "monitoredDevicePort";
+	static final String NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_DEPENDENCIES = "deviceTypeDependencies";
+	static final String NAMESPACE_UPDATERSERVICE_PREVIOUS_VERSION = "previousDeviceTypeVersion";
+	static final String NAMESPACE_UPDATERSERVICE_VERSION_HISTORY = "deviceTypeVersionHistory";
 
 	static final String KEY_MONITORED_DEVICE_ID = "ID";
 	static final String KEY_MONITORED_DEVICE_TYPE = "type";
 	static final String KEY_UPDATE_SERVER_DEVICE_ID = "updateServerDeviceID";
 	static final String KEY_UPDATE_ABORTED = "updateAborted";
+	static final String KEY_HOSTING_MODE = "hostingMode";
+	static final String KEY_UPDATE_PROTOCOL_TRANSPORT = "updateProtocolTransport";
+	static final String KEY_KILL_GRACE_PERIOD_MILLIS = "killGracePeriodMillis";
+	static final String KEY_TERMINATE_GRACE_PERIOD_MILLIS = "terminateGracePeriodMillis";
+	static final String KEY_MISSED_HEARTBEATS = "missedHeartbeats";
+	static final String KEY_MAX_DISPATCH_LAG_MILLIS = "maxDispatchLagMillis";
+	static final String KEY_FLAP_PENALTY_HALF_LIFE_MILLIS = "flapPenaltyHalfLifeMillis";
+	static final String KEY_FLAP_SUPPRESS_THRESHOLD = "flapSuppressThreshold";
+	static final String KEY_FLAP_REUSE_THRESHOLD = "flapReuseThreshold";
+	static final String KEY_FLAP_MAX_SUPPRESS_MILLIS = "flapMaxSuppressMillis";
+	static final String KEY_UNREACHABLE_CONFIRM_MILLIS = "unreachableConfirmMillis";
+	static final String KEY_RESTART_BACKOFF_BASE_MILLIS = "restartBackoffBaseMillis";
+	static final String KEY_RESTART_BACKOFF_MAX_MILLIS = "restartBackoffMaxMillis";
+	static final String KEY_CRASH_LOOP_WINDOW_MILLIS = "crashLoopWindowMillis";
+	static final String KEY_CRASH_LOOP_THRESHOLD = "crashLoopThreshold";
+	static final String KEY_STABLE_RUN_MILLIS = "stableRunMillis";
+	static final String KEY_QUARANTINE_MILLIS = "quarantineMillis";
+	static final String KEY_RETAINED_OLD_JARS = "retainedOldJars";
+	static final String KEY_IGNORABLE_JAR_ENTRIES = "ignorableJarEntries";
+	static final String KEY_IGNORABLE_MANIFEST_ATTRIBUTES = "ignorableManifestAttributes";
+	static final String KEY_MAINTENANCE_WINDOWS = "maintenanceWindows";
+	static final String KEY_MAX_HOST_LOAD_PERCENT = "maxHostLoadPercent";
+	static final String KEY_MIN_FREE_MEMORY_MB = "minFreeMemoryMB";
+	static final String KEY_MAX_DEVICE_CPU_PERCENT = "maxDeviceCpuPercent";
+	static final String KEY_MAX_PARALLEL_SWAPS = "maxParallelSwaps";
+	static final String KEY_MAX_UPDATE_DEFER_MILLIS = "maxUpdateDeferMillis";
+	static final String KEY_MAX_SWAP_PACE_MILLIS = "maxSwapPaceMillis";
 
 	private static final String PROPERTY_MONITORED_DEVICE_ENABLED = "enabled";
+	static final String PROPERTY_HOSTING_MODE_SEPARATE_PROCESS = "separateProcess";
+	static final String PROPERTY_HOSTING_MODE_IN_PROCESS = "inProcess";
 
 	static final String UPDATE_PROTOCOL_KILL = "kill";
 	static final String UPDATE_PROTOCOL_KILL_ACK = "kill ack";
@@ -106,6 +169,8 @@ public class UpdaterService extends AbstractSimpleService {
 	static final String UPDATE_PROTOCOL_STAGE_TWO = "update stage two";
 	static final String UPDATE_PROTOCOL_FINISH_STAGE_TWO = "finish stage two";
 	static final String UPDATE_PROTOCOL_FINISH_STAGE_TWO_ACK = "finish stage two ACK";
+	static final String UPDATE_PROTOCOL_HOT_PATCH_DONE = "hot patch done";
+	static final String UPDATE_PROTOCOL_HOT_PATCH_FAILED = "hot patch failed";
 
 	static final String MSG_SHUT_DOWN_THREAD = "shut down thread";
 
@@ -116,25 +181,52 @@ public class UpdaterService extends AbstractSimpleService {
 	static final int UPDATE_ABORTED_MANY_TIMES_DELAY_SECONDS = 24*60*60;
 	static final int PALCOMSTARTER_SOCKET_PORT = 13370;
 	static final int MONITORED_DEVICE_SOCKET_PORT = 13371;
+	static final int HOT_PATCH_REPLY_SECONDS = 10;
+	// Used until it has been learned how long PalComStarter needs to reach the update server
+	static final int HANDOVER_UPDATE_SERVER_CHECK_SECONDS = 30;
+	static final int REPORT_CONNECTION_SECONDS = 5;
 
+	/**
+	 * What the whole service is doing. Updates of monitored devices have their own state in their {@link UpdatePipeline}.
+	 */
 	enum UpdateState {
-		NONE, UPDATING_INITIAL, UPDATING_WAITING_FOR_JAR, UPDATING_KILLING_CURRENT, UPDATING_STARTING_NEW, UPDATING_FALLBACK_TIMER_CHECK_SOCKET, UPDATING_STAGE_TWO, STARTUP, UPDATING_FALLBACK_TIMER_CHECK_UPDATE_SERVER, UPDATING_SENDING_JAR, UPDATING_DONT_DISTURB, UPDATING_STAGE_THREE,
+		NONE, STARTUP, UPDATING_STAGE_TWO, UPDATING_STAGE_THREE, UPDATING_DONT_DISTURB,
 	}
 
-	
-	private UpdateState updateState = UpdateState.NONE;
+	private final AtomicReference<UpdateState> updateState = new AtomicReference<UpdateState>(UpdateState.NONE);
+	// Update pipelines in progress, by the device types they update
+	private final HashMap<String, UpdatePipeline> pipelinesByDeviceType = new HashMap<String, UpdatePipeline>();
+	// A pipeline that runs alone, or waits for the others to finish so that it can
+	private UpdatePipeline exclusivePipeline;
+	private int nextPipelineID = 1;
 
 	private MonitoringThread monitor;
-	private LinkedBlockingQueue<Command> commandBuffer;
+	// Update data commands carry whole jars, so keep few of each
+	private static final int COMMAND_BUFFER_CAPACITY = 4;
+	private MessageBus<Command> commandBuffer;
 	private SocketListenerThread socketListener;
 	private SocketSender socketSender;
+	// Monitored devices only. Started when the startup check is finished.
+	private HeartbeatSender heartbeatSender;
+	// False if we share the Update Protocol endpoint with other devices and must free it after the startup check
+	private boolean hasOwnEndpoint;
 	private UpdateServerConnectionListener updateServerConnectionListener;
+	// Guards the outcome report command, which is filled in by pipelines running side by side
+	private final Object reportLock = new Object();
 	private boolean isMonitor = false;
 	private boolean continueUpdateStageThree = false;
+	// The state file of our Supervisor, or null if PalComStarter is not supervised
+	private File supervisorState;
 	String updateServerDeviceID;
+	/** Directory of the Update Protocol socket files, or null if the Update Protocol runs over TCP */
+	String socketDirectory;
 	DeviceProperties monitoringProperties;
-	Integer updateAborted = 0;
-	Long updateAbortedDelay = 0L;
+	private DurationEstimator durationEstimator;
+	private VersionLedger versionLedger;
+	private UpdateScheduler updateScheduler;
+	// Counted by update pipelines that may run side by side
+	final AtomicInteger updateAborted = new AtomicInteger();
+	volatile long updateAbortedDelay = 0L;
 
 	public UpdaterService(AbstractDevice container) {
 		this(container, ServiceTools.getNextInstance(SERVICE_VERSION));
@@ -163,9 +255,36 @@ public class UpdaterService extends AbstractSimpleService {
 			try {
 				monitoringProperties = new DeviceProperties(new DeviceID("monitoring"), HostFileSystems.getGlobalRoot(), null, "Monitoring properties. Generated " + new Date());
 				String[] monitoredDeviceNames = monitoringProperties.getKeys(NAMESPACE_UPDATERSERVICE_MONITORED_DEVICE_NAMES);
-				socketListener = new SocketListenerThread(this, PALCOMSTARTER_SOCKET_PORT);
-				socketSender = new SocketSender(this, MONITORED_DEVICE_SOCKET_PORT);
-				monitor = new MonitoringThread(this, socketListener, socketSender);
+				String defaultHostingMode = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_HOSTING_MODE);
+				String transport = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_PROTOCOL_TRANSPORT);
+				if (UpdateProtocolEndpoint.TRANSPORT_UNIX.equals(transport)) {
+					if (UpdateProtocolEndpoint.isUnixDomainSupported()) {
+						socketDirectory = UpdateProtocolEndpoint.getDefaultSocketDirectory();
+						// Devices hosted in-process read it from here, the others get it on the command line
+						System.setProperty(UpdateProtocolEndpoint.SOCKET_DIRECTORY_PROPERTY, socketDirectory);
+					} else {
+						log("Unix domain sockets are not supported here. Using TCP for the Update Protocol.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+					}
+				}
+				String supervisorStatePath = System.getProperty(Supervisor.STATE_PROPERTY);
+				if (supervisorStatePath != null) {
+					supervisorState = new File(supervisorStatePath);
+					log("Supervised. PalComStarter updates are handed over to the supervisor.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+				}
+				socketListener = new SocketListenerThread(this, UpdateProtocolEndpoint.forPalComStarter(socketDirectory));
+				// Monitored devices are talked to through their own senders. This one is only used if we are
+				// continuing an update, to talk to the device that performed stage two.
+				String stageTwoDevice = System.getProperty(UpdateProtocolEndpoint.STAGE_TWO_DEVICE_PROPERTY);
+				socketListener.setDefaultPeer(stageTwoDevice);
+				UpdateProtocolEndpoint target = null;
+				String stageTwoEndpoint = System.getProperty(UpdateProtocolEndpoint.STAGE_TWO_ENDPOINT_PROPERTY);
+				if (stageTwoEndpoint != null) {
+					target = UpdateProtocolEndpoint.parse(stageTwoEndpoint);
+				} else if (stageTwoDevice != null) {
+					target = UpdateProtocolEndpoint.forDevice(stageTwoDevice, socketDirectory);
+				}
+				socketSender = new SocketSender(this, socketListener, target, stageTwoDevice);
+				monitor = new MonitoringThread(this, socketListener);
 				for (String deviceName: monitoredDeviceNames) {
 					if (!monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_MONITORED_DEVICE_NAMES, deviceName).equals(PROPERTY_MONITORED_DEVICE_ENABLED)){
 						continue;
@@ -195,7 +314,13 @@ public class UpdaterService extends AbstractSimpleService {
 						log("Will not monitor device with name: " + deviceName, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 						continue;
 					}
-					monitor.addNewMonitoredDevice(monitoredDeviceID, deviceName, monitoredDeviceType, monitoredDeviceVersion);
+					// The hosting mode can be set for all devices in the general namespace and overridden per device
+					String hostingMode = monitoringProperties.getProperty(deviceSpecificNamespace, KEY_HOSTING_MODE);
+					if (hostingMode == null) {
+						hostingMode = defaultHostingMode;
+					}
+					boolean hostInProcess = PROPERTY_HOSTING_MODE_IN_PROCESS.equals(hostingMode);
+					monitor.addNewMonitoredDevice(monitoredDeviceID, deviceName, monitoredDeviceType, monitoredDeviceVersion, hostInProcess);
 				}
 				updateServerDeviceID = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_SERVER_DEVICE_ID);
 				if (updateServerDeviceID == null) {
@@ -208,11 +333,26 @@ public class UpdaterService extends AbstractSimpleService {
 				e.printStackTrace();
 			}
 		} else { // This means that this service is running on a monitored device, not a PalComStarter. Reverse the ports.
-			socketListener = new SocketListenerThread(this, MONITORED_DEVICE_SOCKET_PORT);
-			socketSender = new SocketSender(this, PALCOMSTARTER_SOCKET_PORT);			
+			socketDirectory = System.getProperty(UpdateProtocolEndpoint.SOCKET_DIRECTORY_PROPERTY);
+			if (socketDirectory != null && !UpdateProtocolEndpoint.isUnixDomainSupported()) {
+				log("Unix domain sockets are not supported here. Using TCP for the Update Protocol.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				socketDirectory = null;
+			}
+			UpdateProtocolEndpoint endpoint = UpdateProtocolEndpoint.forThisDevice(container.getDeviceID().getID());
+			hasOwnEndpoint = endpoint != null;
+			if (!hasOwnEndpoint) {
+				// Started by an older PalComStarter, which talks to all devices on the same endpoint
+				endpoint = UpdateProtocolEndpoint.forDevice(container.getDeviceID().getID(), socketDirectory);
+			}
+			socketListener = new SocketListenerThread(this, endpoint);
+			socketListener.setDefaultPeer(PALCOMSTARTER_DEVICE_TYPE);
+			socketSender = new SocketSender(this, socketListener, UpdateProtocolEndpoint.forPalComStarter(socketDirectory), PALCOMSTARTER_DEVICE_TYPE);
+			heartbeatSender = new HeartbeatSender(socketSender);
 		}
 		
-		commandBuffer = new LinkedBlockingQueue<Command>();
+		commandBuffer = new MessageBus<Command>(this, "CommandBuffer", COMMAND_BUFFER_CAPACITY, MessageBus.OverflowPolicy.REJECT_NEWEST);
+		// An abort that is thrown away would leave the update running
+		commandBuffer.neverDrop(COMMAND_IN_ABORT_UPDATE);
 
 		CommandServiceProtocol sp = getProtocolHandler();
 
@@ -254,6 +394,14 @@ public class UpdaterService extends AbstractSimpleService {
 			
 			Command initiateStageTwoCmdOut = new Command(COMMAND_OUT_INITIATE_STAGE_TWO, "Initiates updating stage two.", Command.DIRECTION_OUT);
 			sp.addCommand(initiateStageTwoCmdOut);
+			
+			Command hotPatchCmdOut = new Command(COMMAND_OUT_HOT_PATCH, "Hot patch a monitored device with a PATCH update.", Command.DIRECTION_OUT);
+			hotPatchCmdOut.addParam(PARAM_JAR_PATH, "text/plain");
+			sp.addCommand(hotPatchCmdOut);
+			
+			Command probeCmdOut = new Command(COMMAND_OUT_PROBE, "Checks that a monitored device still handles commands.", Command.DIRECTION_OUT);
+			probeCmdOut.addParam(PARAM_PROBE_ID, "text/plain");
+			sp.addCommand(probeCmdOut);
 
 			Command disableMonitoringCmd = new Command(COMMAND_IN_DISABLE_MONITORING, "Disable monitoring of devices.", Command.DIRECTION_IN);
 
@@ -274,8 +422,17 @@ public class UpdaterService extends AbstractSimpleService {
 			Command restartSingleDeviceCmd = new Command(COMMAND_IN_RESTART_DEVICE_BY_INDEX, "Restart a single device by identified by index.", Command.DIRECTION_IN);
 			restartSingleDeviceCmd.addParam(PARAM_MONITORED_DEVICE_INDEX, "text/plain");
 			
+			Command releaseSingleDeviceCmd = new Command(COMMAND_IN_RELEASE_DEVICE_BY_INDEX, "Release a single device identified by index from crash loop quarantine and restart backoff.", Command.DIRECTION_IN);
+			releaseSingleDeviceCmd.addParam(PARAM_MONITORED_DEVICE_INDEX, "text/plain");
+			
 			Command resetUpdateAbortedCounterCmd = new Command(COMMAND_IN_RESET_UPDATE_ABORTED_COUNTER, "Resets the update aborted counter, so that we can try to update again.", Command.DIRECTION_IN);
 			
+			Command reportMemoryUsageCmd = new Command(COMMAND_IN_REPORT_MEMORY_USAGE, "Reports resident memory of PalComStarter and its monitored devices.", Command.DIRECTION_IN);
+			
+			Command memoryUsageReplyCmd = new Command(COMMAND_OUT_MEMORY_USAGE, "Reply with memory usage.", Command.DIRECTION_OUT);
+			memoryUsageReplyCmd.addParam(PARAM_MEMORY_USAGE, "text/plain");
+			sp.addCommand(memoryUsageReplyCmd);
+			
 			Group managementCmdGroup = new Group("managementGroup", "Manual management commands.");
 			managementCmdGroup.addCommand(enableMonitoringCmd);
 			managementCmdGroup.addCommand(disableMonitoringCmd);
@@ -284,18 +441,30 @@ public class UpdaterService extends AbstractSimpleService {
 			managementCmdGroup.addCommand(killSingleDeviceCmd);
 			managementCmdGroup.addCommand(startSingleDeviceCmd);
 			managementCmdGroup.addCommand(restartSingleDeviceCmd);
+			managementCmdGroup.addCommand(releaseSingleDeviceCmd);
 			managementCmdGroup.addCommand(resetUpdateAbortedCounterCmd);
+			managementCmdGroup.addCommand(reportMemoryUsageCmd);
 			sp.addGroup(managementCmdGroup);
 			
 			automaticCmdGroup.addCommand(updateCmd);
 			automaticCmdGroup.addCommand(updateDataCmd);
 			
-			Command benchmarkEndCmd = new Command(COMMAND_OUT_BENCHMARK_END, "benchmark end", Command.DIRECTION_OUT);
+			Command benchmarkEndCmd = new Command(COMMAND_OUT_BENCHMARK_END, "Reports how an update ended. Also ends the update benchmark.", Command.DIRECTION_OUT);
+			benchmarkEndCmd.addParam(PARAM_REPORTER, "text/plain");
+			benchmarkEndCmd.addParam(PARAM_DEVICE_TYPE, "text/plain");
+			benchmarkEndCmd.addParam(PARAM_VERSION, "text/plain");
+			benchmarkEndCmd.addParam(PARAM_UPDATE_OUTCOME, "text/plain");
 			sp.addCommand(benchmarkEndCmd);
 		} else {
 			// Monitored device specific commands
 			Command initiateStageTwoCmdIn = new Command(COMMAND_IN_INITIATE_STAGE_TWO, "Initiates updating stage two.", Command.DIRECTION_IN);
 			automaticCmdGroup.addCommand(initiateStageTwoCmdIn);
+			Command hotPatchCmdIn = new Command(COMMAND_IN_HOT_PATCH, "Redefine changed classes from the given jar.", Command.DIRECTION_IN);
+			hotPatchCmdIn.addParam(PARAM_JAR_PATH, "text/plain");
+			automaticCmdGroup.addCommand(hotPatchCmdIn);
+			Command probeCmdIn = new Command(COMMAND_IN_PROBE, "Answered in the next heartbeat, to show that commands are handled.", Command.DIRECTION_IN);
+			probeCmdIn.addParam(PARAM_PROBE_ID, "text/plain");
+			automaticCmdGroup.addCommand(probeCmdIn);
 		}
 		automaticCmdGroup.addCommand(abortUpdateCmd);
 		automaticCmdGroup.addCommand(killInCmd);
@@ -314,17 +483,243 @@ public class UpdaterService extends AbstractSimpleService {
 		}
 	}
 	
+	/**
+	 * @return the name we say hello with on Update Protocol channels
+	 */
+	String getUpdateProtocolName() {
+		if (isMonitor)
+			return PALCOMSTARTER_DEVICE_TYPE;
+		return container.getDeviceID().getID();
+	}
+
+	/**
+	 * Reads a setting from the general namespace of monitoring.properties.
+	 * @return the setting, or defaultValue if it is not set
+	 */
+	String getGeneralProperty(String key, String defaultValue) {
+		String value = monitoringProperties == null ? null : monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, key);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Reads a number from the general namespace of monitoring.properties.
+	 * @return the number, or defaultValue if it is not set or not a number
+	 */
+	long getGeneralLongProperty(String key, long defaultValue) {
+		if (monitoringProperties == null)
+			return defaultValue;
+		String value = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			log("Invalid number in configuration: " + NAMESPACE_UPDATERSERVICE_GENERAL + "@" + key + "=" + value + ". Using " + defaultValue + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * @return the learned durations of starting and updating devices. Saved in monitoring.properties if it
+	 * is open the first time this is called.
+	 */
+	synchronized DurationEstimator getDurationEstimator() {
+		if (durationEstimator == null)
+			durationEstimator = new DurationEstimator(this, monitoringProperties);
+		return durationEstimator;
+	}
+	
+	/**
+	 * @return the current, previous and known-good versions of the device types, and their jars
+	 */
+	synchronized VersionLedger getVersionLedger() {
+		if (versionLedger == null)
+			versionLedger = new VersionLedger(this);
+		return versionLedger;
+	}
+	
+	/**
+	 * @return the scheduler that decides when updates may restart devices. Shared by all update pipelines.
+	 */
+	synchronized UpdateScheduler getUpdateScheduler() {
+		if (updateScheduler == null)
+			updateScheduler = new UpdateScheduler(this);
+		return updateScheduler;
+	}
+	
 	void stopDevice() {
 		log("Stopping device.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
 		stopUpdaterService();
+		if (InProcessDeviceHost.isHostedInProcess()) {
+			// Exiting would take down PalComStarter and all other devices in its JVM. Let the host unload us instead.
+			log("Hosted in-process. Interrupting the device's threads instead of exiting.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			Thread.currentThread().getThreadGroup().interrupt();
+			return;
+		}
 		System.exit(0);
 	}
 	
+	/**
+	 * @return true if PalComStarter runs under a {@link Supervisor}, so that it can be updated by a handover
+	 */
+	boolean isSupervised() {
+		return supervisorState != null;
+	}
+	
+	/**
+	 * Asks the supervisor to start the new PalComStarter on trial once we exit with {@link Supervisor#EXIT_HANDOVER}.
+	 * @return false if the supervisor could not be told
+	 */
+	boolean requestSupervisorHandover(String newCommand, String newVersion) {
+		try {
+			Properties state = Supervisor.loadState(supervisorState);
+			state.setProperty(Supervisor.KEY_STATE, Supervisor.STATE_HANDOVER);
+			state.setProperty(Supervisor.KEY_NEW_COMMAND, newCommand);
+			state.setProperty(Supervisor.KEY_NEW_VERSION, newVersion);
+			Supervisor.saveState(supervisorState, state);
+			return true;
+		} catch (IOException e) {
+			log("Could not write the supervisor state " + supervisorState + ": " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+	}
+	
+	/**
+	 * Exits so that the supervisor starts the new PalComStarter. Monitored devices in their own JVMs keep running,
+	 * and are adopted by the new PalComStarter.
+	 */
+	void exitForHandover() {
+		log("Exiting. The supervisor starts the new PalComStarter.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		stopUpdaterService();
+		System.exit(Supervisor.EXIT_HANDOVER);
+	}
+	
+	/**
+	 * If we are a new PalComStarter on trial, checks that we can reach the update server and commits the handover.
+	 * If the supervisor has rolled back a handover to a new PalComStarter, records that the update was aborted.
+	 * @return false if we are on trial and must not commit
+	 */
+	private boolean finishSupervisorHandover() {
+		Properties state;
+		try {
+			state = Supervisor.loadState(supervisorState);
+		} catch (IOException e) {
+			log("Could not read the supervisor state " + supervisorState + ": " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return true;
+		}
+		String s = state.getProperty(Supervisor.KEY_STATE);
+		if (Supervisor.STATE_ROLLED_BACK.equals(s)) {
+			log("The supervisor rolled back the update of PalComStarter.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			String failedVersion = state.getProperty(Supervisor.KEY_NEW_VERSION);
+			if (failedVersion != null)
+				reportUpdateOutcomeInBackground(PALCOMSTARTER_DEVICE_TYPE, failedVersion, UPDATE_OUTCOME_FAILURE);
+			String tmp = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_ABORTED);
+			int nbrOfTimesAborted = tmp == null ? 1 : Integer.valueOf(tmp) + 1;
+			monitoringProperties.setProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_ABORTED, Integer.toString(nbrOfTimesAborted));
+			state.setProperty(Supervisor.KEY_STATE, Supervisor.STATE_RUNNING);
+			state.remove(Supervisor.KEY_NEW_COMMAND);
+			state.remove(Supervisor.KEY_NEW_VERSION);
+		} else if (Supervisor.STATE_TRIAL.equals(s)) {
+			String newVersion = state.getProperty(Supervisor.KEY_NEW_VERSION);
+			log("On trial after a handover from the supervisor. Checking the update server.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			if (!checkUpdateServer(newVersion))
+				return false;
+			monitoringProperties.removeProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_ABORTED);
+			getVersionLedger().recordCurrent(PALCOMSTARTER_DEVICE_TYPE, newVersion);
+			getVersionLedger().pruneInBackground(PALCOMSTARTER_DEVICE_TYPE, Collections.<String>emptySet());
+			state.setProperty(Supervisor.KEY_STATE, Supervisor.STATE_COMMITTED);
+			log("Updated PalComStarter to version " + newVersion + ". Committing the handover.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+		} else {
+			return true;
+		}
+		try {
+			Supervisor.saveState(supervisorState, state);
+		} catch (IOException e) {
+			log("Could not write the supervisor state " + supervisorState + ": " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return !Supervisor.STATE_COMMITTED.equals(state.getProperty(Supervisor.KEY_STATE));
+		}
+		if (Supervisor.STATE_COMMITTED.equals(state.getProperty(Supervisor.KEY_STATE)))
+			reportUpdateOutcomeInBackground(PALCOMSTARTER_DEVICE_TYPE, state.getProperty(Supervisor.KEY_NEW_VERSION), UPDATE_OUTCOME_SUCCESS);
+		return true;
+	}
+	
+	/**
+	 * Same check of the PalCom connection to the update server as in update stage three, but bounded.
+	 */
+	private boolean checkUpdateServer(String version) {
+		if (updateServerDeviceID == null) {
+			log("Could not find UpdateServer's deviceID in monitoring.properties: " + NAMESPACE_UPDATERSERVICE_GENERAL + "@" + KEY_UPDATE_SERVER_DEVICE_ID, Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+		long startMillis = System.currentTimeMillis();
+		int seconds = getDurationEstimator().timeoutSeconds(DurationEstimator.Kind.UPDATE_SERVER_CHECK, PALCOMSTARTER_DEVICE_TYPE, version, HANDOVER_UPDATE_SERVER_CHECK_SECONDS);
+		Writable writableConnToUpdateServer = getWritableConnectionToService(new DeviceID(updateServerDeviceID), UpdateDistributionService.SERVICE_NAME, seconds);
+		if (writableConnToUpdateServer == null) {
+			log("Could not connect to the update server.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+		clearCommandBuffer(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM);
+		sendTo(writableConnToUpdateServer, getProtocolHandler().findCommand(COMMAND_OUT_CHECK_UPDATE_SERVER));
+		Command reply = getCommandFromBuffer(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM, seconds);
+		if (reply == null || !reply.getID().equals(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM)) {
+			log("No confirmation from the update server.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+			return false;
+		}
+		getDurationEstimator().record(DurationEstimator.Kind.UPDATE_SERVER_CHECK, PALCOMSTARTER_DEVICE_TYPE, version, System.currentTimeMillis() - startMillis);
+		return true;
+	}
+	
+	/**
+	 * Tells the update server how an update of the device types to the versions ended, so that a rollout can
+	 * decide whether to go on with the next hosts.
+	 * Connecting may take a while, so it is not done holding the lock of the service.
+	 * @param conn connection to the update server, or null to connect to it
+	 */
+	void reportUpdateOutcome(Writable conn, String[] deviceTypes, String[] versions, String outcome) {
+		if (deviceTypes.length == 0)
+			return;
+		if (conn == null) {
+			if (updateServerDeviceID == null)
+				return;
+			conn = getWritableConnectionToService(new DeviceID(updateServerDeviceID), UpdateDistributionService.SERVICE_NAME, REPORT_CONNECTION_SECONDS);
+			if (conn == null) {
+				log("Could not connect to the update server to report the update outcome (" + outcome + ").", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				return;
+			}
+		}
+		synchronized (reportLock) {
+			Command report = getCommand(COMMAND_OUT_BENCHMARK_END);
+			report.findParam(PARAM_REPORTER).setData(container.getDeviceID().getID().getBytes());
+			report.findParam(PARAM_DEVICE_TYPE).setData(String.join(PARAM_VALUE_SEPARATOR, deviceTypes).getBytes());
+			report.findParam(PARAM_VERSION).setData(String.join(PARAM_VALUE_SEPARATOR, versions).getBytes());
+			report.findParam(PARAM_UPDATE_OUTCOME).setData(outcome.getBytes());
+			sendPalComMessage(conn, report);
+		}
+		log("Reported update outcome to the update server: " + outcome, Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+	}
+
+	/**
+	 * Same as {@link #reportUpdateOutcome(Writable, String[], String[], String)}, without waiting for it.
+	 */
+	void reportUpdateOutcomeInBackground(final String deviceType, final String version, final String outcome) {
+		Thread t = new Thread("Update outcome report") {
+			@Override
+			public void run() {
+				reportUpdateOutcome(null, new String[] {deviceType}, new String[] {version}, outcome);
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
 	private void stopUpdaterService() {
 		stop();
 	}
 	
 	private void stopHelperThreads() {
+		if (heartbeatSender != null) {
+			heartbeatSender.stop();
+		}
 		socketListener.stopThread();
 		try {
 			socketListener.join();
@@ -372,11 +767,27 @@ public class UpdaterService extends AbstractSimpleService {
 			if (command.getID().equals(COMMAND_IN_KILL)) {
 				stopDevice();
 			}
+			if (command.getID().equals(COMMAND_IN_PROBE)) {
+				// Handled right here, on the thread that dispatches PalCom commands to the device. If that thread
+				// is stuck, the probe is never answered, even though the heartbeats go on.
+				if (heartbeatSender != null) {
+					try {
+						heartbeatSender.probeHandled(Long.parseLong(toUTF8String(command.findParam(PARAM_PROBE_ID).getData())));
+					} catch (NumberFormatException e) {
+						log("Malformed probe: " + e.getMessage(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+					}
+				}
+				return;
+			}
 			if (command.getID().equals(COMMAND_IN_ABORT_UPDATE)) {
 				addCommandToBuffer(command);
+				// Pipelines wait for update data per device type
+				for (String deviceType: getUpdatingDeviceTypes()) {
+					commandBuffer.post(COMMAND_IN_ABORT_UPDATE, deviceType, command);
+				}
 				return;
 			}
-			switch (updateState) {
+			switch (updateState.get()) {
 			case STARTUP:
 				if (command.getID().equals(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM)) {
 					addCommandToBuffer(command);
@@ -385,8 +796,6 @@ public class UpdaterService extends AbstractSimpleService {
 			case NONE:
 				if (isMonitor) {
 					if (command.getID().equals(COMMAND_IN_UPDATE_DEVICE_TYPES)) {
-						updateState = UpdateState.UPDATING_INITIAL;
-						// We are now in the updating state. Commands that could interrupt the procedure are ignored
 						log("Got new update from UpdateServer", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 						String deviceTypes = toUTF8String(command.findParam(PARAM_DEVICE_TYPE).getData());
 						String newVersions = toUTF8String(command.findParam(PARAM_VERSION).getData());
@@ -402,9 +811,20 @@ public class UpdaterService extends AbstractSimpleService {
 							} else if (splitNewVersions.length < 1) {
 								log("There are no versions. Will not update.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
 							} else {
-								new UpdateStageOneThread(this, monitor, socketListener, socketSender, (Writable) conn, splitDeviceTypes, splitNewVersions).start();														
+								UpdatePipeline pipeline = startPipeline(splitDeviceTypes);
+								if (pipeline != null)
+									new UpdateStageOneThread(this, monitor, socketListener, pipeline, (Writable) conn, splitDeviceTypes, splitNewVersions).start();
 							}
 						}
+					} else if (command.getID().equals(COMMAND_IN_UPDATE_DATA)) {
+						// Goes to the pipeline that asked for it, if it still waits for it
+						String deviceType = toUTF8String(command.findParam(PARAM_DEVICE_TYPE).getData());
+						UpdatePipeline pipeline = getPipeline(deviceType);
+						if (pipeline != null && pipeline.getState() == UpdatePipeline.State.WAITING_FOR_JAR) {
+							commandBuffer.post(COMMAND_IN_UPDATE_DATA, deviceType, command);
+						} else {
+							log("Got update data for " + deviceType + " that no update waits for. Ignoring it.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+						}
 					} else if (command.getID().equals(COMMAND_IN_STOP_MONITORED_DEVICES)) {
 						monitor.killAllMonitoredDevices(true);
 					} else if (command.getID().equals(COMMAND_IN_DISABLE_MONITORING)) {
@@ -425,28 +845,48 @@ public class UpdaterService extends AbstractSimpleService {
 					} else if (command.getID().equals(COMMAND_IN_RESTART_DEVICE_BY_INDEX)) {
 						int index = Integer.valueOf(toUTF8String(command.findParam(PARAM_MONITORED_DEVICE_INDEX).getData()));
 						monitor.restartMonitoredDeviceByIndex(index);
+					} else if (command.getID().equals(COMMAND_IN_RELEASE_DEVICE_BY_INDEX)) {
+						int index = Integer.valueOf(toUTF8String(command.findParam(PARAM_MONITORED_DEVICE_INDEX).getData()));
+						monitor.releaseMonitoredDeviceByIndex(index);
 					} else if (command.getID().equals(COMMAND_IN_RESET_UPDATE_ABORTED_COUNTER)) {
-						updateAborted = 0;
+						updateAborted.set(0);
 						monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_ABORTED);
 						log("\"Update Aborted\"-counter reset.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+					} else if (command.getID().equals(COMMAND_IN_REPORT_MEMORY_USAGE)) {
+						Command reply = getProtocolHandler().findCommand(COMMAND_OUT_MEMORY_USAGE);
+						reply.findParam(PARAM_MEMORY_USAGE).setData(monitor.getMemoryUsageReport().getBytes());
+						sendTo((Writable) conn, reply);
 					} else {
 						log("Received unknown command: " + command.getID(), Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 					}
 				} else { // is not monitor
 					if (command.getID().equals(COMMAND_IN_INITIATE_STAGE_TWO)) {
-						updateState = UpdateState.UPDATING_STAGE_TWO;
+						if (!updateState.compareAndSet(UpdateState.NONE, UpdateState.UPDATING_STAGE_TWO)) {
+							log("Already busy. Will not initiate update stage two.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+							break;
+						}
 						socketListener.reopenSocket();
 						new UpdateStageTwoThread(this, socketListener, socketSender).start();
+					} else if (command.getID().equals(COMMAND_IN_HOT_PATCH)) {
+						final String pathToNewJar = toUTF8String(command.findParam(PARAM_JAR_PATH).getData());
+						new Thread() {
+							@Override
+							public void run() {
+								boolean patched = false;
+								try {
+									patched = new HotPatcher(getUpdaterService()).apply(pathToNewJar);
+								} catch (RuntimeException e) {
+									log("Hot patching failed: " + e, Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+								}
+								// Always reply, so that PalComStarter falls back to a restart at once
+								socketSender.sendMsg(patched ? UPDATE_PROTOCOL_HOT_PATCH_DONE : UPDATE_PROTOCOL_HOT_PATCH_FAILED, HOT_PATCH_REPLY_SECONDS);
+							}
+						}.start();
 					} else {
 						log("Received unknown command: " + command.getID(), Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 					}				
 				}
 				break;
-			case UPDATING_WAITING_FOR_JAR:
-				if (command.getID().equals(COMMAND_IN_UPDATE_DATA)) {
-					addCommandToBuffer(command);
-				}
-				break;
 			case UPDATING_STAGE_TWO:
 				if (command.getID().equals(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM)) {
 					addCommandToBuffer(command);
@@ -461,54 +901,58 @@ public class UpdaterService extends AbstractSimpleService {
 				// dont get any message
 				break;
 			default:
-				Logger.log("We got a command (" + command.getID() + ") in an unknown state (" + updateState + ").", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+				Logger.log("We got a command (" + command.getID() + ") in an unknown state (" + updateState.get() + ").", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
 				break;
 			}
 		}
 	}
 
 	private void addCommandToBuffer(Command command) {
-		try {
-			commandBuffer.put(command);
-		} catch (InterruptedException e) {
-			Logger.log("Could not add command (" + command.getID() + ") to commandBuffer.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-		}
+		commandBuffer.post(command.getID(), null, command);
+	}
+
+	/**
+	 * Throws away buffered commands with the given ID. Call before sending a request, so that a late reply
+	 * to an earlier request is not taken for the reply to this one.
+	 */
+	void clearCommandBuffer(String cmdID) {
+		commandBuffer.clear(cmdID, null);
+	}
+
+	/**
+	 * Same as {@link #clearCommandBuffer(String)}, for commands that are buffered per device type.
+	 */
+	void clearCommandBuffer(String cmdID, String deviceType) {
+		commandBuffer.clear(cmdID, deviceType);
 	}
 
 	Command getCommandFromBuffer(String cmdID) {
-		Command cmd;
-		while(true) {
-			try {
-				cmd = commandBuffer.take();
-				if (cmd.getID().equals(cmdID)) {
-					return cmd;
-				}
-			} catch (InterruptedException e) {
-				Logger.log("Could not take command (" + cmdID + ") from commandBuffer.", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
-			}
-		}
+		return commandBuffer.take(cmdID, null, MessageBus.WAIT_FOREVER);
 	}
 	
+	/**
+	 * Waits for a command with the given ID. A buffered {@link #COMMAND_IN_ABORT_UPDATE} also ends the wait.
+	 * @return the command, the abort command, or null on timeout
+	 */
 	Command getCommandFromBuffer(String cmdID, int maxWaitInSeconds) {
-		Command cmd = null;
-		long stopTimeMillis = System.currentTimeMillis() + maxWaitInSeconds*1000;
-		while(true) {
-			try {
-				long currentTimeMillis = System.currentTimeMillis();
-				if (stopTimeMillis < currentTimeMillis) {
-					return cmd;
-				}
-				cmd = commandBuffer.poll(stopTimeMillis - currentTimeMillis, TimeUnit.MILLISECONDS);
-				if (cmd == null) {
-					return cmd;
-				}
-				if (cmd.getID().equals(cmdID)) {
-					return cmd;
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		return getCommandFromBuffer(cmdID, null, maxWaitInSeconds);
+	}
+
+	/**
+	 * Same as {@link #getCommandFromBuffer(String, int)}, for commands that are buffered per device type.
+	 */
+	Command getCommandFromBuffer(String cmdID, String deviceType, int maxWaitInSeconds) {
+		Map.Entry<String, Command> cmd = commandBuffer.takeAny(new String[] {cmdID, COMMAND_IN_ABORT_UPDATE}, deviceType, maxWaitInSeconds);
+		return cmd == null ? null : cmd.getValue();
+	}
+
+	/**
+	 * Waits for a {@link #COMMAND_IN_ABORT_UPDATE} for any of the device types.
+	 * @return the abort command, or null on timeout
+	 */
+	Command getAbortFromBuffer(Collection<String> deviceTypes, int maxWaitInSeconds) {
+		Map.Entry<String, Command> cmd = commandBuffer.takeAnyCorrelation(COMMAND_IN_ABORT_UPDATE, deviceTypes.toArray(new String[deviceTypes.size()]), maxWaitInSeconds);
+		return cmd == null ? null : cmd.getValue();
 	}
 
 	boolean saveJar(byte[] content, String jarPath) {
@@ -541,18 +985,25 @@ public class UpdaterService extends AbstractSimpleService {
 		@Override
 		public void run(){
 			log("MonitoredDeviceStart Thread started. Performing startup check...", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
-			updateState = UpdateState.STARTUP;
+			updateState.set(UpdateState.STARTUP);
+			String[] startupMsgs = {UPDATE_PROTOCOL_CHECK_SOCKET, UPDATE_PROTOCOL_CHECK_UPDATE_SERVER, UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK, UPDATE_PROTOCOL_STAGE_TWO};
 			while (true) {
-				String msg = socketListener.getMsg();
+				String msg = socketListener.waitForAnyMsg(startupMsgs, SocketListenerThread.WAIT_FOREVER);
+				if (msg == null) {
+					// Interrupted, which is how a device hosted in-process is stopped
+					log("MonitoredDeviceStart Thread interrupted.", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+					return;
+				}
 				if (msg.equals(UPDATE_PROTOCOL_CHECK_SOCKET)) {
 					socketSender.sendMsg(UPDATE_PROTOCOL_CHECK_SOCKET_CONFIRM, SocketSender.TRY_FOREVER);
 					setAsFullyOperational();
 				} else if (msg.equals(UPDATE_PROTOCOL_CHECK_UPDATE_SERVER)) {
 					// Get UpdateServer's deviceID in order to connect to it
-					String updateServerDeviceID = socketListener.getMsg();
+					String updateServerDeviceID = socketListener.getData();
 					Writable writableConnToUpdateServer = getWritableConnectionToService(new DeviceID(updateServerDeviceID), UpdateDistributionService.SERVICE_NAME, -1);
 
 					// request response from update server in order to test Palcom tunnel/communication
+					clearCommandBuffer(COMMAND_IN_CHECK_UPDATE_SERVER_CONFIRM);
 					Command confirmRequestCmd = getProtocolHandler().findCommand(COMMAND_OUT_CHECK_UPDATE_SERVER);
 					log("Sending confirmation request to update server", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 					sendTo(writableConnToUpdateServer, confirmRequestCmd);
@@ -564,15 +1015,19 @@ public class UpdaterService extends AbstractSimpleService {
 					log("Got response from update server!", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
 					socketSender.sendMsg(UPDATE_PROTOCOL_CHECK_UPDATE_SERVER_CONFIRM, SocketSender.TRY_FOREVER);
 				} else if (msg.equals(UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK)) {
-					socketListener.closeSocket();
+					if (!hasOwnEndpoint) {
+						socketListener.closeSocket();
+					}
 					// Send ACK when socketListeners socket is closed. Otherwise it will block the
 					// port for next monitored device.
 					socketSender.sendMsg(UPDATE_PROTOCOL_FINISH_DEVICE_STARTUP_CHECK_ACK, SocketSender.TRY_FOREVER);
+					// The channel is kept open for the heartbeats from now on
+					heartbeatSender.start();
 					log("MonitoredDeviceStart Thread startup check finished.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-					updateState = UpdateState.NONE;
+					updateState.set(UpdateState.NONE);
 					break;
 				} else if (msg.equals(UPDATE_PROTOCOL_STAGE_TWO)) {
-					updateState = UpdateState.UPDATING_STAGE_TWO;
+					updateState.set(UpdateState.UPDATING_STAGE_TWO);
 					new UpdateStageTwoThread(getUpdaterService(), socketListener, socketSender).start();
 					break;
 				}
@@ -596,7 +1051,7 @@ public class UpdaterService extends AbstractSimpleService {
 			setAsFullyOperational();
 			if (continueUpdateStageThree) {
 				// We are in the middle of an update. Let's carry on with it!
-				updateState = UpdateState.UPDATING_STAGE_THREE;
+				updateState.set(UpdateState.UPDATING_STAGE_THREE);
 				UpdateStageThreeThread updateStageThreeThread = new UpdateStageThreeThread(getUpdaterService(), socketListener, socketSender);
 				updateStageThreeThread.start();
 				while (true) {
@@ -608,14 +1063,20 @@ public class UpdaterService extends AbstractSimpleService {
 					}
 				}
 			}
-			updateState = UpdateState.NONE;
+			if (isSupervised() && !finishSupervisorHandover()) {
+				// Before the monitor is started, so the devices are left for the previous version
+				log("Could not commit the handover. Exiting so that the supervisor rolls back.", Logger.CMP_SERVICE, Logger.LEVEL_ERROR);
+				stopDevice();
+				return;
+			}
+			updateState.set(UpdateState.NONE);
 			updateServerConnectionListener.addUpdateServerListener();
 			// Startup update check
 			String tmp = monitoringProperties.getProperty(NAMESPACE_UPDATERSERVICE_GENERAL, KEY_UPDATE_ABORTED);
 			if (tmp != null) { // then update was aborted last time so we need to remember it
-				updateAborted = Integer.valueOf(tmp);
+				updateAborted.set(Integer.valueOf(tmp));
 				log("Update was just aborted (total " + updateAborted + " times)", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
-				if (updateAborted > UPDATE_ABORTED_MANY_TIMES) {
+				if (updateAborted.get() > UPDATE_ABORTED_MANY_TIMES) {
 					updateAbortedDelay = System.currentTimeMillis() + UPDATE_ABORTED_MANY_TIMES_DELAY_SECONDS*1000;
 				} else {
 					updateAbortedDelay = System.currentTimeMillis() + UPDATE_ABORTED_DELAY_SECONDS*1000;					
@@ -764,8 +1225,78 @@ public class UpdaterService extends AbstractSimpleService {
 		}
 	}
 
-	synchronized void setUpdateState(UpdateState state) {
-		updateState = state;
+	void setUpdateState(UpdateState state) {
+		updateState.set(state);
+	}
+	
+	/**
+	 * Starts a pipeline for the device types that are not being updated already. The others are left out.
+	 * @return the pipeline, or null if all of the device types are being updated or a pipeline runs alone
+	 */
+	synchronized UpdatePipeline startPipeline(String[] deviceTypes) {
+		if (exclusivePipeline != null) {
+			log("Update pipeline " + exclusivePipeline + " runs alone. Will not update now.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			return null;
+		}
+		LinkedHashSet<String> free = new LinkedHashSet<String>();
+		for (String deviceType: deviceTypes) {
+			UpdatePipeline other = pipelinesByDeviceType.get(deviceType);
+			if (other == null) {
+				free.add(deviceType);
+			} else {
+				log(deviceType + " is already being updated by update pipeline " + other + ".", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			}
+		}
+		if (free.isEmpty())
+			return null;
+		UpdatePipeline pipeline = new UpdatePipeline(this, nextPipelineID++, free);
+		for (String deviceType: free) {
+			pipelinesByDeviceType.put(deviceType, pipeline);
+		}
+		log("Started update pipeline " + pipeline + ".", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+		return pipeline;
+	}
+	
+	/**
+	 * Waits for all other pipelines to finish. No new pipelines are started until this one has ended.
+	 * @return false if another pipeline already runs alone, or waits to
+	 */
+	synchronized boolean runAlone(UpdatePipeline pipeline) {
+		if (exclusivePipeline != null && exclusivePipeline != pipeline)
+			return false;
+		exclusivePipeline = pipeline;
+		while (true) {
+			boolean alone = true;
+			for (UpdatePipeline p: pipelinesByDeviceType.values()) {
+				if (p != pipeline)
+					alone = false;
+			}
+			if (alone)
+				return true;
+			log("Update pipeline " + pipeline + " waits for the other updates to finish.", Logger.CMP_SERVICE, Logger.LEVEL_INFO);
+			try {
+				wait();
+			} catch (InterruptedException e) {/* check again */}
+		}
+	}
+	
+	synchronized void endPipeline(UpdatePipeline pipeline) {
+		for (String deviceType: pipeline.getDeviceTypes()) {
+			if (pipelinesByDeviceType.get(deviceType) == pipeline)
+				pipelinesByDeviceType.remove(deviceType);
+			commandBuffer.clearCorrelation(deviceType);
+		}
+		if (exclusivePipeline == pipeline)
+			exclusivePipeline = null;
+		notifyAll();
+	}
+	
+	synchronized UpdatePipeline getPipeline(String deviceType) {
+		return pipelinesByDeviceType.get(deviceType);
+	}
+	
+	private synchronized Collection<String> getUpdatingDeviceTypes() {
+		return new LinkedHashSet<String>(pipelinesByDeviceType.keySet());
 	}
 	boolean sendPalComMessage(Writable conn, Command cmd) {
 		int status = super.sendTo(conn, cmd);
@@ -0,0 +1,244 @@
+package se.lth.cs.palcom.updaterservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import se.lth.cs.palcom.logging.Logger;
+import se.lth.cs.palcom.util.configuration.DeviceList;
+
+/**
+ * Keeps track of the versions of every device type, and of their jars. Besides the current version it remembers
+ * the version that the current one replaced, and the last version that has run stably (known-good). Their jars are
+ * always kept, so that a failed update can be rolled back by starting the previous jar right away, without
+ * downloading anything. Other jars are pruned in the background, except for those of the few versions that were
+ * current most recently. Jars of versions that never became current, such as downloads of aborted updates, are
+ * always pruned. The jar that PalComStarter was started from is kept as well, since the startup script (or the
+ * supervisor) starts it again, even if a version with the same code has been recorded as current since.
+ * <p>
+ * The versions are saved in monitoring.properties: the current version in deviceTypeVersion, the previous one in
+ * previousDeviceTypeVersion, the known-good one in knownGoodDeviceTypeVersion, and the versions that have been
+ * current in deviceTypeVersionHistory, newest first and separated by commas.
+ * @author splushii
+ *
+ */
+class VersionLedger {
+	private static final String JAR_SUFFIX = ".jar";
+	private static final int DEFAULT_RETAINED_OLD_JARS = 1;
+	private static final int MAX_HISTORY_LENGTH = 10;
+
+	private final UpdaterService us;
+	// Other old jars to keep, of the versions that were current most recently
+	private final int retainedOldJars;
+	private final ExecutorService pruner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Jar pruner");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	VersionLedger(UpdaterService us) {
+		this.us = us;
+		this.retainedOldJars = (int) us.getGeneralLongProperty(UpdaterService.KEY_RETAINED_OLD_JARS, DEFAULT_RETAINED_OLD_JARS);
+	}
+
+	synchronized String getCurrentVersion(String deviceType) {
+		return get(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, deviceType);
+	}
+
+	/**
+	 * @return the version that the current version replaced, or null if there is none to go back to
+	 */
+	synchronized String getPreviousVersion(String deviceType) {
+		return get(UpdaterService.NAMESPACE_UPDATERSERVICE_PREVIOUS_VERSION, deviceType);
+	}
+
+	/**
+	 * @return the last version of the device type that a device has run stably, or null if none has
+	 */
+	synchronized String getKnownGoodVersion(String deviceType) {
+		return get(UpdaterService.NAMESPACE_UPDATERSERVICE_KNOWN_GOOD_VERSION, deviceType);
+	}
+
+	/**
+	 * @return false if the version already was the known-good one
+	 */
+	synchronized boolean setKnownGoodVersion(String deviceType, String version) {
+		if (version == null || version.equals(getKnownGoodVersion(deviceType)))
+			return false;
+		set(UpdaterService.NAMESPACE_UPDATERSERVICE_KNOWN_GOOD_VERSION, deviceType, version);
+		return true;
+	}
+
+	/**
+	 * Makes the version current. The version it replaces becomes the previous one.
+	 */
+	synchronized void recordCurrent(String deviceType, String version) {
+		String current = getCurrentVersion(deviceType);
+		if (version.equals(current))
+			return;
+		if (current != null)
+			set(UpdaterService.NAMESPACE_UPDATERSERVICE_PREVIOUS_VERSION, deviceType, current);
+		set(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, deviceType, version);
+		List<String> history = getHistory(deviceType);
+		// Versions that were current before the history was kept
+		if (history.isEmpty() && current != null)
+			history.add(current);
+		history.remove(version);
+		history.add(0, version);
+		setHistory(deviceType, history);
+	}
+
+	/**
+	 * @return the versions that have been current, newest first
+	 */
+	synchronized List<String> getHistory(String deviceType) {
+		List<String> history = new ArrayList<String>();
+		String value = get(UpdaterService.NAMESPACE_UPDATERSERVICE_VERSION_HISTORY, deviceType);
+		if (value != null) {
+			for (String version: value.split(",")) {
+				if (!version.trim().isEmpty())
+					history.add(version.trim());
+			}
+		}
+		return history;
+	}
+
+	private void setHistory(String deviceType, List<String> history) {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < history.size() && i < MAX_HISTORY_LENGTH; i++) {
+			if (i > 0)
+				value.append(',');
+			value.append(history.get(i));
+		}
+		set(UpdaterService.NAMESPACE_UPDATERSERVICE_VERSION_HISTORY, deviceType, value.toString());
+	}
+
+	/**
+	 * Makes the previous version current again, if its jar is still there.
+	 * @return the version rolled back to, or null if there was none
+	 */
+	synchronized String rollBack(String deviceType) {
+		String previous = getPreviousVersion(deviceType);
+		if (previous == null || !new File(getJarPath(deviceType, previous)).isFile())
+			return null;
+		String current = getCurrentVersion(deviceType);
+		set(UpdaterService.NAMESPACE_UPDATERSERVICE_DEVICE_TYPE_VERSION, deviceType, previous);
+		// The version we rolled back from is no place to go back to
+		if (us.monitoringProperties != null)
+			us.monitoringProperties.removeProperty(UpdaterService.NAMESPACE_UPDATERSERVICE_PREVIOUS_VERSION, deviceType);
+		List<String> history = getHistory(deviceType);
+		history.remove(current);
+		history.remove(previous);
+		history.add(0, previous);
+		setHistory(deviceType, history);
+		return previous;
+	}
+
+	/**
+	 * @return where the jar of the version is, or null if the configuration folder of the type cannot be found
+	 */
+	static String getJarPath(String deviceType, String version) {
+		String pathToJar;
+		try {
+			pathToJar = DeviceList.getConfFolder(deviceType).getNativeURL().replace("file:", "");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return pathToJar + deviceType + "-" + version + JAR_SUFFIX;
+	}
+
+	/**
+	 * Deletes the jars of the device type that are not retained, and their class data sharing archives,
+	 * without waiting for it to be done.
+	 * @param inUse versions that devices run right now, which are kept too
+	 */
+	void pruneInBackground(final String deviceType, Collection<String> inUse) {
+		final Set<String> keep = new HashSet<String>(inUse);
+		synchronized (this) {
+			keep.add(getCurrentVersion(deviceType));
+			keep.add(getPreviousVersion(deviceType));
+			keep.add(getKnownGoodVersion(deviceType));
+			if (deviceType.equals(UpdaterService.PALCOMSTARTER_DEVICE_TYPE))
+				keep.add(getStartedVersion(deviceType));
+			// The most recently current of the others
+			int retained = 0;
+			for (String version: getHistory(deviceType)) {
+				if (retained >= retainedOldJars)
+					break;
+				if (keep.add(version))
+					retained++;
+			}
+		}
+		pruner.execute(new Runnable() {
+			@Override
+			public void run() {
+				prune(deviceType, keep);
+			}
+		});
+	}
+
+	/**
+	 * @return the version of the jar this JVM was started from, or null if it was not started from a jar of the type
+	 */
+	private static String getStartedVersion(String deviceType) {
+		String startedJar;
+		try {
+			startedJar = Paths.get(VersionLedger.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getFileName().toString();
+		} catch (URISyntaxException | NullPointerException | FileSystemNotFoundException | IllegalArgumentException | SecurityException e) {
+			return null;
+		}
+		Matcher m = jarNamePattern(deviceType).matcher(startedJar);
+		return m.matches() ? m.group(1) : null;
+	}
+
+	private static Pattern jarNamePattern(String deviceType) {
+		return Pattern.compile(Pattern.quote(deviceType) + "-(\\d+\\.\\d+\\.\\d+)" + Pattern.quote(JAR_SUFFIX));
+	}
+
+	private void prune(String deviceType, Set<String> keep) {
+		String anyJar = getJarPath(deviceType, "0.0.0");
+		if (anyJar == null)
+			return;
+		File folder = new File(anyJar).getParentFile();
+		File[] files = folder == null ? null : folder.listFiles();
+		if (files == null)
+			return;
+		Pattern jarName = jarNamePattern(deviceType);
+		for (File f: files) {
+			Matcher m = jarName.matcher(f.getName());
+			if (!m.matches() || keep.contains(m.group(1)))
+				continue;
+			if (f.delete()) {
+				new File(AppCdsArchive.getArchivePath(f.getPath())).delete();
+				us.log("Pruned old jar " + f.getPath() + ".", Logger.CMP_SERVICE, Logger.LEVEL_DEBUG);
+			} else {
+				us.log("Could not prune old jar " + f.getPath() + ".", Logger.CMP_SERVICE, Logger.LEVEL_WARNING);
+			}
+		}
+	}
+
+	private String get(String namespace, String deviceType) {
+		return us.monitoringProperties == null ? null : us.monitoringProperties.getProperty(namespace, deviceType);
+	}
+
+	private void set(String namespace, String deviceType, String version) {
+		if (us.monitoringProperties != null)
+			us.monitoringProperties.setProperty(namespace, deviceType, version);
+	}
+}
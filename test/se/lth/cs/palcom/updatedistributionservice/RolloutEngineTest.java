@@ -0,0 +1,221 @@
+package se.lth.cs.palcom.updatedistributionservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.lth.cs.palcom.communication.connection.Writable;
+import se.lth.cs.palcom.updaterservice.UpdaterService;
+
+/**
+ * Tests of how {@link RolloutEngine} gates the waves of a rollout on the reports of the clients. The bake time
+ * is short, so that a test only takes a moment.
+ * @author splushii
+ *
+ */
+public class RolloutEngineTest {
+	private static final long BAKE_TIME_MILLIS = 20;
+	// Long enough for several bakes
+	private static final long SETTLE_MILLIS = 10 * BAKE_TIME_MILLIS;
+	private static final long TIMEOUT_MILLIS = 5000;
+	private static final String[] TYPES = {"TheThing"};
+	private static final String[] NEW_VERSIONS = {"2.0.0"};
+	private static final String[] OLD_VERSIONS = {"1.0.0"};
+
+	private final Map<String, String> settings = new HashMap<String, String>();
+	private final List<Writable> announcedTo = new ArrayList<Writable>();
+	private final List<Writable> clients = new ArrayList<Writable>();
+	private RolloutEngine engine;
+
+	@Before
+	public void setUp() {
+		settings.put(RolloutEngine.KEY_CANARY_SIZE, "1");
+		settings.put(RolloutEngine.KEY_WAVE_SIZES, "100%");
+		settings.put(RolloutEngine.KEY_BAKE_TIME_MILLIS, Long.toString(BAKE_TIME_MILLIS));
+		settings.put(RolloutEngine.KEY_MIN_REPORTS, "1");
+		settings.put(RolloutEngine.KEY_MAX_FAILURE_PERCENT, "20");
+		engine = new RolloutEngine(new RolloutEngine.Announcer() {
+			@Override
+			public void announceTo(Writable client, String[] deviceTypes, String[] versions) {
+				synchronized (announcedTo) {
+					announcedTo.add(client);
+				}
+			}
+		}, null) {
+			@Override
+			String getProperty(String key, String defaultValue) {
+				String value = settings.get(key);
+				return value != null ? value : defaultValue;
+			}
+		};
+	}
+
+	private void addClients(int n) {
+		for (int i = 0; i < n; i++) {
+			Writable client = client("client" + clients.size());
+			clients.add(client);
+			engine.addClient(client);
+		}
+	}
+
+	/**
+	 * @return a client that is only equal to itself
+	 */
+	private static Writable client(final String name) {
+		return (Writable) Proxy.newProxyInstance(Writable.class.getClassLoader(), new Class<?>[] {Writable.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("equals"))
+					return proxy == args[0];
+				if (method.getName().equals("hashCode"))
+					return System.identityHashCode(proxy);
+				if (method.getName().equals("toString"))
+					return name;
+				return null;
+			}
+		});
+	}
+
+	private int announced() {
+		synchronized (announcedTo) {
+			return announcedTo.size();
+		}
+	}
+
+	private void awaitAnnounced(int n) throws InterruptedException {
+		long stopMillis = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (announced() < n && System.currentTimeMillis() < stopMillis) {
+			Thread.sleep(BAKE_TIME_MILLIS);
+		}
+		assertEquals(n, announced());
+	}
+
+	private void awaitState(RolloutEngine.State state) throws InterruptedException {
+		long stopMillis = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (engine.getState() != state && System.currentTimeMillis() < stopMillis) {
+			Thread.sleep(BAKE_TIME_MILLIS);
+		}
+		assertEquals(state, engine.getState());
+	}
+
+	private boolean report(String reporter, String outcome) {
+		return engine.report(reporter, TYPES, NEW_VERSIONS, outcome);
+	}
+
+	private void start() {
+		engine.start(TYPES, NEW_VERSIONS, OLD_VERSIONS);
+	}
+
+	@Test
+	public void announcesToCanaryFirst() {
+		addClients(4);
+		start();
+		assertEquals(1, announced());
+		Writable canary = announcedTo.get(0);
+		assertEquals("2.0.0", engine.getVersionFor(canary, TYPES[0], NEW_VERSIONS[0]));
+		for (Writable client: clients) {
+			if (client != canary)
+				assertEquals("1.0.0", engine.getVersionFor(client, TYPES[0], NEW_VERSIONS[0]));
+		}
+	}
+
+	@Test
+	public void waitsForCanaryToReportBeforeNextWave() throws InterruptedException {
+		addClients(4);
+		start();
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(1, announced());
+		assertTrue(report("canary", UpdaterService.UPDATE_OUTCOME_SUCCESS));
+		awaitAnnounced(4);
+		awaitState(RolloutEngine.State.DONE);
+	}
+
+	@Test
+	public void deferringCanaryIsNotCountedAsFailure() throws InterruptedException {
+		// Shorter than the clients may defer an update, so it is not used
+		settings.put(RolloutEngine.KEY_REPORT_TIMEOUT_MILLIS, "1");
+		addClients(4);
+		start();
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(RolloutEngine.State.RUNNING, engine.getState());
+		assertEquals(1, announced());
+	}
+
+	@Test
+	public void skippedCanaryIsReplaced() throws InterruptedException {
+		addClients(4);
+		start();
+		assertTrue(report("canary", UpdaterService.UPDATE_OUTCOME_SKIPPED));
+		awaitAnnounced(2);
+		Thread.sleep(SETTLE_MILLIS);
+		// The skip is no evidence, so the rest are not told until the replacement has reported
+		assertEquals(2, announced());
+		assertEquals(RolloutEngine.State.RUNNING, engine.getState());
+		assertTrue(report("replacement", UpdaterService.UPDATE_OUTCOME_SUCCESS));
+		awaitAnnounced(4);
+	}
+
+	@Test
+	public void finishesWhenAllClientsSkip() throws InterruptedException {
+		addClients(1);
+		start();
+		assertTrue(report("only", UpdaterService.UPDATE_OUTCOME_SKIPPED));
+		awaitState(RolloutEngine.State.DONE);
+	}
+
+	@Test
+	public void haltsOnTooManyFailures() throws InterruptedException {
+		addClients(4);
+		start();
+		assertTrue(report("canary", UpdaterService.UPDATE_OUTCOME_FAILURE));
+		assertEquals(RolloutEngine.State.HALTED, engine.getState());
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(1, announced());
+		assertEquals("1.0.0", engine.getVersionFor(clients.get(3), TYPES[0], NEW_VERSIONS[0]));
+	}
+
+	@Test
+	public void successesOutweighFewFailures() throws InterruptedException {
+		settings.put(RolloutEngine.KEY_CANARY_SIZE, "5");
+		settings.put(RolloutEngine.KEY_MIN_REPORTS, "5");
+		addClients(10);
+		start();
+		assertEquals(5, announced());
+		for (int i = 0; i < 4; i++) {
+			report("host" + i, UpdaterService.UPDATE_OUTCOME_SUCCESS);
+		}
+		// One failure in five is not more than 20%
+		report("host4", UpdaterService.UPDATE_OUTCOME_FAILURE);
+		assertEquals(RolloutEngine.State.RUNNING, engine.getState());
+		awaitAnnounced(10);
+	}
+
+	@Test
+	public void resumeGoesOnWithNextWave() throws InterruptedException {
+		addClients(4);
+		start();
+		report("canary", UpdaterService.UPDATE_OUTCOME_FAILURE);
+		assertEquals(RolloutEngine.State.HALTED, engine.getState());
+		assertTrue(engine.resume());
+		awaitAnnounced(4);
+	}
+
+	@Test
+	public void reportOfOtherVersionDoesNotBelong() {
+		addClients(2);
+		start();
+		assertFalse(engine.report("canary", TYPES, OLD_VERSIONS, UpdaterService.UPDATE_OUTCOME_FAILURE));
+		assertEquals(RolloutEngine.State.RUNNING, engine.getState());
+	}
+}
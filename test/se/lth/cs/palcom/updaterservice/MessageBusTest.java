@@ -0,0 +1,120 @@
+package se.lth.cs.palcom.updaterservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the mailboxes of {@link MessageBus}: ordering, overflow and waking up waiters.
+ * @author splushii
+ *
+ */
+public class MessageBusTest {
+	private static final int NO_WAIT = 0;
+
+	@Test
+	public void takesOldestMessageFirst() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 10, MessageBus.OverflowPolicy.DROP_OLDEST);
+		bus.post("topic", null, "a");
+		bus.post("topic", null, "b");
+		assertEquals("a", bus.take("topic", null, NO_WAIT));
+		assertEquals("b", bus.take("topic", null, NO_WAIT));
+		assertNull(bus.take("topic", null, NO_WAIT));
+	}
+
+	@Test
+	public void keepsCorrelationsApart() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 10, MessageBus.OverflowPolicy.DROP_OLDEST);
+		bus.post("reply", "dev1", "to dev1");
+		bus.post("reply", "dev2", "to dev2");
+		assertEquals("to dev2", bus.take("reply", "dev2", NO_WAIT));
+		assertNull(bus.take("reply", null, NO_WAIT));
+		assertEquals("to dev1", bus.take("reply", "dev1", NO_WAIT));
+	}
+
+	@Test
+	public void dropsOldestWhenFull() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 2, MessageBus.OverflowPolicy.DROP_OLDEST);
+		assertTrue(bus.post("topic", null, "a"));
+		assertTrue(bus.post("topic", null, "b"));
+		assertTrue(bus.post("topic", null, "c"));
+		assertEquals("b", bus.take("topic", null, NO_WAIT));
+		assertEquals("c", bus.take("topic", null, NO_WAIT));
+		assertNull(bus.take("topic", null, NO_WAIT));
+	}
+
+	@Test
+	public void rejectsNewestWhenFull() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 2, MessageBus.OverflowPolicy.REJECT_NEWEST);
+		assertTrue(bus.post("topic", null, "a"));
+		assertTrue(bus.post("topic", null, "b"));
+		assertFalse(bus.post("topic", null, "c"));
+		assertEquals("a", bus.take("topic", null, NO_WAIT));
+		assertEquals("b", bus.take("topic", null, NO_WAIT));
+		assertNull(bus.take("topic", null, NO_WAIT));
+	}
+
+	@Test
+	public void neverDropsMessagesOfNeverDropTopics() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 2, MessageBus.OverflowPolicy.REJECT_NEWEST);
+		bus.neverDrop("abort");
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bus.post("abort", null, "abort " + i));
+		}
+		for (int i = 0; i < 5; i++) {
+			assertEquals("abort " + i, bus.take("abort", null, NO_WAIT));
+		}
+		// Other topics still overflow
+		bus.post("other", null, "a");
+		bus.post("other", null, "b");
+		assertFalse(bus.post("other", null, "c"));
+	}
+
+	@Test
+	public void takeAnyPrefersEarlierTopics() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 10, MessageBus.OverflowPolicy.DROP_OLDEST);
+		bus.post("reply", "dev1", "reply");
+		bus.post("abort", "dev1", "abort");
+		Map.Entry<String, String> taken = bus.takeAny(new String[] {"abort", "reply"}, "dev1", NO_WAIT);
+		assertEquals("abort", taken.getKey());
+		assertEquals("abort", taken.getValue());
+		taken = bus.takeAny(new String[] {"abort", "reply"}, "dev1", NO_WAIT);
+		assertEquals("reply", taken.getKey());
+		assertNull(bus.takeAny(new String[] {"abort", "reply"}, "dev1", NO_WAIT));
+	}
+
+	@Test
+	public void wakesUpWaiterWhenMessageIsPosted() throws InterruptedException {
+		final MessageBus<String> bus = new MessageBus<String>(null, "test", 10, MessageBus.OverflowPolicy.DROP_OLDEST);
+		Thread poster = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {/* post right away */}
+				bus.post("topic", "dev1", "late");
+			}
+		};
+		poster.start();
+		assertEquals("late", bus.take("topic", "dev1", 5));
+		poster.join();
+	}
+
+	@Test
+	public void clearsMailboxesOfCorrelation() {
+		MessageBus<String> bus = new MessageBus<String>(null, "test", 10, MessageBus.OverflowPolicy.DROP_OLDEST);
+		bus.post("reply", "dev1", "old reply");
+		bus.post("data", "dev1", "old data");
+		bus.post("reply", "dev2", "other device");
+		assertEquals(2, bus.clearCorrelation("dev1"));
+		assertNull(bus.take("reply", "dev1", NO_WAIT));
+		assertNull(bus.take("data", "dev1", NO_WAIT));
+		assertEquals("other device", bus.take("reply", "dev2", NO_WAIT));
+		assertEquals(0, bus.clear("reply", "dev2"));
+	}
+}
@@ -0,0 +1,137 @@
+package se.lth.cs.palcom.updaterservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the backoff, crash loop detection and quarantine of {@link RestartPolicy}. Jitter is turned off,
+ * so that the waits are exact.
+ * @author splushii
+ *
+ */
+public class RestartPolicyTest {
+	private RestartPolicy.Settings settings;
+	private RestartPolicy policy;
+
+	@Before
+	public void setUp() {
+		settings = new RestartPolicy.Settings();
+		settings.backoffBaseMillis = 1000;
+		settings.backoffMaxMillis = 8000;
+		settings.jitter = 0;
+		settings.crashLoopWindowMillis = 60*1000;
+		settings.crashLoopThreshold = 5;
+		settings.stableRunMillis = 10*1000;
+		settings.quarantineMillis = 5*60*1000;
+		policy = new RestartPolicy(settings);
+	}
+
+	@Test
+	public void restartsRightAwayAfterFirstFailure() {
+		policy.recordRunning(0);
+		policy.recordFailure(100);
+		assertEquals(RestartPolicy.State.BACKING_OFF, policy.getState());
+		assertEquals(0, policy.millisUntilRestart(100));
+	}
+
+	@Test
+	public void doublesBackoffUpToMax() {
+		long now = 0;
+		long[] expected = {0, 1000, 2000, 4000, 8000, 8000};
+		// A high threshold, so that this is not a crash loop
+		settings.crashLoopThreshold = 100;
+		for (long wait: expected) {
+			policy.recordFailure(now);
+			assertEquals(wait, policy.millisUntilRestart(now));
+			now += wait;
+		}
+	}
+
+	@Test
+	public void stableRunResetsBackoff() {
+		policy.recordFailure(0);
+		policy.recordFailure(0);
+		policy.recordFailure(0);
+		assertEquals(2000, policy.millisUntilRestart(0));
+		policy.recordRunning(2000);
+		assertFalse(policy.checkStable(2000 + settings.stableRunMillis - 1));
+		assertTrue(policy.checkStable(2000 + settings.stableRunMillis));
+		// Only the first time
+		assertFalse(policy.checkStable(2000 + settings.stableRunMillis + 1));
+		long now = 60*1000;
+		policy.recordFailure(now);
+		assertEquals(0, policy.millisUntilRestart(now));
+	}
+
+	@Test
+	public void detectsCrashLoopWithinWindow() {
+		for (int i = 0; i < settings.crashLoopThreshold - 1; i++) {
+			policy.recordFailure(i * 1000);
+			assertFalse(policy.isCrashLooping());
+		}
+		policy.recordFailure(settings.crashLoopThreshold * 1000);
+		assertTrue(policy.isCrashLooping());
+	}
+
+	@Test
+	public void forgetsFailuresOutsideWindow() {
+		long now = 0;
+		for (int i = 0; i < settings.crashLoopThreshold - 1; i++) {
+			policy.recordFailure(now);
+		}
+		now += settings.crashLoopWindowMillis + 1;
+		policy.recordFailure(now);
+		assertFalse(policy.isCrashLooping());
+	}
+
+	@Test
+	public void quarantineHoldsOffRestartsUntilItRunsOut() {
+		for (int i = 0; i < settings.crashLoopThreshold; i++) {
+			policy.recordFailure(0);
+		}
+		assertTrue(policy.isCrashLooping());
+		policy.quarantine(0);
+		assertEquals(RestartPolicy.State.QUARANTINED, policy.getState());
+		assertFalse(policy.isCrashLooping());
+		assertEquals(settings.quarantineMillis, policy.millisUntilRestart(0));
+		// A failure during the quarantine does not shorten it
+		policy.recordFailure(1000);
+		assertEquals(RestartPolicy.State.QUARANTINED, policy.getState());
+		assertEquals(settings.quarantineMillis - 1000, policy.millisUntilRestart(1000));
+		assertEquals(0, policy.millisUntilRestart(settings.quarantineMillis));
+	}
+
+	@Test
+	public void releaseLiftsQuarantine() {
+		policy.quarantine(0);
+		policy.release();
+		assertEquals(RestartPolicy.State.BACKING_OFF, policy.getState());
+		assertEquals(0, policy.millisUntilRestart(0));
+		assertFalse(policy.isCrashLooping());
+	}
+
+	@Test
+	public void fallbackAllowsRestartWithFreshWindow() {
+		for (int i = 0; i < settings.crashLoopThreshold; i++) {
+			policy.recordFailure(0);
+		}
+		policy.recordFallback(0);
+		assertEquals(0, policy.millisUntilRestart(0));
+		assertFalse(policy.isCrashLooping());
+		policy.recordFailure(1000);
+		assertFalse(policy.isCrashLooping());
+	}
+
+	@Test
+	public void stoppedDeviceMayBeStartedRightAway() {
+		policy.recordFailure(0);
+		policy.recordFailure(0);
+		policy.recordStopped();
+		assertEquals(RestartPolicy.State.STOPPED, policy.getState());
+		assertEquals(0, policy.millisUntilRestart(0));
+	}
+}
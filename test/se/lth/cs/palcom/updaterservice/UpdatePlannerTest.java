@@ -0,0 +1,116 @@
+package se.lth.cs.palcom.updaterservice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of how {@link UpdatePlanner} splits an update into waves, and which types a failure affects.
+ * @author splushii
+ *
+ */
+public class UpdatePlannerTest {
+	private List<PalComDeviceUpdateDescription> updates;
+	private Map<String, Set<String>> dependencies;
+
+	@Before
+	public void setUp() {
+		updates = new ArrayList<PalComDeviceUpdateDescription>();
+		dependencies = new HashMap<String, Set<String>>();
+	}
+
+	private void update(String deviceType, String... dependsOn) {
+		updates.add(new PalComDeviceUpdateDescription(deviceType, "1.0.0", "2.0.0"));
+		dependencies.put(deviceType, new LinkedHashSet<String>(Arrays.asList(dependsOn)));
+	}
+
+	private List<List<String>> waves(UpdatePlanner planner) {
+		List<List<String>> waves = new ArrayList<List<String>>();
+		for (List<PalComDeviceUpdateDescription> wave: planner.getWaves()) {
+			waves.add(UpdatePlanner.typesOf(wave));
+		}
+		return waves;
+	}
+
+	private static Set<String> setOf(String... types) {
+		return new LinkedHashSet<String>(Arrays.asList(types));
+	}
+
+	@Test
+	public void independentTypesShareOneWave() {
+		update("A");
+		update("B");
+		update("C");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(Arrays.asList(Arrays.asList("A", "B", "C")), waves(planner));
+	}
+
+	@Test
+	public void dependenciesComeInEarlierWaves() {
+		// D depends on B and C, which both depend on A
+		update("D", "B", "C");
+		update("B", "A");
+		update("C", "A");
+		update("A");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("B", "C"), Arrays.asList("D")), waves(planner));
+	}
+
+	@Test
+	public void ignoresDependenciesOutsideTheUpdate() {
+		update("A", "NotUpdated");
+		update("B", "A", "B");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("B")), waves(planner));
+	}
+
+	@Test
+	public void swapsCycleTogetherLast() {
+		update("A");
+		update("B", "C");
+		update("C", "B");
+		// Behind the cycle
+		update("D", "C");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("B", "C", "D")), waves(planner));
+	}
+
+	@Test
+	public void failureAffectsOnlyDependents() {
+		update("A");
+		update("B", "A");
+		update("C", "B");
+		update("D");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(setOf("A", "B", "C"), planner.affectedBy("A"));
+		assertEquals(setOf("B", "C"), planner.affectedBy("B"));
+		assertEquals(setOf("D"), planner.affectedBy("D"));
+	}
+
+	@Test
+	public void failureAffectsAllDependentsOfDiamond() {
+		update("A");
+		update("B", "A");
+		update("C", "A");
+		update("D", "B", "C");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(setOf("A", "B", "C", "D"), planner.affectedBy("A"));
+		assertEquals(setOf("C", "D"), planner.affectedBy("C"));
+	}
+
+	@Test
+	public void failureOfUnknownTypeAffectsOnlyItself() {
+		update("A");
+		UpdatePlanner planner = new UpdatePlanner(updates, dependencies);
+		assertEquals(setOf("X"), planner.affectedBy("X"));
+	}
+}